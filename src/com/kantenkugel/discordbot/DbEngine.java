@@ -17,41 +17,94 @@
 package com.kantenkugel.discordbot;
 
 import com.kantenkugel.discordbot.config.BotConfig;
+import com.kantenkugel.discordbot.db.ArchiveOp;
+import com.kantenkugel.discordbot.db.ArchiveStorage;
+import com.kantenkugel.discordbot.db.ArchiveWriter;
+import com.kantenkugel.discordbot.db.DbMetrics;
+import com.kantenkugel.discordbot.db.H2Storage;
+import com.kantenkugel.discordbot.db.HistoryServer;
+import com.kantenkugel.discordbot.db.MessageBackfill;
+import com.kantenkugel.discordbot.db.MySqlStorage;
+import com.kantenkugel.discordbot.db.QueryGovernor;
+import com.kantenkugel.discordbot.db.ResultRenderer;
+import com.kantenkugel.discordbot.db.SearchBackfill;
+import com.kantenkugel.discordbot.db.SearchIndex;
 import com.kantenkugel.discordbot.listener.MessageEvent;
+import com.kantenkugel.discordbot.util.TaskHelper;
+import net.dv8tion.jda.JDA;
+import net.dv8tion.jda.Permission;
 import net.dv8tion.jda.entities.Guild;
+import net.dv8tion.jda.entities.Message;
 import net.dv8tion.jda.entities.TextChannel;
 import net.dv8tion.jda.entities.User;
+import net.dv8tion.jda.entities.impl.JDAImpl;
+import net.dv8tion.jda.requests.Requester;
 import net.dv8tion.jda.utils.SimpleLog;
 import org.json.JSONObject;
 
 import javax.security.auth.login.LoginException;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoField;
 import java.util.*;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Entry-point of the archive. Translates JDA-entities into plain values for the configured {@link ArchiveStorage}
+ * ({@code storage}: {@code mysql} or {@code h2}) and feeds the {@link SearchIndex}.
+ * <br>The archive runs inside the bot: the translation happens on the calling (event-)thread, everything touching the
+ * storage or the index is handed to a worker-thread, so archiving doesn't delay commands.
+ * <br>If the worker can't keep up ({@code archiveQueueSize} pending), the configured {@code backpressure} applies to this
+ * queue just like to the write-queue of the {@link ArchiveWriter} behind it:
+ * {@code block} makes the event-thread wait up to {@code blockTimeout} ms for space before the event is dropped,
+ * {@code drop} drops it right away. Events are counted as dropped at whichever of the two queues they were rejected.
+ */
 public class DbEngine {
     private static final SimpleLog LOG = SimpleLog.getLog("DB");
-
-    private static boolean initialized = false;
-    private static Connection conn;
-    private static PreparedStatement guildUpdate, guildUpdate2, channelUpdate;
-    private static PreparedStatement messageInsert, messageUpdate, messageDelete;
-    private static PreparedStatement userUpdate, userAliasUpdate;
-    private static PreparedStatement banAdd, banLookup;
-    private static PreparedStatement historyCreate;
+    //fits into a discord-message including the code-block around it
+    public static final int QUERY_CHUNK_SIZE = 1990;
+
+    private static volatile boolean initialized = false;
+    private static ArchiveStorage storage;
+    private static SearchIndex searchIndex;
+    private static volatile SearchBackfill searchBackfill;
+    private static volatile MessageBackfill messageBackfill;
+    private static HistoryServer historyServer;
+    private static ThreadPoolExecutor worker;
+    private static final AtomicLong droppedEvents = new AtomicLong();
 
     public static synchronized boolean init() {
         if(initialized)
             return true;
         try {
-            open();
-            if(!createTables()) {
+            JSONObject config = BotConfig.get("db");
+            storage = createStorage(config);
+            try {
+                storage.open();
+            } catch(SQLException e) {
                 LOG.fatal("Could not create tables! Closing Db!");
-                close();
+                storage = null;
                 return false;
             }
-            createStatements();
+            worker = createWorker(config, droppedEvents);
+            searchIndex = openSearchIndex(config);
+            if(searchIndex != null)
+                TaskHelper.startTimed("db-search", 10000, searchIndex::maintain);
+            historyServer = startHistoryServer(config);
+            if(!config.optString("metricsFile", "dbmetrics.json").isEmpty() && config.optLong("metricsInterval", 60000) > 0)
+                TaskHelper.startTimed("db-metrics", config.optLong("metricsInterval", 60000), DbEngine::dumpMetrics);
             initialized = true;
         } catch(LoginException e) {
             LOG.info("Did not establish DB-Connection due to missing config-entries");
@@ -59,403 +112,344 @@ public class DbEngine {
         return initialized;
     }
 
-    private static void open() throws LoginException {
-        JSONObject config = BotConfig.get("db");
+    /**
+     * Creates the worker-thread the storage-work is handed to, applying the configured {@code backpressure} when its
+     * queue ({@code archiveQueueSize}) is full. Also used by the {@link com.kantenkugel.discordbot.db.ArchiveBenchmark}.
+     *
+     * @param dropped
+     *      counts the rejected tasks
+     */
+    public static ThreadPoolExecutor createWorker(JSONObject config, AtomicLong dropped) {
+        ArchiveWriter.Backpressure backpressure = ArchiveWriter.Backpressure.fromString(config.optString("backpressure", "block"));
+        long blockTimeout = config.optLong("blockTimeout", 5000);
+        //a single thread keeps the events in order
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.optInt("archiveQueueSize", 10000))), r -> {
+            Thread thread = new Thread(r, "DB-Worker");
+            thread.setDaemon(true);
+            return thread;
+        }, (r, executor) -> {
+            if(backpressure == ArchiveWriter.Backpressure.BLOCK && !executor.isShutdown()) {
+                try {
+                    if(executor.getQueue().offer(r, blockTimeout, TimeUnit.MILLISECONDS))
+                        return;
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if(dropped.incrementAndGet() % 1000 == 1)
+                LOG.warn("Archive can't keep up, dropped " + dropped.get() + " events so far");
+        });
+    }
+
+    private static ArchiveStorage createStorage(JSONObject config) throws LoginException {
         if(config == null)
             throw new LoginException("Config is missing db-section!");
-        String host = config.has("host") ? config.getString("host") : null;
-        String database = config.has("database") ? config.getString("database") : null;
-        String user = config.has("user") ? config.getString("user") : null;
-        String password = config.has("password") ? config.getString("password") : null;
-        if(host == null || host.trim().isEmpty() || database == null || database.trim().isEmpty()
-                || user == null || user.trim().isEmpty() || password == null || password.trim().isEmpty()) {
-            throw new LoginException("one of the db-configs values was empty or non-present");
+        String type = config.optString("storage", "mysql");
+        switch(type.toLowerCase()) {
+            case "mysql":
+                return new MySqlStorage(config);
+            case "h2":
+                return new H2Storage(config);
+            default:
+                throw new LoginException("Unknown storage " + type);
+        }
+    }
+
+    private static SearchIndex openSearchIndex(JSONObject config) {
+        if(config.optString("searchDir", "search").isEmpty())
+            return null;
+        try {
+            return new SearchIndex(config);
+        } catch(IOException e) {
+            LOG.warn("Could not open search-index. Search is disabled");
+            LOG.log(e);
+            return null;
         }
+    }
+
+    private static HistoryServer startHistoryServer(JSONObject config) {
+        if(config.optInt("historyPort", 0) <= 0)
+            return null;
+        HistoryServer server = new HistoryServer(storage, config);
         try {
-            Class.forName("com.mysql.jdbc.Driver");
-            conn = DriverManager.getConnection("jdbc:mysql://" + host + '/' + database + "?useUnicode=true", user, password);
-            Statement statement = conn.createStatement();
-            statement.executeQuery("SET NAMES 'utf8mb4'");
-            statement.close();
-        } catch(Exception ex) {
-            throw new LoginException("Failed to connect or login to DB");
+            server.start();
+            return server;
+        } catch(IOException e) {
+            LOG.warn("Could not start history-server. History-links have to be served externally");
+            LOG.log(e);
+            return null;
         }
-        LOG.info("Successfully opened Database-connection");
     }
 
     public static void handleMessage(MessageEvent e) {
         if(!initialized || e.isPrivate())
             return;
-        if(e.isEdit()) {
-            try {
-                messageUpdate.setString(1, e.getMessage().getRawContent());
-                messageUpdate.setTimestamp(2, new Timestamp(e.getMessage().getEditedTimestamp().toEpochSecond() * 1000
-                        + e.getMessage().getEditedTimestamp().get(ChronoField.MILLI_OF_SECOND)));
-                messageUpdate.setString(3, e.getMessage().getId());
-                messageUpdate.executeUpdate();
-            } catch(SQLTimeoutException ex) {
-                onTimeout();
-            } catch(SQLException ex) {
-                LOG.log(ex);
-            }
-        } else {
-            try {
-                updateUser(e.getAuthor());
-                messageInsert.setString(1, e.getMessage().getId());
-                messageInsert.setString(2, e.getTextChannel().getId());
-                messageInsert.setString(3, e.getAuthor().getId());
-                messageInsert.setString(4, e.getMessage().getRawContent());
-                messageInsert.setTimestamp(5, new Timestamp(e.getMessage().getTime().toEpochSecond() * 1000
-                        + e.getMessage().getTime().get(ChronoField.MILLI_OF_SECOND)));
-                messageInsert.executeUpdate();
-            } catch(SQLTimeoutException ex) {
-                onTimeout();
-            } catch(SQLException ex) {
-                LOG.log(ex);
-            }
-        }
+        Message message = e.getMessage();
+        String id = message.getId(), content = message.getRawContent();
+        String guildId = e.getGuild().getId(), channelId = e.getTextChannel().getId(), authorId = e.getAuthor().getId();
+        boolean edit = e.isEdit();
+        ArchiveOp op = edit
+                ? ArchiveOp.edit(id, content, toMillis(message.getEditedTimestamp()))
+                : ArchiveOp.message(id, channelId, authorId, e.getAuthor().getUsername(), content, toMillis(message.getTime()));
+        async(() -> {
+            storage.handleMessage(op);
+            if(searchIndex != null)
+                searchIndex.add(id, guildId, channelId, authorId, content, edit);
+        });
     }
 
     public static void deleteMessage(String id) {
         if(!initialized)
             return;
-        try {
-            messageDelete.setLong(1, Long.parseLong(id));
-            messageDelete.executeUpdate();
-        } catch(SQLTimeoutException ex) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
+        async(() -> {
+            storage.handleMessage(ArchiveOp.delete(id));
+            if(searchIndex != null)
+                searchIndex.delete(id);
+        });
+    }
+
+    /**
+     * Runs the given storage-work on the worker-thread. JDA-entities have to be read before (on the calling thread).
+     */
+    private static void async(Runnable task) {
+        ThreadPoolExecutor executor = worker;
+        if(executor != null)
+            executor.execute(task);
+    }
+
+    private static long toMillis(OffsetDateTime time) {
+        return time.toEpochSecond() * 1000 + time.get(ChronoField.MILLI_OF_SECOND);
     }
 
+    /**
+     * Reconciles the stored guilds/channels with the given guilds.
+     * JDA-entities are not safe to read from other threads, so this takes a snapshot for the storage to work on.
+     */
     public static void handleGuilds(List<Guild> guilds) {
         if(!initialized)
             return;
-        LOG.info("Starting DB-CHECK of Guilds...");
-        try {
-            //get existing guilds...
-            ResultSet query = query("SELECT id FROM guilds WHERE last_seen != NULL;");
-            Set<String> existing = new HashSet<>();
-            while(query.next()) {
-                existing.add(query.getString(1));
-            }
-            query.close();
-
-            //add/update guilds
-            for(Guild guild : guilds) {
-                LOG.trace("Validating guild "+guild.getId());
-                existing.remove(guild.getId());
-                updateGuild(guild);
-            }
-
-            LOG.debug("Marking unseen dbs");
-            //mark as unseen
-            for(String unfound : existing) {
-                update("UPDATE guilds SET last_seen = CURRENT_DATE WHERE id = ?;", unfound);
+        Map<String, String> guildNames = new HashMap<>();
+        Map<String, String[]> channels = new HashMap<>();
+        for(Guild guild : guilds) {
+            guildNames.put(guild.getId(), guild.getName());
+            for(TextChannel channel : guild.getTextChannels()) {
+                channels.put(channel.getId(), new String[]{channel.getName(), guild.getId()});
             }
-        } catch(SQLTimeoutException e) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
         }
-        LOG.info("Finished DB-CHECK of Guilds!");
+        async(() -> storage.handleGuilds(guildNames, channels));
     }
 
     public static void updateGuild(Guild g) {
         if(!initialized)
             return;
-        try {
-            guildUpdate.setString(1, g.getId());
-            ResultSet rs = guildUpdate.executeQuery();
-            if(rs.next()) {
-                boolean updated = false;
-                if(!rs.getString("name").equals(g.getName())) {
-                    rs.updateString("name", g.getName());
-                    updated = true;
-                }
-                if(rs.getDate("last_seen") != null) {
-                    rs.updateNull("last_seen");
-                    updated = true;
-                }
-                if(updated)
-                    rs.updateRow();
-                handleChannels(g);
-            } else {
-                rs.moveToInsertRow();
-                rs.updateString("id", g.getId());
-                rs.updateString("name", g.getName());
-                rs.insertRow();
-                for(TextChannel channel : g.getTextChannels()) {
-                    update("INSERT INTO channels(id, name, guildId) VALUES (?, ?, ?);", channel.getId(), channel.getName(), g.getId());
-                }
-            }
-        } catch(SQLTimeoutException e) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
-
+        Map<String, String> channels = new HashMap<>();
+        g.getTextChannels().forEach(tc -> channels.put(tc.getId(), tc.getName()));
+        String id = g.getId(), name = g.getName();
+        async(() -> storage.updateGuild(id, name, channels));
     }
 
     public static void deleteGuild(Guild g) {
         if(!initialized)
             return;
-        try {
-            update("UPDATE guilds SET last_seen = CURRENT_DATE WHERE id = ?;", g.getId());
-        } catch(SQLTimeoutException e) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
+        String id = g.getId();
+        async(() -> storage.deleteGuild(id));
     }
 
     public static void updateChannel(TextChannel channel) {
         if(!initialized)
             return;
-        try {
-            channelUpdate.setString(1, channel.getId());
-            ResultSet rs = channelUpdate.executeQuery();
-            if(rs.next()) {
-                if(!rs.getString("name").equals(channel.getName())) {
-                    rs.updateString("name", channel.getName());
-                    rs.updateBoolean("deleted", rs.getBoolean("deleted"));
-                    rs.updateRow();
-                }
-            } else {
-                rs.moveToInsertRow();
-                rs.updateString("id", channel.getId());
-                rs.updateString("name", channel.getName());
-                rs.updateString("guildId", channel.getGuild().getId());
-                rs.insertRow();
-            }
-            rs.close();
-        } catch(SQLTimeoutException e) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
-    }
-
-    private static void handleChannels(Guild g) {
-        Map<String, TextChannel> channels = new HashMap<>();
-        g.getTextChannels().forEach(c -> channels.put(c.getId(), c));
-        try {
-            guildUpdate2.setString(1, g.getId());
-            ResultSet rs = guildUpdate2.executeQuery();
-            while(rs.next()) {
-                String channelId = rs.getString("id");
-                if(channels.containsKey(channelId)) {
-                    TextChannel tc = channels.get(channelId);
-                    if(!rs.getString("name").equals(tc.getName())) {
-                        rs.updateString("name", tc.getName());
-                        rs.updateBoolean("deleted", rs.getBoolean("deleted"));
-                        rs.updateRow();
-                    }
-                    channels.remove(channelId);
-                } else {
-                    rs.updateBoolean("deleted", true);
-                    rs.updateRow();
-                }
-            }
-            for(TextChannel newChannel : channels.values()) {
-                rs.moveToInsertRow();
-                rs.updateString("id", newChannel.getId());
-                rs.updateString("name", newChannel.getName());
-                rs.updateString("guildId", g.getId());
-                rs.insertRow();
-            }
-            rs.close();
-        } catch(SQLTimeoutException e) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
+        String id = channel.getId(), name = channel.getName(), guildId = channel.getGuild().getId();
+        async(() -> storage.updateChannel(id, name, guildId));
     }
 
     public static void deleteChannel(TextChannel channel) {
         if(!initialized)
             return;
-        try {
-            update("UPDATE channels SET deleted = 1 WHERE id = ?;", channel.getId());
-        } catch(SQLTimeoutException e) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
+        String id = channel.getId();
+        async(() -> storage.deleteChannel(id));
     }
 
-    public static List<Ban> getBans(Guild guild) {
-        List<Ban> bans = new LinkedList<>();
+    public static List<ArchiveStorage.Ban> getBans(Guild guild) {
         if(!initialized)
-            return bans;
-        try {
-            banLookup.setString(1, guild.getId());
-            ResultSet resultSet = banLookup.executeQuery();
-            while(!resultSet.next()) {
-                bans.add(new Ban(resultSet.getString("reason"), resultSet.getString("bannedId"), resultSet.getString("bannedName")
-                        , resultSet.getString("executorId"), resultSet.getString("executorName"), resultSet.getInt("created")));
-            }
-            resultSet.close();
-        } catch(SQLTimeoutException ex) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
-        return bans;
+            return new LinkedList<>();
+        return storage.getBans(guild.getId());
     }
 
     public static void addBan(Guild guild, User banned, User executor, String reason) {
         if(!initialized)
             return;
-        if(reason.length() > 250) {
-            reason = reason.substring(0, 247) + "...";
-        }
-        try {
-            updateUser(banned);
-            banAdd.setString(1, guild.getId());
-            banAdd.setString(2, banned.getId());
-            banAdd.setString(3, executor.getId());
-            banAdd.setString(4, reason);
-            banAdd.setTimestamp(5, new Timestamp(OffsetDateTime.now().toEpochSecond() * 1000));
-            banAdd.executeUpdate();
-        } catch(SQLTimeoutException ex) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
+        String guildId = guild.getId(), bannedId = banned.getId(), bannedName = banned.getUsername(), executorId = executor.getId();
+        async(() -> storage.addBan(guildId, bannedId, bannedName, executorId, reason));
     }
 
     public static void updateUser(User user) {
         if(!initialized)
             return;
-        try {
-            userUpdate.setString(1, user.getId());
-            ResultSet rs = userUpdate.executeQuery();
-            if(rs.next()) {
-                if(!rs.getString("username").equals(user.getUsername())) {
-                    rs.updateString("username", user.getUsername());
-                    rs.updateRow();
-                    userAliasUpdate.setString(1, user.getId());
-                    userAliasUpdate.setString(2, user.getUsername());
-                    ResultSet resultSet = userAliasUpdate.executeQuery();
-                    if(!resultSet.next()) {
-                        resultSet.moveToInsertRow();
-                        resultSet.updateString("userId", user.getId());
-                        resultSet.updateString("alias", user.getUsername());
-                        resultSet.insertRow();
-                    }
-                    resultSet.close();
-                }
-            } else {
-                rs.moveToInsertRow();
-                rs.updateString("id", user.getId());
-                rs.updateString("username", user.getUsername());
-                rs.insertRow();
-                update("INSERT INTO user_aliases(userId, alias) VALUES (?, ?);", user.getId(), user.getUsername());
-            }
-            rs.close();
-        } catch(SQLTimeoutException ex) {
-            onTimeout();
-        } catch(SQLException e) {
-            LOG.log(e);
-        }
+        String id = user.getId(), name = user.getUsername();
+        async(() -> storage.updateUser(id, name));
     }
 
-    public static long createHistory(User user, TextChannel channel) {
+    /**
+     * Rebuilds all archived versions of a message from the (delta-encoded) message_edits.
+     *
+     * @return
+     *      the original content followed by the content after each edit, or an empty list if the message is unknown
+     */
+    public static List<String> getMessageVersions(String messageId) {
         if(!initialized)
-            return -1;
-        try {
-            historyCreate.setString(1, user.getId());
-            historyCreate.setString(2, channel.getId());
-            historyCreate.executeUpdate();
-            ResultSet generatedKeys = historyCreate.getGeneratedKeys();
-            if(generatedKeys.next())
-                return generatedKeys.getLong(1);
-        } catch(SQLTimeoutException e) {
-            onTimeout();
-        } catch(SQLException e) {
-            e.printStackTrace();
-        }
-        return -1;
-    }
-
-    private static void update(String update, Object... objects) throws SQLException {
-        PreparedStatement statement = conn.prepareStatement(update);
-        statement.setQueryTimeout(10);
-        int index = 1;
-        for(Object object : objects) {
-            if(object == null)
-                statement.setNull(index++, Types.VARCHAR);
-            else if(object.getClass() == String.class)
-                statement.setString(index++, ((String) object));
-            else if(object.getClass() == int.class)
-                statement.setInt(index++, (int) object);
-            else if(object.getClass() == Integer.class)
-                statement.setInt(index++, (Integer) object);
-            else if(object.getClass() == long.class)
-                statement.setLong(index++, (long) object);
-            else if(object.getClass() == Long.class)
-                statement.setLong(index++, (Long) object);
-            else if(object.getClass() == boolean.class)
-                statement.setBoolean(index++, (boolean) object);
-            else if(object.getClass() == Boolean.class)
-                statement.setBoolean(index++, (Boolean) object);
-            else {
-                LOG.warn("Unknown parameter type for update()... Got " + object.getClass().getName() + "... Skipping update!");
-                statement.close();
-                return;
+            return Collections.emptyList();
+        return storage.getMessageVersions(messageId);
+    }
+
+    /**
+     * Reads the latest content of the given messages.
+     *
+     * @return
+     *      id -> content of all found messages (empty if the DB is not available)
+     */
+    public static Map<String, String> getMessageContents(Collection<String> ids) {
+        if(!initialized)
+            return new HashMap<>();
+        return storage.getMessageContents(ids);
+    }
+
+    /**
+     * Searches the archived messages.
+     *
+     * @return
+     *      the result, or null if search is disabled
+     */
+    public static SearchIndex.Result search(SearchIndex.Query query) {
+        if(!initialized || searchIndex == null)
+            return null;
+        return searchIndex.search(query);
+    }
+
+    /**
+     * Starts indexing the messages archived before the search-index existed in the background.
+     *
+     * @return
+     *      a status-message for the user
+     */
+    public static String backfillSearch() {
+        if(!initialized || searchIndex == null)
+            return "Search is not available!";
+        SearchBackfill backfill = new SearchBackfill(storage, searchIndex, BotConfig.get("db"));
+        if(!TaskHelper.start("db-searchbackfill", backfill))
+            return "Backfill is already running: " + searchBackfill.getStatus();
+        searchBackfill = backfill;
+        return "Backfill started. Check -kbdbstats for progress";
+    }
+
+    /**
+     * Starts importing the message-history of all readable text-channels in the background (see {@link MessageBackfill}).
+     *
+     * @return
+     *      a status-message for the user
+     */
+    public static String backfillMessages(JDA api) {
+        if(!initialized)
+            return "DB not available!";
+        Map<String, String> channels = new HashMap<>();
+        for(Guild guild : api.getGuilds()) {
+            for(TextChannel channel : guild.getTextChannels()) {
+                if(channel.checkPermission(api.getSelfInfo(), Permission.MESSAGE_READ, Permission.MESSAGE_HISTORY))
+                    channels.put(channel.getId(), guild.getId());
             }
         }
-        statement.executeUpdate();
-        statement.close();
+        Requester requester = ((JDAImpl) api).getRequester();
+        MessageBackfill backfill = new MessageBackfill(storage, searchIndex, channels, (channel, before, limit) -> {
+            Requester.Response response = requester.get("https://discordapp.com/api/channels/" + channel + "/messages?limit=" + limit
+                    + (before == null ? "" : "&before=" + before));
+            if(response.isRateLimit())
+                throw new MessageBackfill.RateLimitedException(response.getObject().optLong("retry_after", 1000));
+            if(!response.isOk())
+                throw new IOException("Reading the history failed with " + response.code);
+            return response.getArray();
+        }, BotConfig.get("db"));
+        if(!TaskHelper.start("db-messagebackfill", backfill))
+            return "Backfill is already running: " + messageBackfill.getStatus();
+        messageBackfill = backfill;
+        return "Importing the history of " + channels.size() + " channels. Check -kbdbstats for progress";
+    }
+
+    /**
+     * Starts the conversion of existing message_edits into the delta-encoding in the background.
+     *
+     * @return
+     *      a status-message for the user
+     */
+    public static String convertEdits() {
+        if(!initialized)
+            return "DB not available!";
+        return storage.convertEdits();
+    }
+
+    /**
+     * @return
+     *      the token to append to the historyBase, null if the history could not be created
+     */
+    public static String createHistory(User user, TextChannel channel) {
+        if(!initialized)
+            return null;
+        return storage.createHistory(user.getId(), channel.getId());
     }
 
+    /**
+     * Runs an ad-hoc query against the storage.
+     *
+     * @param query
+     *      the sql-query
+     * @return
+     *      the disconnected result (cut off after {@code queryMaxRows} rows), or null if the DB is not available
+     * @throws SQLException
+     *      if the query failed, or the DB is unreachable
+     * @see #query(String, Consumer)
+     */
     public static ResultSet query(String query) throws SQLException {
         if(!initialized)
             return null;
-        Statement statement = conn.createStatement();
-        statement.closeOnCompletion();
-        statement.setQueryTimeout(10);
-        return statement.executeQuery(query);
+        int maxRows = BotConfig.<JSONObject>get("db").optInt("queryMaxRows", 200);
+        return storage.query(query, maxRows, rs -> {
+            CachedRowSet rowSet = RowSetProvider.newFactory().createCachedRowSet();
+            rowSet.populate(rs);
+            return rowSet;
+        });
+    }
+
+    /**
+     * Runs an ad-hoc query against the storage and renders the result while it is read (see {@link ResultRenderer}).
+     *
+     * @param query
+     *      the sql-query
+     * @param output
+     *      receives the rendered result in chunks of at most {@link #QUERY_CHUNK_SIZE} chars
+     * @return
+     *      the number of rendered rows
+     * @throws SQLException
+     *      if the query failed, or the DB is unreachable
+     */
+    public static int query(String query, Consumer<String> output) throws SQLException {
+        if(!initialized) {
+            output.accept("DB not available!");
+            return 0;
+        }
+        ResultRenderer renderer = new ResultRenderer(BotConfig.get("db"), QUERY_CHUNK_SIZE, output);
+        //one more row than rendered tells the renderer that the result was truncated
+        return storage.query(query, renderer.getMaxRows() + 1, renderer::render);
     }
 
-    //UGLY AF but it works!
+    /**
+     * Renders the given result as table (bounded by the {@code query*} limits of the db-config) and closes it.
+     */
     public static String stringify(ResultSet rs) {
         if(rs == null)
             return "DB not available!";
-        int columncount;
-        int[] maxLength;
-        Object[] buff;
-        List<Object[]> responses = new LinkedList<>();
+        StringBuilder out = new StringBuilder();
         try {
-            ResultSetMetaData metaData = rs.getMetaData();
-            columncount = metaData.getColumnCount();
-            buff = new String[columncount];
-            maxLength = new int[columncount];
-            for(int i = 1; i <= columncount; i++) {
-                maxLength[i - 1] = metaData.getColumnLabel(i).length() + 1;
-                buff[i - 1] = metaData.getColumnLabel(i);
-            }
-            responses.add(buff);
-            while(rs.next()) {
-                buff = new String[columncount];
-                for(int i = 1; i <= columncount; i++) {
-                    buff[i - 1] = rs.getObject(i) == null ? "null" : rs.getObject(i).toString();
-                    maxLength[i - 1] = Math.max(maxLength[i - 1], buff[i - 1].toString().length() + 1);
-                }
-                responses.add(buff);
-            }
-            StringBuilder fb = new StringBuilder();
-            for(int i : maxLength) {
-                fb.append("%-").append(i).append('s');
-            }
-            String format = fb.append('\n').toString();
-            StringBuilder out = new StringBuilder();
-            for(Object[] response : responses) {
-                out.append(String.format(format, response));
-            }
-            out.setLength(out.length() - 1);
+            new ResultRenderer(BotConfig.get("db"), QUERY_CHUNK_SIZE, chunk -> out.append(out.length() == 0 ? "" : "\n").append(chunk))
+                    .render(rs);
             return out.toString();
         } catch(SQLException e) {
             LOG.log(e);
@@ -467,226 +461,152 @@ public class DbEngine {
         return null;
     }
 
-    private static void createStatements() {
+    /**
+     * @return
+     *      the running ad-hoc queries (one per line with their id)
+     */
+    public static String getRunningQueries() {
+        if(!initialized)
+            return "DB not available!";
+        List<String> running = storage.getQueryGovernor().getRunning();
+        return running.isEmpty() ? "No queries running" : String.join("\n", running);
+    }
+
+    /**
+     * Cancels the running ad-hoc query with the given id, or all of them for {@code all}.
+     *
+     * @return
+     *      a status-message for the user
+     */
+    public static String cancelQuery(String id) {
+        if(!initialized)
+            return "DB not available!";
+        QueryGovernor governor = storage.getQueryGovernor();
+        if(id.equals("all"))
+            return "Cancelled " + governor.cancelAll() + " queries";
         try {
-            //Guild+Channel
-            guildUpdate = conn.prepareStatement("SELECT * FROM guilds WHERE id = ?;", ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-            guildUpdate.setQueryTimeout(10);
-            guildUpdate2 = conn.prepareStatement("SELECT * FROM channels WHERE guildId = ?;", ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-            guildUpdate2.setQueryTimeout(10);
-            channelUpdate = conn.prepareStatement("SELECT * FROM channels WHERE id = ?;", ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-            channelUpdate.setQueryTimeout(10);
-
-            //Messages
-            messageInsert = conn.prepareStatement("INSERT INTO messages(id, channelId, authorId, content, created)" +
-                    " VALUES (?, ?, ?, ?, ?);");
-            messageInsert.setQueryTimeout(10);
-            messageUpdate = conn.prepareStatement("INSERT INTO message_edits (messageId, content, edited) SELECT id, ?, ? FROM messages WHERE id = ?;");
-            messageUpdate.setQueryTimeout(10);
-            messageDelete = conn.prepareStatement("UPDATE messages SET deleted=1 WHERE id=?;");
-            messageDelete.setQueryTimeout(10);
-
-            //Bans
-            banAdd = conn.prepareStatement("INSERT INTO bans(guildId, bannedId, executorId, reason, created)" +
-                    " VALUES (?, ?, ?, ?, ?);");
-            banAdd.setQueryTimeout(10);
-            banLookup = conn.prepareStatement("SELECT bans.*, u1.username AS bannedName, u2.username AS executorName " +
-                    "FROM bans JOIN users AS u1 ON bans.bannedId = u1.id JOIN users AS u2 ON bans.executorId = u2.id " +
-                    "WHERE guildId=?;");
-            banLookup.setQueryTimeout(10);
-
-            //User-Update
-            userUpdate = conn.prepareStatement("SELECT * FROM users WHERE id=?;", ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-            userUpdate.setQueryTimeout(10);
-            userAliasUpdate = conn.prepareStatement("SELECT * FROM user_aliases WHERE userId=? AND alias=?;"
-                    , ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-            userAliasUpdate.setQueryTimeout(10);
-
-            //History
-            historyCreate = conn.prepareStatement("INSERT INTO histories(userId, channelId) VALUES (?, ?);",
-                    Statement.RETURN_GENERATED_KEYS);
-            historyCreate.setQueryTimeout(10);
-
-            LOG.info("Created statements");
-        } catch(SQLException e) {
-            LOG.log(e);
+            return governor.cancel(Integer.parseInt(id.startsWith("#") ? id.substring(1) : id)) ? "Query cancelled" : "No such query running";
+        } catch(NumberFormatException ex) {
+            return "Usage: -kbdbcancel <id|all>";
         }
     }
 
-    private static boolean createTables() {
+    public static boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * @return
+     *      the storage in use, null if the DB is not initialized
+     */
+    public static ArchiveStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return
+     *      one-line summary of the db-state (used by the stats-command)
+     */
+    public static String getStatus() {
+        if(!initialized)
+            return "not connected";
+        return storage.getStatus();
+    }
+
+    public static String getStats() {
+        if(!initialized)
+            return "DB not available!";
+        return String.format("%-15s%s\n%-15s%d queued, %d dropped\n%s\n%-15s%s\n%-15s%s", "Storage:", storage.getClass().getSimpleName(),
+                "Worker:", worker.getQueue().size(), droppedEvents.get(), storage.getStats(),
+                "Search:", searchIndex == null ? "disabled" : String.format("%d messages in %d segments, %d searches (avg %.1fms)%s",
+                        searchIndex.getDocCount(), searchIndex.getSegmentCount(), searchIndex.getSearches(), searchIndex.getAverageSearchTime(),
+                        searchBackfill == null ? "" : ", backfill " + searchBackfill.getStatus()),
+                "History:", historyServer == null ? "external" : historyServer.getStats()
+                        + (messageBackfill == null ? "" : ", backfill " + messageBackfill.getStatus()));
+    }
+
+    /**
+     * @return
+     *      the per-statement metrics as table
+     */
+    public static String getMetrics() {
+        return DbMetrics.format(20);
+    }
+
+    /**
+     * Writes all metrics as json to the {@code metricsFile}.
+     *
+     * @return
+     *      a status-message for the user
+     */
+    public static String dumpMetrics() {
+        String file = BotConfig.<JSONObject>get("db").optString("metricsFile", "dbmetrics.json");
+        if(file.isEmpty())
+            return "No metricsFile configured";
+        Path path = Paths.get(file).toAbsolutePath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
         try {
-            conn.setAutoCommit(false);
-            Statement statement = conn.createStatement();
-            statement.setQueryTimeout(10);
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS guilds(" +
-                    " id VARCHAR(20) NOT NULL PRIMARY KEY," +
-                    " name VARCHAR(100) NOT NULL," +
-                    " last_seen DATE DEFAULT NULL" +
-                    ") COLLATE utf8mb4_unicode_ci;");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS channels(" +
-                    " id VARCHAR(20) NOT NULL PRIMARY KEY," +
-                    " name VARCHAR(100) NOT NULL," +
-                    " guildId VARCHAR(20) NOT NULL," +
-                    " deleted BIT(1) DEFAULT 0 NOT NULL," +
-                    " FOREIGN KEY (guildId) REFERENCES guilds(id) ON DELETE CASCADE" +
-                    ") COLLATE utf8mb4_unicode_ci;");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS users(" +
-                    " id VARCHAR(20) NOT NULL PRIMARY KEY," +
-                    " username VARCHAR(32) NOT NULL" +
-                    ") COLLATE utf8mb4_unicode_ci;");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS user_aliases(" +
-                    " id INT AUTO_INCREMENT PRIMARY KEY," +
-                    " userId VARCHAR(20) NOT NULL," +
-                    " alias VARCHAR(32) NOT NULL," +
-                    " FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE" +
-                    ") COLLATE utf8mb4_unicode_ci;");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS messages(" +
-                    " id VARCHAR(20) NOT NULL PRIMARY KEY," +
-                    " channelId VARCHAR(20) NOT NULL," +
-                    " authorId VARCHAR(20) NOT NULL," +
-                    " content VARCHAR(2000) NOT NULL," +
-                    " created DATETIME(3) NOT NULL," +
-                    " deleted BIT(1) DEFAULT 0 NOT NULL," +
-                    " FOREIGN KEY (authorId) REFERENCES users(id) ON DELETE NO ACTION," +
-                    " FOREIGN KEY (channelId) REFERENCES channels(id) ON DELETE CASCADE" +
-                    ") COLLATE utf8mb4_unicode_ci;");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS message_edits(" +
-                    " id INT AUTO_INCREMENT PRIMARY KEY," +
-                    " messageId VARCHAR(20) NOT NULL," +
-                    " content VARCHAR(2000) NOT NULL," +
-                    " edited DATETIME(3) NOT NULL," +
-                    " FOREIGN KEY (messageId) REFERENCES messages(id) ON DELETE CASCADE" +
-                    ") COLLATE utf8mb4_unicode_ci;");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS bans(" +
-                    " id INT AUTO_INCREMENT PRIMARY KEY," +
-                    " guildId VARCHAR(20) NOT NULL," +
-                    " bannedId VARCHAR(20) NOT NULL," +
-                    " executorId VARCHAR(20) NOT NULL," +
-                    " reason VARCHAR(250) NOT NULL," +
-                    " created DATETIME NOT NULL," +
-                    " FOREIGN KEY (bannedId) REFERENCES users(id) ON DELETE NO ACTION," +
-                    " FOREIGN KEY (executorId) REFERENCES users(id) ON DELETE NO ACTION," +
-                    " FOREIGN KEY (guildId) REFERENCES guilds(id) ON DELETE CASCADE" +
-                    ") COLLATE utf8mb4_unicode_ci;");
-            statement.executeUpdate("CREATE TABLE IF NOT EXISTS histories(" +
-                    " id INT AUTO_INCREMENT PRIMARY KEY," +
-                    " userId VARCHAR(20) NOT NULL," +
-                    " channelId VARCHAR(20) NOT NULL," +
-                    " created DATETIME DEFAULT CURRENT_TIMESTAMP NOT NULL," +
-                    " FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE," +
-                    " FOREIGN KEY (channelId) REFERENCES channels(id) ON DELETE CASCADE" +
-                    ") COLLATE utf8mb4_unicode_ci;");
-            statement.close();
-            conn.commit();
-            LOG.info("Tables checked/created");
-            return true;
-        } catch(SQLException e) {
+            Files.write(tmp, DbMetrics.toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+            //readers never see a half-written dump
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return "Metrics written to " + path;
+        } catch(IOException e) {
             LOG.log(e);
-            try {
-                conn.rollback();
-            } catch(SQLException e1) {
-                LOG.log(e1);
-            }
-            close();
-        } finally {
-            if(conn != null) {
-                try {
-                    conn.setAutoCommit(true);
-                } catch(SQLException ignored) {
-                }
-            }
+            return "Could not write metrics: " + e.getMessage();
         }
-        return false;
     }
 
-    private static void onTimeout() {
-        LOG.fatal("SQL-Query timed out during execution! Closing DB...");
-        close();
+    /**
+     * Starts the online migration of the id-columns to BIGINT in the background.
+     *
+     * @return
+     *      a status-message for the user
+     */
+    public static String migrateIds() {
+        if(!initialized)
+            return "DB not available!";
+        return storage.migrateIds();
     }
 
     public static void close() {
         if(!initialized)
             return;
+        initialized = false;
+        //lets the worker hand the pending events to the storage, which flushes them on close
+        worker.shutdown();
         try {
-            guildUpdate.close();
-            guildUpdate2.close();
-            channelUpdate.close();
-            messageInsert.close();
-            messageDelete.close();
-            messageUpdate.close();
-            userUpdate.close();
-            userAliasUpdate.close();
-            banAdd.close();
-            banLookup.close();
-            historyCreate.close();
-        } catch(SQLException e) {
-            LOG.log(e);
+            if(!worker.awaitTermination(BotConfig.<JSONObject>get("db").optLong("shutdownTimeout", 10000), TimeUnit.MILLISECONDS))
+                LOG.warn("Dropped " + worker.shutdownNow().size() + " pending events on shutdown");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        try {
-            conn.close();
-        } catch(SQLException e) {
-            LOG.log(e);
+        worker = null;
+        if(historyServer != null) {
+            historyServer.stop();
+            historyServer = null;
         }
-        conn = null;
-        initialized = false;
-        LOG.info("Database successfully closed");
-    }
-
-    public static class Ban {
-        public final String reason;
-        public final String bannedId, bannedName;
-        public final String executorId, getExecutorName;
-        public final int timestampS;
-
-        public Ban(String reason, String bannedId, String bannedName, String executorId, String getExecutorName, int timestampS) {
-            this.reason = reason;
-            this.bannedId = bannedId;
-            this.bannedName = bannedName;
-            this.executorId = executorId;
-            this.getExecutorName = getExecutorName;
-            this.timestampS = timestampS;
+        if(TaskHelper.getTasks().contains("db-metrics")) {
+            TaskHelper.stop("db-metrics");
+            dumpMetrics();
+        }
+        storage.close();
+        storage = null;
+        if(searchIndex != null) {
+            TaskHelper.stop("db-search");
+            searchIndex.close();
+            searchIndex = null;
         }
+        LOG.info("Database successfully closed");
     }
 
+    /**
+     * Drops all tables of the configured MySQL-database.
+     */
     public static void drop() {
         try {
-            open();
-            LOG.info("Dropping all tables...");
-            conn.setAutoCommit(false);
-            Set<String> tables = new HashSet<>();
-            ResultSet tableRows = conn.getMetaData().getTables(null, null, null, new String[]{"TABLE"});
-            while(tableRows.next()) {
-                tables.add(tableRows.getString("TABLE_NAME").toLowerCase());
-            }
-            tableRows.close();
-            Statement statement = conn.createStatement();
-            statement.setQueryTimeout(10);
-            statement.addBatch("SET FOREIGN_KEY_CHECKS = 0;");
-            for(String table : tables) {
-                statement.addBatch("DROP TABLE " + table + ";");
-            }
-            statement.addBatch("SET FOREIGN_KEY_CHECKS  = 1;");
-            statement.executeBatch();
-            statement.close();
-            conn.commit();
-            LOG.info("All tables dropped!");
-        } catch(SQLException | LoginException e) {
-            try {
-                conn.rollback();
-            } catch(SQLException e1) {
-                LOG.log(e1);
-            }
+            new MySqlStorage(BotConfig.get("db")).drop();
+        } catch(LoginException e) {
             LOG.log(e);
-        } finally {
-            if(conn != null) {
-                try {
-                    conn.setAutoCommit(true);
-                    conn.close();
-                } catch(SQLException e) {
-                    LOG.log(e);
-                }
-                conn = null;
-            }
         }
     }
 
@@ -19,12 +19,14 @@ package com.kantenkugel.discordbot;
 import com.kantenkugel.discordbot.commands.CommandRegistry;
 import com.kantenkugel.discordbot.config.BotConfig;
 import com.kantenkugel.discordbot.listener.DbListener;
+import com.kantenkugel.discordbot.listener.EventDispatcher;
 import com.kantenkugel.discordbot.listener.InviteListener;
 import com.kantenkugel.discordbot.listener.MessageListener;
 import com.kantenkugel.discordbot.listener.StatusListener;
 import com.kantenkugel.discordbot.modules.Module;
 import com.kantenkugel.discordbot.util.UpdateValidator;
 import com.kantenkugel.discordbot.util.UpdateWatcher;
+import com.mashape.unirest.http.Unirest;
 import net.dv8tion.jda.JDABuilder;
 import net.dv8tion.jda.events.Event;
 import net.dv8tion.jda.events.ReadyEvent;
@@ -45,17 +47,15 @@ public class Main {
     /*
     Args:
         0  bot-token
-        1  system-time of wrapper-start (for uptime),
-           OR:
-           "true" -> 2nd bot for only db (rest of params ignored)
+        1  system-time of wrapper-start (for uptime)
         2  success-indicator (true/false/"-")
         3  version-number
         4+ MULTIPLE/NONE strings describing the changelog of this version
     */
     public static void main(String[] args) {
-        boolean isDbBot = false;
         if(args.length == 2 && Boolean.parseBoolean(args[1])) {
-            isDbBot = true;
+            System.out.println("There is no separate db-bot anymore, set \"archive\" in the config of the main bot instead");
+            return;
         } else if(args.length < 4) {
             System.out.println("Missing arguments!");
             return;
@@ -74,35 +74,38 @@ public class Main {
             }
         }
 
-        if(!isDbBot) {
-            Statics.START_TIME = Long.parseLong(args[1]);
-            Statics.VERSION = Integer.parseInt(args[3]);
-        }
+        //interrupts don't end socket-reads of cancelled commands, so bound them (used by the Requester of JDA as well)
+        Unirest.setTimeouts(BotConfig.<Integer>get("httpConnectTimeout", 10000), BotConfig.<Integer>get("httpReadTimeout", 30000));
+
+        Statics.START_TIME = Long.parseLong(args[1]);
+        Statics.VERSION = Integer.parseInt(args[3]);
 
-        if(!isDbBot && args.length > 4) {
+        if(args.length > 4) {
             Statics.CHANGES = StringUtils.join(args, '\n', 4, args.length);
         } else {
             Statics.CHANGES = null;
         }
 
-        if(isDbBot) {
-            if("".equals(BotConfig.get("historyBase"))) {
-                Statics.LOG.fatal("Please specify a history-base in the config");
-                System.exit(Statics.NORMAL_EXIT_CODE);
-            }
-            if(!DbEngine.init()) {
-                Statics.LOG.fatal("Could not connect to db! shutting down");
-                System.exit(Statics.NORMAL_EXIT_CODE);
-            }
-        } else
-            Module.init();
+        Module.init();
+        boolean archive = BotConfig.get("archive", false);
+        if(archive) {
+            if("".equals(BotConfig.get("historyBase")))
+                Statics.LOG.warn("No history-base specified in the config, history-links will not work");
+            archive = DbEngine.init();
+            if(!archive)
+                Statics.LOG.warn("Could not connect to db! Archiving is disabled");
+        }
         try {
             JDABuilder jdaBuilder = new JDABuilder().setBotToken(args[0]).setAudioEnabled(false);
-            if(isDbBot)
-                jdaBuilder.addListener(new DbListener());
-            else
-                jdaBuilder.addListener(new StatusListener()).addListener(new InviteListener()).addListener(new MessageListener());
-            if(!isDbBot && !args[2].equals("-")) {
+            EventDispatcher dispatcher = new EventDispatcher();
+            new StatusListener().register(dispatcher);
+            new InviteListener().register(dispatcher);
+            new MessageListener().register(dispatcher);
+            if(archive)
+                new DbListener().register(dispatcher);
+            Statics.dispatcher = dispatcher.build();
+            jdaBuilder.addListener(dispatcher);
+            if(!args[2].equals("-")) {
                 boolean success = Boolean.parseBoolean(args[2]);
                 if(success) {
                     checker = UpdateValidator.getInstance();
@@ -111,8 +114,7 @@ public class Main {
                 jdaBuilder.addListener(new UpdatePrintListener(success));
             }
             Statics.jdaInstance = jdaBuilder.buildAsync();
-            if(!isDbBot)
-                CommandRegistry.loadCommands(Statics.jdaInstance);
+            CommandRegistry.loadCommands(Statics.jdaInstance);
             new UpdateWatcher(Statics.jdaInstance);
         } catch(LoginException e) {
             Statics.LOG.fatal("Login informations were incorrect!");
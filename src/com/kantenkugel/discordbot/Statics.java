@@ -17,6 +17,7 @@
 package com.kantenkugel.discordbot;
 
 import com.kantenkugel.discordbot.config.BotConfig;
+import com.kantenkugel.discordbot.listener.EventDispatcher;
 import net.dv8tion.jda.JDA;
 import net.dv8tion.jda.JDAInfo;
 import net.dv8tion.jda.entities.User;
@@ -34,6 +35,8 @@ public class Statics {
 
     public static JDA jdaInstance;
 
+    public static EventDispatcher dispatcher;
+
     public static int VERSION;
     public static String CHANGES;
 
@@ -27,8 +27,15 @@ import java.util.function.BiPredicate;
  * Created by Michael Ritter on 06.12.2015.
  */
 public abstract class Command implements BiConsumer<MessageEvent, ServerConfig> {
+    /**
+     * ms a command may run before it gets cancelled (see {@link CommandRunner})
+     */
+    public static final long DEFAULT_TIMEOUT = 30000;
+
     protected Boolean requiresPrivate = null;
     protected Priv priv = Priv.ALL;
+    protected long timeout = DEFAULT_TIMEOUT;
+    protected String[] aliases = new String[0];
     protected BiPredicate<MessageEvent, ServerConfig> customFunction = null;
 
     public boolean isAvailable(MessageEvent event, ServerConfig cfg) {
@@ -87,6 +94,32 @@ public abstract class Command implements BiConsumer<MessageEvent, ServerConfig>
         return priv;
     }
 
+    /**
+     * @param timeout
+     *      ms this command may run before it gets cancelled, 0 for no limit
+     */
+    public Command withTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param aliases
+     *      additional names this command can be called by (see {@link CommandIndex})
+     */
+    public Command withAliases(String... aliases) {
+        this.aliases = aliases;
+        return this;
+    }
+
+    public String[] getAliases() {
+        return aliases;
+    }
+
     public enum Priv {
         BOTADMIN("Bot Admin"), OWNER("Guild Owner"), ADMIN("Guild Admin"), MOD("Guild Mod"), ALL("Other");
 
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.commands;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable lookup of everything a message can trigger in one guild (or PMs): the hard-coded commands,
+ * the global commands, the commands of enabled modules and the text-commands.
+ * <br>Names and aliases are stored lower-cased, so resolving a message is a single case-insensitive map-lookup.
+ * On collisions global commands win over module commands, which win over text-commands. Aliases never shadow a name,
+ * aliases of global commands win over the ones of module commands.
+ * Within each of these, names (or aliases of commands) are taken in sorted order of the registered name and the first wins,
+ * so the outcome of a collision doesn't depend on the order of the given maps.
+ * <br>Instances are rebuilt by {@link com.kantenkugel.discordbot.config.ServerConfig ServerConfig} whenever its
+ * modules or text-commands (or the global commands) change.
+ */
+public class CommandIndex {
+    /**
+     * Hard-coded commands, triggered by the complete (lower-cased) content and independent of the prefix.
+     */
+    private static final Map<String, Entry> BUILTINS;
+    private static final int BUILTIN_MAX_LENGTH;
+
+    static {
+        Map<String, Entry> builtins = new HashMap<>();
+        builtins.put("-kbreset", new Entry(Kind.RESET, "-kbreset", null, null));
+        builtins.put("-kbprefix", new Entry(Kind.PREFIX, "-kbprefix", null, null));
+        builtins.put("help", new Entry(Kind.HELP, "help", null, null));
+        BUILTINS = Collections.unmodifiableMap(builtins);
+        BUILTIN_MAX_LENGTH = builtins.keySet().stream().mapToInt(String::length).max().orElse(0);
+    }
+
+    private final Map<String, Entry> entries;
+    private final int version;
+
+    /**
+     * @param global
+     *      the global commands of the {@link CommandRegistry}
+     * @param modules
+     *      the commands of the enabled modules
+     * @param texts
+     *      the text-commands (name -> response)
+     * @param version
+     *      the version of the global commands this index was built from
+     */
+    public CommandIndex(Map<String, Command> global, Map<String, Command> modules, Map<String, String> texts, int version) {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        Map<String, Command> sortedGlobal = new TreeMap<>(global), sortedModules = new TreeMap<>(modules);
+        sortedGlobal.forEach((name, command) -> entries.putIfAbsent(name.toLowerCase(), new Entry(Kind.COMMAND, name, command, null)));
+        sortedModules.forEach((name, command) -> entries.putIfAbsent(name.toLowerCase(), new Entry(Kind.COMMAND, name, command, null)));
+        new TreeMap<>(texts).forEach((name, text) -> entries.putIfAbsent(name.toLowerCase(), new Entry(Kind.TEXT, name, null, text)));
+        //aliases only after all names are in, so they never shadow one
+        addAliases(entries, sortedGlobal);
+        addAliases(entries, sortedModules);
+        this.entries = Collections.unmodifiableMap(entries);
+        this.version = version;
+    }
+
+    private static void addAliases(Map<String, Entry> entries, Map<String, Command> commands) {
+        commands.forEach((name, command) -> {
+            Entry entry = entries.get(name.toLowerCase());
+            //only aliases of commands that were not shadowed themselves
+            if(entry == null || entry.command != command)
+                return;
+            for(String alias : command.getAliases()) {
+                entries.putIfAbsent(alias.toLowerCase(), entry);
+            }
+        });
+    }
+
+    /**
+     * Resolves the command triggered by a message.
+     *
+     * @param contentLower
+     *      the lower-cased content of the message
+     * @param prefix
+     *      the command-prefix of the guild
+     * @param isPrivate
+     *      whether the message was sent in a PM (the prefix-less help only works there)
+     * @return
+     *      the triggered command, or null if the message doesn't trigger any
+     */
+    public Entry resolve(String contentLower, String prefix, boolean isPrivate) {
+        if(contentLower.length() <= BUILTIN_MAX_LENGTH) {
+            Entry builtin = BUILTINS.get(contentLower);
+            if(builtin != null && (builtin.kind != Kind.HELP || isPrivate))
+                return builtin;
+        }
+        if(!contentLower.regionMatches(true, 0, prefix, 0, prefix.length()))
+            return null;
+        int end = prefix.length();
+        while(end < contentLower.length() && !Character.isWhitespace(contentLower.charAt(end)))
+            end++;
+        return entries.get(contentLower.substring(prefix.length(), end));
+    }
+
+    /**
+     * @param name
+     *      name or alias of a command (any case)
+     * @return
+     *      the global or module-command with that name, or null
+     */
+    public Command getCommand(String name) {
+        Entry entry = entries.get(name.toLowerCase());
+        return entry == null ? null : entry.command;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public enum Kind {
+        RESET, PREFIX, HELP, COMMAND, TEXT
+    }
+
+    public static class Entry {
+        public final Kind kind;
+        /**
+         * the registered name (aliases resolve to the entry of their command)
+         */
+        public final String name;
+        public final Command command;
+        public final String text;
+
+        private Entry(Kind kind, String name, Command command, String text) {
+            this.kind = kind;
+            this.name = name;
+            this.command = command;
+            this.text = text;
+        }
+    }
+}
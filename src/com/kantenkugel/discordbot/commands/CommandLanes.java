@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.commands;
+
+import net.dv8tion.jda.utils.SimpleLog;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the message-handling off the event-thread on a fixed number of lanes (one thread each).
+ * <br>Messages are assigned to a lane by their key (the guild, or the author for PMs), so messages of one guild are
+ * still handled in order, while a slow command only holds up the guilds sharing its lane.
+ * Each lane holds at most {@code queueSize} waiting messages, further ones are dropped (the event-thread never waits).
+ * <br>Per lane the wait-time of messages (lag) is recorded (see {@link #getStats()}).
+ */
+public class CommandLanes {
+    private static final SimpleLog LOG = SimpleLog.getLog("Lanes");
+
+    private final Lane[] lanes;
+
+    public CommandLanes(int count, int queueSize) {
+        lanes = new Lane[Math.max(1, count)];
+        for(int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i, Math.max(1, queueSize));
+            lanes[i].start();
+        }
+    }
+
+    /**
+     * Queues the task on the lane of the given key.
+     *
+     * @return
+     *      false, if the lane was full and the task got dropped
+     */
+    public boolean submit(String key, Runnable task) {
+        Lane lane = lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+        if(lane.queue.offer(new Task(task))) {
+            return true;
+        }
+        if(lane.dropped.incrementAndGet() % 100 == 1)
+            LOG.warn("Lane " + lane.index + " is full, dropped " + lane.dropped.get() + " messages so far");
+        return false;
+    }
+
+    /**
+     * @return
+     *      queue-depth, handled/dropped messages and lag per lane as table
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder(String.format("%-5s%7s%10s%8s%10s%10s%10s\n", "Lane", "Queue", "Handled", "Drops", "Avg-lag", "Max-lag", "Busy"));
+        long now = System.nanoTime();
+        for(Lane lane : lanes) {
+            long handled = lane.handled.get();
+            long busySince = lane.busySince;
+            sb.append(String.format("%-5d%7d%10d%8d%8.1fms%8.1fms%10s\n", lane.index, lane.queue.size(), handled, lane.dropped.get(),
+                    handled == 0 ? 0 : lane.totalLag.get() / 1e6 / handled, lane.maxLag.get() / 1e6,
+                    busySince == 0 ? "-" : String.format("%.1fs", (now - busySince) / 1e9)));
+        }
+        return sb.toString();
+    }
+
+    private static class Task {
+        private final Runnable runnable;
+        private final long queued = System.nanoTime();
+
+        private Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private static class Lane extends Thread {
+        private final int index;
+        private final BlockingQueue<Task> queue;
+        private final AtomicLong handled = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong totalLag = new AtomicLong();
+        private final AtomicLong maxLag = new AtomicLong();
+        private volatile long busySince = 0;
+
+        private Lane(int index, int queueSize) {
+            super("Lane-" + index);
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(!isInterrupted()) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch(InterruptedException e) {
+                    break;
+                }
+                long start = System.nanoTime();
+                long lag = start - task.queued;
+                totalLag.addAndGet(lag);
+                long current;
+                while(lag > (current = maxLag.get()) && !maxLag.compareAndSet(current, lag)) ;
+                busySince = start;
+                try {
+                    task.runnable.run();
+                } catch(RuntimeException ex) {
+                    LOG.log(ex);
+                } finally {
+                    busySince = 0;
+                    handled.incrementAndGet();
+                }
+            }
+        }
+    }
+}
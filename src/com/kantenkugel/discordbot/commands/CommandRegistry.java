@@ -19,15 +19,18 @@ package com.kantenkugel.discordbot.commands;
 import com.kantenkugel.discordbot.Statics;
 import com.kantenkugel.discordbot.commands.sections.CommandSection;
 import com.kantenkugel.discordbot.config.BlackList;
+import com.kantenkugel.discordbot.config.BotConfig;
 import com.kantenkugel.discordbot.config.ServerConfig;
 import com.kantenkugel.discordbot.listener.MessageEvent;
 import com.kantenkugel.discordbot.util.ClassEnumerator;
-import com.kantenkugel.discordbot.util.MessageUtil;
 import net.dv8tion.jda.JDA;
 import net.dv8tion.jda.utils.SimpleLog;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.kantenkugel.discordbot.util.MessageUtil.reply;
 
@@ -35,15 +38,21 @@ import static com.kantenkugel.discordbot.util.MessageUtil.reply;
  * Created by Michael Ritter on 06.12.2015.
  */
 public class CommandRegistry {
-    private static final Map<String, Command> commands = new HashMap<>();
-    public static final Map<String, ServerConfig> serverConfigs = new HashMap<>();
+    private static final Map<String, Command> commands = new ConcurrentHashMap<>();
+    //written on the event-thread, read by the lanes
+    public static final Map<String, ServerConfig> serverConfigs = new ConcurrentHashMap<>();
+    private static final CommandLanes lanes = new CommandLanes(BotConfig.get("commandLanes", 4), BotConfig.get("commandLaneQueue", 100));
+    private static final CommandRunner runner = new CommandRunner(BotConfig.get("commandThreads", 64), BotConfig.get("commandQueue", 500),
+            BotConfig.get("httpReadTimeout", 30000));
 
     private static final SimpleLog pmLog = SimpleLog.getLog("PM");
     private static final SimpleLog mentionLog = SimpleLog.getLog("Mention");
     private static final SimpleLog commandLog = SimpleLog.getLog("Command");
 
-    private static long msgCount = 0;
-    private static int cmdCount = 0;
+    private static final AtomicLong msgCount = new AtomicLong();
+    private static final AtomicInteger cmdCount = new AtomicInteger();
+    //bumped whenever the global commands change, so the CommandIndex of every ServerConfig gets rebuilt
+    private static volatile int version = 0;
 
     public static void loadCommands(JDA api) {
         commands.clear();
@@ -59,16 +68,35 @@ public class CommandRegistry {
                 e.printStackTrace();
             }
         });
+        version++;
     }
 
+    public static Map<String, Command> getCommands() {
+        return Collections.unmodifiableMap(commands);
+    }
+
+    public static int getVersion() {
+        return version;
+    }
+
+    /**
+     * Queues the message on the lane of its guild (see {@link CommandLanes}).
+     */
     public static void handle(MessageEvent event) {
-        msgCount++;
+        msgCount.incrementAndGet();
+        lanes.submit(event.isPrivate() ? event.getAuthor().getId() : event.getGuild().getId(), () -> process(event));
+    }
 
+    private static void process(MessageEvent event) {
         //load correct config-file
         ServerConfig cfg;
         if(!event.isPrivate()) {
             cfg = serverConfigs.get(event.getGuild().getId());
-            if(event.getMessage().getMentionedUsers().contains(event.getJDA().getSelfInfo()) || event.getMessage().getMentionedUsers().contains(Statics.botOwner)) {
+            if(cfg == null) {
+                //guild just joined or configs are being reloaded (reconnect)
+                return;
+            }
+            if(event.isMentioned(event.getJDA().getSelfInfo()) || event.isMentioned(Statics.botOwner)) {
                 mentionLog.info(String.format("[%s][%s] %s:%s", event.getGuild().getName(), event.getTextChannel().getName(),
                         event.getAuthor().getUsername(), event.getContent()));
             }
@@ -89,59 +117,52 @@ public class CommandRegistry {
             return;
         }
 
-        //handle hard-coded commands
-        if(event.getMessage().getContent().equals("-kbreset") && cfg.isOwner(event.getAuthor())) {
-            cfg.setPrefix(ServerConfig.DEFAULT_PREFIX);
-            reply(event, cfg, "Prefix was reset to default (" + ServerConfig.DEFAULT_PREFIX + ")");
-            return;
-        }
-        if(event.getMessage().getContent().equals("-kbprefix")) {
-            reply(event, cfg, "Current command-prefix is: `" + cfg.getPrefix() + '`');
-            return;
-        }
-        if(event.isPrivate() && event.getContent().equalsIgnoreCase("help")) {
-            commands.get("help").accept(event, cfg);
+        //resolve hard-coded, global, module and text-commands in one lookup
+        CommandIndex.Entry entry = cfg.getCommandIndex().resolve(event.getContentLower(), cfg.getPrefix(), event.isPrivate());
+        if(entry == null) {
             return;
         }
-
-        //Handle registered commands
-        if(event.getContent().startsWith(cfg.getPrefix())) {
-            String[] args = MessageUtil.getArgs(event, cfg);
-            if(commands.containsKey(args[0])) {
-                if(commands.get(args[0]).isAvailable(event, cfg)) {
-                    cmdCount++;
-                    commandLog.info(String.format("[%s][%s] %s: %s", event.isPrivate() ? "PM" : event.getGuild().getName(),
-                            event.isPrivate() ? event.getAuthor().getUsername() : event.getTextChannel().getName(),
-                            event.getAuthor().getUsername(), event.getMessage().getContent().substring(cfg.getPrefix().length())));
-                    commands.get(args[0]).accept(event, cfg);
+        switch(entry.kind) {
+            case RESET:
+                if(cfg.isOwner(event.getAuthor())) {
+                    cfg.setPrefix(ServerConfig.DEFAULT_PREFIX);
+                    reply(event, cfg, "Prefix was reset to default (" + ServerConfig.DEFAULT_PREFIX + ")");
                 }
-
-            } else if(cfg.getCommands().containsKey(args[0])) {
-                if(cfg.getCommands().get(args[0]).isAvailable(event, cfg)) {
-                    cmdCount++;
+                break;
+            case PREFIX:
+                reply(event, cfg, "Current command-prefix is: `" + cfg.getPrefix() + '`');
+                break;
+            case HELP:
+                runner.run("help", commands.get("help"), event, cfg);
+                break;
+            case COMMAND:
+                if(entry.command.isAvailable(event, cfg)) {
+                    cmdCount.incrementAndGet();
                     commandLog.info(String.format("[%s][%s] %s: %s", event.isPrivate() ? "PM" : event.getGuild().getName(),
                             event.isPrivate() ? event.getAuthor().getUsername() : event.getTextChannel().getName(),
-                            event.getAuthor().getUsername(), event.getMessage().getContent().substring(cfg.getPrefix().length())));
-                    cfg.getCommands().get(args[0]).accept(event, cfg);
+                            event.getAuthor().getUsername(), event.getContent().substring(cfg.getPrefix().length())));
+                    runner.run(entry.name, entry.command, event, cfg);
                 }
-            } else if(!event.isPrivate()) {
-                if(cfg.isRestrictTexts() && !cfg.isMod(event.getAuthor())) {
+                break;
+            case TEXT:
+                if(event.isPrivate() || (cfg.isRestrictTexts() && !cfg.isMod(event.getAuthor()))) {
                     //texts only available to mods
                     return;
                 }
-                Map<String, String> textCommands = cfg.getTextCommands();
-                if(textCommands.containsKey(args[0])) {
-                    reply(event, cfg, textCommands.get(args[0]));
-                }
-            }
+                reply(event, cfg, entry.text);
+                break;
         }
     }
 
     public static long getMessageCount() {
-        return msgCount;
+        return msgCount.get();
     }
 
     public static int getCommandCount() {
-        return cmdCount;
+        return cmdCount.get();
+    }
+
+    public static String getLaneStats() {
+        return lanes.getStats() + "Commands: " + runner.getStats();
     }
 }
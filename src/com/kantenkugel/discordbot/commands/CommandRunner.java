@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.commands;
+
+import com.kantenkugel.discordbot.config.ServerConfig;
+import com.kantenkugel.discordbot.listener.MessageEvent;
+import net.dv8tion.jda.utils.SimpleLog;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.kantenkugel.discordbot.util.MessageUtil.reply;
+
+/**
+ * Runs command-bodies with a deadline ({@link Command#getTimeout()}).
+ * <br>The body runs on a thread of this pool while its lane waits for it, so the commands of a guild still run one
+ * after another and in order. The deadline starts once the body starts running. Commands still running after it get
+ * interrupted and the user is told that the command took too long.
+ * <br>Cancellation is cooperative: interrupts end waits and sleeps and loops should check {@link #isCancelled()},
+ * but they don't end blocking socket-reads. Those are bounded by the read-timeout of the http-clients
+ * ({@code httpReadTimeout}, set on startup), so the lane waits that long at most for a cancelled body to exit before
+ * moving on. Only a body that is still stuck after that (eg busy without checking {@link #isCancelled()}) can overlap
+ * with the next command of its guild and its ServerConfig.
+ * <br>At most {@code commandThreads} commands run at once, {@code commandQueue} more wait for a thread.
+ */
+public class CommandRunner {
+    private static final SimpleLog LOG = SimpleLog.getLog("Command");
+
+    private final ThreadPoolExecutor pool;
+    private final ScheduledThreadPoolExecutor watchdog;
+    private final long exitTimeout;
+    private final AtomicLong started = new AtomicLong(), timedOut = new AtomicLong(), rejected = new AtomicLong();
+
+    /**
+     * @param exitTimeout
+     *      ms to wait for a cancelled command to exit, should cover the read-timeout of the http-clients
+     */
+    public CommandRunner(int threads, int queueSize, long exitTimeout) {
+        this.exitTimeout = exitTimeout;
+        AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, queueSize)), r -> {
+            Thread thread = new Thread(r, "Command-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        //idle threads go away, so the pool only grows while there is load
+        pool.allowCoreThreadTimeOut(true);
+        watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "Command-Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Runs the given command and waits until it finished, or was cancelled and exited (up to the exit-timeout).
+     *
+     * @param name
+     *      name of the command, for the timeout-reply
+     */
+    public void run(String name, Command command, MessageEvent event, ServerConfig cfg) {
+        Execution execution = new Execution(name, command, event, cfg);
+        try {
+            pool.execute(execution.future);
+        } catch(RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            reply(event, cfg, "I am too busy right now, please try again in a moment");
+            return;
+        }
+        started.incrementAndGet();
+        try {
+            execution.future.get();
+        } catch(CancellationException ex) {
+            //timed out, the watchdog replied already. the body may still be in a call that ignores the interrupt
+            try {
+                if(!execution.exited.await(exitTimeout, TimeUnit.MILLISECONDS))
+                    LOG.warn("Cancelled " + name + " did not exit within " + exitTimeout + "ms, moving on without it");
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } catch(ExecutionException ex) {
+            LOG.log(ex);
+        } catch(InterruptedException ex) {
+            execution.future.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * For long-running command-bodies to check whether they should stop.
+     *
+     * @return
+     *      true, if the current command was cancelled
+     */
+    public static boolean isCancelled() {
+        return Thread.currentThread().isInterrupted();
+    }
+
+    public String getStats() {
+        return String.format("%d running, %d queued, %d started, %d timed out, %d rejected",
+                pool.getActiveCount(), pool.getQueue().size(), started.get(), timedOut.get(), rejected.get());
+    }
+
+    private class Execution implements Runnable {
+        private final String name;
+        private final Command command;
+        private final MessageEvent event;
+        private final ServerConfig cfg;
+        private final FutureTask<Void> future = new FutureTask<>(this, null);
+        private final CountDownLatch exited = new CountDownLatch(1);
+
+        private Execution(String name, Command command, MessageEvent event, ServerConfig cfg) {
+            this.name = name;
+            this.command = command;
+            this.event = event;
+            this.cfg = cfg;
+        }
+
+        @Override
+        public void run() {
+            //time spent waiting for a thread doesn't count
+            long timeout = command.getTimeout();
+            ScheduledFuture<?> watch = timeout > 0 ? watchdog.schedule(() -> {
+                //false if it finished in the meantime
+                if(future.cancel(true)) {
+                    timedOut.incrementAndGet();
+                    LOG.warn("Cancelled " + name + " after " + timeout + "ms");
+                    reply(event, cfg, "Sorry, `" + name + "` took too long (more than " + timeout / 1000 + "s) and was cancelled");
+                }
+            }, timeout, TimeUnit.MILLISECONDS) : null;
+            try {
+                command.accept(event, cfg);
+            } catch(RuntimeException ex) {
+                //a cancelled command often ends with an exception of the interrupted call
+                if(!isCancelled())
+                    LOG.log(ex);
+            } finally {
+                if(watch != null)
+                    watch.cancel(false);
+                exited.countDown();
+            }
+        }
+    }
+}
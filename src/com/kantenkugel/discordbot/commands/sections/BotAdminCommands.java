@@ -16,12 +16,14 @@
 
 package com.kantenkugel.discordbot.commands.sections;
 
+import com.kantenkugel.discordbot.DbEngine;
 import com.kantenkugel.discordbot.Statics;
 import com.kantenkugel.discordbot.commands.Command;
 import com.kantenkugel.discordbot.commands.CommandRegistry;
 import com.kantenkugel.discordbot.commands.CommandWrapper;
 import com.kantenkugel.discordbot.commands.CustomCommand;
 import com.kantenkugel.discordbot.config.BlackList;
+import com.kantenkugel.discordbot.db.DbMetrics;
 import com.kantenkugel.discordbot.util.FinderUtil;
 import com.kantenkugel.discordbot.util.MessageUtil;
 import com.kantenkugel.discordbot.util.MiscUtil;
@@ -34,6 +36,7 @@ import net.dv8tion.jda.entities.User;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
+import java.sql.SQLException;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
@@ -93,6 +96,14 @@ public class BotAdminCommands implements CommandSection {
             MiscUtil.shutdown(Statics.UPDATE_EXIT_CODE);
         }).acceptPriv(Command.Priv.BOTADMIN));
 
+        registry.put("events", new CommandWrapper("Shows how many gateway-events of each type were handled and how long that took.", (msg, cfg) -> {
+            reply(msg, new MessageBuilder().appendString("Events:\n").appendCodeBlock(Statics.dispatcher.getStats(), "").build());
+        }).acceptPriv(Command.Priv.BOTADMIN));
+
+        registry.put("lanes", new CommandWrapper("Shows the load and lag of the lanes handling messages and the commands running.", (msg, cfg) -> {
+            reply(msg, new MessageBuilder().appendString("Lanes:\n").appendCodeBlock(CommandRegistry.getLaneStats(), "").build());
+        }).acceptPriv(Command.Priv.BOTADMIN));
+
         //Blacklist
         registry.put("blacklist", new CommandWrapper("Blocks users from accessing features of this bot.\n" +
                 "Usage: `blacklist add|remove|del @Mention [@Mention]`\nOr: `blacklist add|remove|del userid`\n" +
@@ -156,5 +167,76 @@ public class BotAdminCommands implements CommandSection {
                 msg.updateMessage("Ping: " + ping + "ms");
             });
         }).acceptPriv(Command.Priv.BOTADMIN));
+
+        registerDb(registry);
+    }
+
+    private void registerDb(Map<String, Command> registry) {
+        registry.put("dbstats", new CommandWrapper("Shows the state of the message-archive.", (e, cfg) -> {
+            reply(e, new MessageBuilder().appendString("DB-Stats:\n").appendCodeBlock(DbEngine.getStats(), "").build());
+        }).acceptPriv(Command.Priv.BOTADMIN));
+        registry.put("dbmetrics", new CommandWrapper("Shows the latencies of the archive-statements.\n" +
+                "Usage: `dbmetrics [json|reset]` with json writing them to the metricsFile", (e, cfg) -> {
+            String[] args = MessageUtil.getArgs(e, cfg, 2);
+            String arg = args.length == 2 ? args[1].trim() : "";
+            if(arg.equals("json")) {
+                reply(e, cfg, DbEngine.dumpMetrics());
+            } else if(arg.equals("reset")) {
+                DbMetrics.reset();
+                reply(e, cfg, "Metrics reset");
+            } else {
+                String metrics = DbEngine.getMetrics();
+                reply(e, new MessageBuilder().appendString("DB-Metrics:\n")
+                        .appendCodeBlock(metrics.length() > 1950 ? metrics.substring(0, 1947) + "..." : metrics, "").build());
+            }
+        }).acceptPriv(Command.Priv.BOTADMIN));
+        registry.put("dbmigrate", new CommandWrapper("Migrates the id-columns of the archive to BIGINT in the background.", (e, cfg) -> {
+            reply(e, cfg, DbEngine.migrateIds());
+        }).acceptPriv(Command.Priv.BOTADMIN));
+        registry.put("dbconvertedits", new CommandWrapper("Delta-encodes the message-edits stored before in the background.", (e, cfg) -> {
+            reply(e, cfg, DbEngine.convertEdits());
+        }).acceptPriv(Command.Priv.BOTADMIN));
+        registry.put("dbbackfill", new CommandWrapper("Imports the message-history of all readable channels into the archive.", (e, cfg) -> {
+            reply(e, cfg, DbEngine.backfillMessages(e.getJDA()));
+        }).acceptPriv(Command.Priv.BOTADMIN));
+        registry.put("dbsearchbackfill", new CommandWrapper("Adds the messages archived before the search-index existed to it.", (e, cfg) -> {
+            reply(e, cfg, DbEngine.backfillSearch());
+        }).acceptPriv(Command.Priv.BOTADMIN));
+        //the query-governor enforces its own time-limit, running queries can be cancelled with dbcancel
+        registry.put("dbquery", new CommandWrapper("Runs an ad-hoc query against the archive.\n" +
+                "Usage: `dbquery SQL`", (e, cfg) -> {
+            String[] args = MessageUtil.getArgs(e, cfg, 2);
+            if(args.length < 2) {
+                reply(e, cfg, registry.get("dbquery").getDescription());
+                return;
+            }
+            try {
+                DbEngine.query(args[1].trim(), chunk -> reply(e, new MessageBuilder().appendCodeBlock(chunk, "").build()));
+            } catch(SQLException ex) {
+                reply(e, cfg, "Query failed: " + ex.getMessage());
+            }
+        }).withTimeout(0).acceptPriv(Command.Priv.BOTADMIN));
+        registry.put("dbqueries", new CommandWrapper("Shows the running ad-hoc queries.", (e, cfg) -> {
+            reply(e, new MessageBuilder().appendString("Running queries:\n").appendCodeBlock(DbEngine.getRunningQueries(), "").build());
+        }).acceptPriv(Command.Priv.BOTADMIN));
+        registry.put("dbcancel", new CommandWrapper("Cancels a running ad-hoc query.\n" +
+                "Usage: `dbcancel ID` with ID as shown by dbqueries", (e, cfg) -> {
+            String[] args = MessageUtil.getArgs(e, cfg, 2);
+            reply(e, cfg, DbEngine.cancelQuery(args.length == 2 ? args[1].trim() : ""));
+        }).acceptPriv(Command.Priv.BOTADMIN));
+        registry.put("dbversions", new CommandWrapper("Shows all stored versions of a message.\n" +
+                "Usage: `dbversions MESSAGEID`", (e, cfg) -> {
+            String[] args = MessageUtil.getArgs(e, cfg, 2);
+            if(args.length < 2) {
+                reply(e, cfg, registry.get("dbversions").getDescription());
+                return;
+            }
+            List<String> versions = DbEngine.getMessageVersions(args[1].trim());
+            StringBuilder sb = new StringBuilder(versions.isEmpty() ? "Message not found" : versions.size() + " versions:\n");
+            for(int i = 0; i < versions.size(); i++) {
+                sb.append(i).append(": ").append(versions.get(i)).append('\n');
+            }
+            reply(e, new MessageBuilder().appendString(sb.length() > 2000 ? sb.substring(0, 1997) + "..." : sb.toString()).build());
+        }).acceptPriv(Command.Priv.BOTADMIN));
     }
 }
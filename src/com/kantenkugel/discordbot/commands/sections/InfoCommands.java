@@ -16,6 +16,7 @@
 
 package com.kantenkugel.discordbot.commands.sections;
 
+import com.kantenkugel.discordbot.DbEngine;
 import com.kantenkugel.discordbot.Statics;
 import com.kantenkugel.discordbot.commands.Command;
 import com.kantenkugel.discordbot.commands.CommandRegistry;
@@ -46,14 +47,12 @@ public class InfoCommands implements CommandSection {
         registry.put("help", new CommandWrapper("HELP ME WITH HELP", (m, cfg) -> {
             String[] args = MessageUtil.getArgs(m, cfg, 3);
             if(args.length > 1) {
-                Command command = registry.get(args[1].toLowerCase());
-                if(command == null) {
-                    command = cfg.getCommands().get(args[1].toLowerCase());
-                }
+                Command command = cfg.getCommandIndex().getCommand(args[1]);
                 if(command == null || !command.isAvailable(m, cfg)) {
                     reply(m, cfg, "Provided Command does not exist or is not available to you!");
                 } else {
-                    reply(m, cfg, "Help for " + args[1].toLowerCase() + ":\n" + command.getDescription(), false);
+                    String aliases = command.getAliases().length == 0 ? "" : "\nAliases: " + StringUtils.join(command.getAliases(), ", ");
+                    reply(m, cfg, "Help for " + args[1].toLowerCase() + ":\n" + command.getDescription() + aliases, false);
                 }
                 return;
             }
@@ -114,12 +113,13 @@ public class InfoCommands implements CommandSection {
         }).acceptPrivate(false));
 
         registry.put("stats", new CommandWrapper("Displays some stats about KanzeBot", (e, cfg) -> {
-            String stats = String.format("%-15s%s\n%-15s%s\n%-15s%s\n%-15s%s\n%-15s%s\n%-15s%s\n\n%s\n%s",
+            String stats = String.format("%-15s%s\n%-15s%s\n%-15s%s\n%-15s%s\n%-15s%s\n%-15s%s\n%-15s%s\n\n%s\n%s",
                     "Guilds:", e.getJDA().getGuilds().size(),
                     "Users (Unique):", e.getJDA().getGuilds().stream().map(g -> g.getUsers().size()).reduce(0, (s1, s2) -> s1 + s2) + " (" + e.getJDA().getUsers().size() + ')',
                     "Uptime:", MiscUtil.getUptime(),
                     "Messages seen:", CommandRegistry.getMessageCount(),
                     "Commands seen:", CommandRegistry.getCommandCount(),
+                    "Database:", DbEngine.getStatus(),
                     "Version rev:", Statics.VERSION,
                     "Changes of current version:", Statics.CHANGES);
             reply(e, new MessageBuilder().appendString("Stats for KanzeBot:\n")
@@ -18,6 +18,7 @@ package com.kantenkugel.discordbot.commands.sections;
 
 import com.kantenkugel.discordbot.Statics;
 import com.kantenkugel.discordbot.commands.Command;
+import com.kantenkugel.discordbot.commands.CommandRunner;
 import com.kantenkugel.discordbot.commands.CommandWrapper;
 import com.kantenkugel.discordbot.util.MessageUtil;
 import com.kantenkugel.discordbot.util.MiscUtil;
@@ -59,7 +60,7 @@ public class MiscCommands implements CommandSection {
         registry.put("mentioned", new CommandWrapper("Looks for the last message in this Channel where you got mentioned.", (e, cfg) -> {
             MessageHistory messageHistory = new MessageHistory(e.getTextChannel());
             User user = e.getMessage().getMentionedUsers().size() > 0 ? e.getMessage().getMentionedUsers().get(0) : e.getAuthor();
-            for(int i = 0; i < 5; i++) {
+            for(int i = 0; i < 5 && !CommandRunner.isCancelled(); i++) {
                 List<Message> msgs = messageHistory.retrieve();
                 if(msgs == null) {
                     reply(e, cfg, "You have never been mentioned in this channel before!");
@@ -77,7 +78,8 @@ public class MiscCommands implements CommandSection {
                     return;
                 }
             }
-            reply(e, cfg, "Last mention is older than 500 messages!");
+            if(!CommandRunner.isCancelled())
+                reply(e, cfg, "Last mention is older than 500 messages!");
         }).acceptPrivate(false));
 
         registry.put("rip", new CommandWrapper("Rest in Pieces", (e, cfg) -> {
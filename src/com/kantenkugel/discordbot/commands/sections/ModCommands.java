@@ -16,8 +16,12 @@
 
 package com.kantenkugel.discordbot.commands.sections;
 
+import com.kantenkugel.discordbot.DbEngine;
 import com.kantenkugel.discordbot.commands.Command;
 import com.kantenkugel.discordbot.commands.CommandWrapper;
+import com.kantenkugel.discordbot.config.BotConfig;
+import com.kantenkugel.discordbot.db.SearchIndex;
+import com.kantenkugel.discordbot.util.BanCache;
 import com.kantenkugel.discordbot.util.MessageUtil;
 import com.kantenkugel.discordbot.util.MiscUtil;
 import com.kantenkugel.discordbot.util.TaskHelper;
@@ -29,22 +33,31 @@ import net.dv8tion.jda.entities.Message;
 import net.dv8tion.jda.entities.PermissionOverride;
 import net.dv8tion.jda.entities.TextChannel;
 import net.dv8tion.jda.entities.User;
-import net.dv8tion.jda.managers.GuildManager;
 import net.dv8tion.jda.managers.PermissionOverrideManager;
 import net.dv8tion.jda.utils.PermissionUtil;
 import org.apache.commons.lang3.StringUtils;
 
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 import static com.kantenkugel.discordbot.util.MessageUtil.reply;
 
 public class ModCommands implements CommandSection {
+    private static final int BANS_PER_PAGE = 15;
+    private static final int SEARCH_PAGE_SIZE = 10;
+    private static final DateTimeFormatter SEARCH_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
+
     @Override
     public void register(Map<String, Command> registry, JDA api) {
         registerTxtCommands(registry);
         registerKickBan(registry);
         registerMisc(registry);
+        registerArchive(registry);
     }
 
     private void registerTxtCommands(Map<String, Command> registry) {
@@ -52,15 +65,14 @@ public class ModCommands implements CommandSection {
                 "Usage: `addcom NAME TEXT` with NAME being the name/key of the command and TEXT being the response.", (m, cfg) -> {
             String[] args = MessageUtil.getArgs(m, cfg, 3);
             if(args.length == 3) {
-                if(registry.containsKey(args[1].toLowerCase())) {
+                if(cfg.getCommandIndex().getCommand(args[1]) != null) {
                     reply(m, cfg, "Command " + args[1] + " is reserved");
                 } else {
                     Map<String, String> textCommands = cfg.getTextCommands();
                     if(textCommands.containsKey(args[1].toLowerCase())) {
                         reply(m, cfg, "Command " + args[1] + " is already defined, edit it with !editcom");
                     } else {
-                        textCommands.put(args[1].toLowerCase(), args[2]);
-                        cfg.save();
+                        cfg.setTextCommand(args[1].toLowerCase(), args[2]);
                         reply(m, cfg, "Command " + args[1].toLowerCase() + " was created!");
                     }
                 }
@@ -73,8 +85,7 @@ public class ModCommands implements CommandSection {
             if(args.length == 3) {
                 Map<String, String> textCommands = cfg.getTextCommands();
                 if(textCommands.containsKey(args[1].toLowerCase())) {
-                    textCommands.put(args[1].toLowerCase(), args[2]);
-                    cfg.save();
+                    cfg.setTextCommand(args[1].toLowerCase(), args[2]);
                     reply(m, cfg, "Command " + args[1].toLowerCase() + " was edited!");
                     return;
                 }
@@ -86,10 +97,8 @@ public class ModCommands implements CommandSection {
                 "Usage: `delcom NAME`", (m, cfg) -> {
             String[] args = MessageUtil.getArgs(m, cfg, 2);
             if(args.length == 2) {
-                Map<String, String> textCommands = cfg.getTextCommands();
-                if(textCommands.containsKey(args[1].toLowerCase())) {
-                    textCommands.remove(args[1].toLowerCase());
-                    cfg.save();
+                if(cfg.getTextCommands().containsKey(args[1].toLowerCase())) {
+                    cfg.removeTextCommand(args[1].toLowerCase());
                     reply(m, cfg, "Command " + args[1].toLowerCase() + " was removed!");
                     return;
                 }
@@ -131,7 +140,7 @@ public class ModCommands implements CommandSection {
         }).acceptPrivate(false).acceptPriv(Command.Priv.MOD));
 
         registry.put("ban", new CommandWrapper("Bans one or more Users from this Guild.\n" +
-                "Usage: `ban @mention [@mention ...]`", (e, cfg) -> {
+                "Usage: `ban @mention [@mention ...] [reason]`", (e, cfg) -> {
             if(!PermissionUtil.checkPermission(e.getJDA().getSelfInfo(), Permission.BAN_MEMBERS, e.getGuild())) {
                 reply(e, cfg, "I do not have permissions!");
                 return;
@@ -140,12 +149,14 @@ public class ModCommands implements CommandSection {
                 reply(e, cfg, "Please add the user(s) to ban via mentions");
                 return;
             }
+            String[] reason = e.getMessage().getRawContent().replaceAll("<@!?\\d+>", "").trim().split("\\s+", 2);
             String notBanned = "";
             for(User user : e.getMessage().getMentionedUsers()) {
                 if(cfg.isAdmin(user) || user == e.getJDA().getSelfInfo()) {
                     notBanned += user.getUsername() + ", ";
                 } else {
                     e.getGuild().getManager().ban(user, 0);
+                    BanCache.addBan(e.getGuild(), user, e.getAuthor(), reason.length > 1 ? reason[1] : "");
                 }
             }
             reply(e, cfg, notBanned.isEmpty() ? "User(s) banned" : "Following user(s) could not be banned (admin): " + notBanned.substring(0, notBanned.length() - 2));
@@ -158,35 +169,48 @@ public class ModCommands implements CommandSection {
                 return;
             }
             String[] args = MessageUtil.getArgs(e, cfg);
-            if(args.length < 3) {
+            if(args.length < 2) {
                 reply(e, cfg, "Please provide the Ids of users to unban (get them by calling the bans command)");
+                return;
             }
-            GuildManager manager = e.getGuild().getManager();
-            Map<String, User> idMap = new HashMap<>();
-            manager.getBans().forEach(u -> idMap.put(u.getId(), u));
             Set<String> unbanned = new HashSet<>();
-            for(int i = 2; i < args.length; i++) {
-                User user = idMap.get(args[i]);
-                if(user != null) {
-                    manager.unBan(user);
-                    unbanned.add(user.getUsername());
+            for(int i = 1; i < args.length; i++) {
+                BanCache.Ban ban = BanCache.getBan(e.getGuild(), args[i]);
+                if(ban != null) {
+                    e.getGuild().getManager().unBan(ban.user);
+                    BanCache.onUnban(e.getGuild(), ban.user);
+                    unbanned.add(ban.user.getUsername());
                 }
             }
             reply(e, cfg, "Following users got unbanned: " + (unbanned.isEmpty() ? "None! (did you provide Ids?)" : StringUtils.join(unbanned, ", ")));
         }).acceptPrivate(false).acceptPriv(Command.Priv.ADMIN));
 
-        registry.put("bans", new CommandWrapper("Prints out all Users that were banned in this guild (with their id).", (e, cfg) -> {
+        registry.put("bans", new CommandWrapper("Prints out all Users that are banned in this guild (with their id).\n" +
+                "Usage: `bans [page]`", (e, cfg) -> {
             if(!PermissionUtil.checkPermission(e.getJDA().getSelfInfo(), Permission.BAN_MEMBERS, e.getGuild())) {
                 reply(e, cfg, "I do not have permissions!");
                 return;
             }
-            Optional<String> bans = e.getGuild().getManager().getBans().stream().map(u -> u.getUsername() + '(' + u.getId() + ')').reduce((s1, s2) -> s1 + ", " + s2);
-            if(bans.isPresent()) {
-                reply(e, cfg, "Banned users: " + bans.get());
-            } else {
+            List<BanCache.Ban> bans = BanCache.getBans(e.getGuild());
+            if(bans.isEmpty()) {
                 reply(e, cfg, "No Bans found for this Guild");
+                return;
             }
-        }).acceptPrivate(false).acceptPriv(Command.Priv.ADMIN));
+            String[] args = MessageUtil.getArgs(e, cfg);
+            int pages = (bans.size() + BANS_PER_PAGE - 1) / BANS_PER_PAGE;
+            int page = 1;
+            if(args.length > 1) {
+                try {
+                    page = Math.max(1, Math.min(pages, Integer.parseInt(args[1])));
+                } catch(NumberFormatException ignored) {
+                }
+            }
+            StringBuilder sb = new StringBuilder("Banned users (page ").append(page).append('/').append(pages).append("):");
+            for(BanCache.Ban ban : bans.subList((page - 1) * BANS_PER_PAGE, Math.min(bans.size(), page * BANS_PER_PAGE))) {
+                sb.append('\n').append(StringUtils.abbreviate(ban.toString(), 100));
+            }
+            reply(e, cfg, sb.toString());
+        }).acceptPrivate(false).acceptPriv(Command.Priv.ADMIN).withAliases("banlist"));
     }
 
     private void registerMisc(Map<String, Command> registry) {
@@ -258,7 +282,103 @@ public class ModCommands implements CommandSection {
             if(!TaskHelper.start("clear" + m.getTextChannel().getId(), new ClearRunner(m.getTextChannel(), clearTo, mentioned, msg))) {
                 reply(m, cfg, "There is already a clear-task running for this Channel!");
             }
-        }).acceptPrivate(false).acceptPriv(Command.Priv.ADMIN));
+        }).acceptPrivate(false).acceptPriv(Command.Priv.ADMIN).withAliases("purge"));
+    }
+
+    private void registerArchive(Map<String, Command> registry) {
+        registry.put("history", new CommandWrapper("Creates a link to the archived messages of this channel up to now.\n" +
+                "Usage: `history [@Mention]` with the link being created for the mentioned user (default: you)", (e, cfg) -> {
+            List<User> mentioned = e.getMessage().getMentionedUsers();
+            String token = DbEngine.createHistory(mentioned.isEmpty() ? e.getAuthor() : mentioned.get(0), e.getTextChannel());
+            if(token == null) {
+                reply(e, cfg, "History could not be created, the archive is currently not available");
+                return;
+            }
+            reply(e, cfg, "History-link: " + BotConfig.get("historyBase") + token);
+        }).acceptPrivate(false).acceptPriv(Command.Priv.OWNER));
+
+        registry.put("search", new CommandWrapper("Searches the archived messages of this Guild (newest/best matches first).\n" +
+                "Usage: `search [#channel] [@Mention] [after:YYYY-MM-DD] [before:YYYY-MM-DD] [page:N] TERMS` " +
+                "with all TERMS having to be in the message.", (e, cfg) -> {
+            String[] args = MessageUtil.getArgs(e, cfg);
+            List<String> terms = new ArrayList<>();
+            long after = 0, before = Long.MAX_VALUE;
+            int page = 1;
+            try {
+                for(int i = 1; i < args.length; i++) {
+                    String arg = args[i];
+                    if(arg.startsWith("after:")) {
+                        after = LocalDate.parse(arg.substring(6)).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+                    } else if(arg.startsWith("before:")) {
+                        before = LocalDate.parse(arg.substring(7)).plusDays(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+                    } else if(arg.startsWith("page:")) {
+                        page = Integer.parseInt(arg.substring(5));
+                    } else if(!arg.startsWith("<#") && !arg.startsWith("<@")) {
+                        terms.add(arg);
+                    }
+                }
+            } catch(DateTimeParseException | NumberFormatException ex) {
+                reply(e, cfg, "Invalid filter! Dates have to be given as YYYY-MM-DD, pages as number");
+                return;
+            }
+            if(terms.isEmpty()) {
+                reply(e, cfg, "Please provide the terms to search for");
+                return;
+            }
+            List<TextChannel> channels = e.getMessage().getMentionedChannels();
+            List<User> users = e.getMessage().getMentionedUsers();
+            SearchIndex.Query query = new SearchIndex.Query(e.getGuild().getId(), StringUtils.join(terms, ' '))
+                    .channel(channels.isEmpty() ? null : channels.get(0).getId())
+                    .author(users.isEmpty() ? null : users.get(0).getId())
+                    .page(page, SEARCH_PAGE_SIZE);
+            if(after > 0 || before < Long.MAX_VALUE)
+                query.between(after, before);
+            SearchIndex.Result result = DbEngine.search(query);
+            if(result == null) {
+                reply(e, cfg, "Search is not available!");
+                return;
+            }
+            if(result.hits.isEmpty()) {
+                reply(e, cfg, result.total == 0 ? "No messages found" : "There are only " + result.total + " results");
+                return;
+            }
+            List<String> ids = new ArrayList<>(result.hits.size());
+            result.hits.forEach(hit -> ids.add(hit.getId()));
+            Map<String, String> contents = DbEngine.getMessageContents(ids);
+            StringBuilder out = new StringBuilder();
+            for(SearchIndex.Hit hit : result.hits) {
+                TextChannel channel = e.getJDA().getTextChannelById(hit.channelId);
+                User author = e.getJDA().getUserById(hit.authorId);
+                String content = contents.get(hit.getId());
+                out.append('[').append(SEARCH_TIME_FORMAT.format(Instant.ofEpochMilli(hit.getTime()))).append("] #")
+                        .append(channel == null ? hit.channelId : channel.getName()).append(' ')
+                        .append(author == null ? hit.authorId : author.getUsername()).append(": ")
+                        .append(content == null ? "(" + hit.getId() + ", content not available)" : snippet(content, terms))
+                        .append('\n');
+            }
+            int first = (Math.max(1, page) - 1) * SEARCH_PAGE_SIZE + 1;
+            String header = String.format("Results %d-%d of %d (%.1fms):\n", first, first + result.hits.size() - 1, result.total, result.tookMicros / 1000.0);
+            String body = out.length() > 1900 - header.length() ? out.substring(0, 1897 - header.length()) + "..." : out.toString();
+            reply(e, new MessageBuilder().appendString(header).appendCodeBlock(body, "").build());
+        }).acceptPrivate(false).acceptPriv(Command.Priv.MOD));
+    }
+
+    /**
+     * @return
+     *      a single-line excerpt of the content around the first matching term
+     */
+    private static String snippet(String content, List<String> terms) {
+        String flat = content.replace('\n', ' ').replace('`', '\'');
+        String lower = flat.toLowerCase(Locale.ROOT);
+        int match = -1;
+        for(String term : terms) {
+            int index = lower.indexOf(term.toLowerCase(Locale.ROOT));
+            if(index >= 0 && (match < 0 || index < match))
+                match = index;
+        }
+        int start = Math.max(0, match - 40);
+        int end = Math.min(flat.length(), start + 120);
+        return (start > 0 ? "..." : "") + flat.substring(start, end) + (end < flat.length() ? "..." : "");
     }
 
     private static class ClearRunner implements Runnable {
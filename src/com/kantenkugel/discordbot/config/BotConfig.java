@@ -101,12 +101,75 @@ public class BotConfig {
                 .put("carbonKey", "")
                 .put("oauthAppId", "")
                 .put("logToFiles", true)
+                .put("archive", false)          //archive messages into the db (see db-section and historyBase)
+                .put("commandLanes", 4)         //threads handling messages, each guild always uses the same one
+                .put("commandLaneQueue", 100)   //messages waiting per lane before further ones are dropped
+                .put("commandThreads", 64)      //command-threads, incl. ones still stuck in calls of cancelled commands
+                .put("commandQueue", 500)       //commands waiting for a thread before further ones are rejected
+                .put("httpConnectTimeout", 10000) //ms, for all http-calls (incl. the ones of JDA)
+                .put("httpReadTimeout", 30000)  //ms a blocking read may take, cancelled commands are waited for this long at most
                 .put("db", new JSONObject()
+                        .put("storage", "mysql")        //mysql|h2
+                        .put("h2File", "kanzebot")      //db-file of the h2-storage, mem:NAME for in-memory
                         .put("host", "")
                         .put("database", "")
                         .put("user", "")
                         .put("password", "")
-                ).put("historyBase", "");       //eg http://vps.kantenkugel.com:3000/history/
+                        .put("archiveQueueSize", 10000) //events waiting for the archive-worker (backpressure applies here first)
+                        .put("writeQueueSize", 10000)   //writes waiting for the db-writer (backpressure applies here too)
+                        .put("batchSize", 500)
+                        .put("flushInterval", 1000)     //ms
+                        .put("backpressure", "block")   //block|drop, block makes the event-thread wait up to blockTimeout if the archive can't keep up
+                        .put("blockTimeout", 5000)      //ms
+                        .put("coalesceWindow", 2000)    //ms edits/deletes are held back to be coalesced, 0 to disable
+                        .put("editCacheSize", 10000)    //latest versions kept to delta-encode edits
+                        .put("editSnapshotInterval", 10) //store the full content every n edits
+                        .put("shutdownTimeout", 10000)  //ms
+                        .put("userCacheSize", 50000)
+                        .put("poolSize", 4)
+                        .put("borrowTimeout", 10000)    //ms
+                        .put("queryTimeout", 10)        //s, per statement
+                        .put("validationInterval", 30000) //ms
+                        .put("spoolFile", "dbspool.dat") //empty to disable spooling
+                        .put("spoolSize", 64)           //MiB
+                        .put("reconnectBaseDelay", 1000) //ms, doubled per failed attempt
+                        .put("reconnectMaxDelay", 60000) //ms
+                        .put("bulkReconcile", true)     //diff all guilds at once on the archive worker
+                        .put("migrationChunkSize", 5000) //rows copied per statement by -kbdbmigrate
+                        .put("migrationPause", 50)      //ms between chunks
+                        .put("partitioning", false)     //monthly partitions of messages/message_edits (needs BIGINT ids)
+                        .put("partitionsAhead", 3)      //months
+                        .put("retentionMonths", 0)      //months to keep in the db, 0 to keep forever
+                        .put("archiveDir", "archive")   //where dropped partitions are exported to
+                        .put("searchDir", "search")     //search-index directory, empty to disable search
+                        .put("searchFlushSize", 10000)  //messages kept in memory before writing a segment
+                        .put("searchFlushInterval", 60000) //ms
+                        .put("searchMaxSegments", 10)   //segments before merging
+                        .put("searchMaxSegmentDocs", 5000000) //max messages per merged segment
+                        .put("queryMaxRows", 200)       //rows shown of ad-hoc queries (-kbdbquery)
+                        .put("queryMaxChars", 8000)     //chars shown of ad-hoc queries
+                        .put("queryWidthWindow", 50)    //rows column-widths are computed over
+                        .put("queryMaxColumnWidth", 40) //longer values are cut
+                        .put("queryHost", "")           //replica ad-hoc queries run on, empty for host
+                        .put("queryUser", "")           //eg a user with only SELECT-grants, empty for user
+                        .put("queryPassword", "")
+                        .put("queryConcurrency", 2)     //ad-hoc queries running at once
+                        .put("queryTimeLimit", 30)      //s before an ad-hoc query is cancelled
+                        .put("queryMaxCost", 1000000)   //rows an ad-hoc SELECT may examine (EXPLAIN-estimate, mysql only), 0 to disable
+                        .put("backfillFile", "backfill.json") //per-channel positions of -kbdbbackfill
+                        .put("backfillThreads", 4)      //channels imported in parallel
+                        .put("backfillRequestRate", 4)  //history-requests per second (shared by all threads)
+                        .put("backfillMessageRate", 1000) //imported messages per second
+                        .put("backfillMaxDays", 0)      //only import messages of the last n days, 0 for all
+                        .put("metricsFile", "dbmetrics.json") //json-dump of the statement-metrics, empty to disable
+                        .put("metricsInterval", 60000)  //ms between dumps
+                        .put("historyPort", 0)          //port of the embedded history-server, 0 if historyBase is served externally
+                        .put("historyBind", "127.0.0.1") //address the history-server listens on (put a reverse-proxy in front), empty for all
+                        .put("historyThreads", 4)
+                        .put("historyPageSize", 200)    //messages per history-page
+                        .put("historyCacheSize", 500)   //rendered pages kept in memory
+                        .put("historyCacheTtl", 60000)  //ms
+                ).put("historyBase", "");       //eg http://vps.kantenkugel.com:3000/history/ (pointing to /history/ of the history-server)
     }
 
     private BotConfig() {
@@ -17,6 +17,8 @@
 package com.kantenkugel.discordbot.config;
 
 import com.kantenkugel.discordbot.commands.Command;
+import com.kantenkugel.discordbot.commands.CommandIndex;
+import com.kantenkugel.discordbot.commands.CommandRegistry;
 import com.kantenkugel.discordbot.modules.Module;
 import com.kantenkugel.discordbot.util.MessageUtil;
 import net.dv8tion.jda.JDA;
@@ -48,6 +50,7 @@ public class ServerConfig {
     private final Map<String, Module> enabledModules = new HashMap<>();
     private final Map<String, String> textCommands = new HashMap<>();
     private final Map<String, Command> commands = new HashMap<>();
+    private volatile CommandIndex commandIndex = null;
     private JSONObject moduleConfig;
     private String prefix = DEFAULT_PREFIX;
     private boolean restrictTexts = false;
@@ -110,7 +113,20 @@ public class ServerConfig {
     }
 
     public Map<String, String> getTextCommands() {
-        return textCommands;
+        return Collections.unmodifiableMap(textCommands);
+    }
+
+    public synchronized void setTextCommand(String name, String text) {
+        textCommands.put(name, text);
+        rebuildIndex();
+        save();
+    }
+
+    public synchronized void removeTextCommand(String name) {
+        if(textCommands.remove(name) != null) {
+            rebuildIndex();
+            save();
+        }
     }
 
     public void addAdmin(User u) {
@@ -169,7 +185,7 @@ public class ServerConfig {
         return modRoles;
     }
 
-    public void addModule(String moduleName) {
+    public synchronized void addModule(String moduleName) {
         Class<? extends Module> moduleClass = Module.getModules().get(moduleName.toLowerCase());
         if(moduleClass == null) {
             return;
@@ -186,7 +202,7 @@ public class ServerConfig {
         }
     }
 
-    public void removeModule(String moduleName) {
+    public synchronized void removeModule(String moduleName) {
         if(enabledModules.containsKey(moduleName.toLowerCase())) {
             enabledModules.remove(moduleName.toLowerCase());
             recalcCommands();
@@ -202,9 +218,30 @@ public class ServerConfig {
         return commands;
     }
 
+    /**
+     * @return
+     *      the dispatch-index of this config, rebuilt if the global commands were reloaded since it was built
+     */
+    public CommandIndex getCommandIndex() {
+        CommandIndex index = commandIndex;
+        if(index == null || index.getVersion() != CommandRegistry.getVersion()) {
+            index = rebuildIndex();
+        }
+        return index;
+    }
+
+    //callers hold the lock of this config, like rebuildIndex(), which iterates commands
     private void recalcCommands() {
         commands.clear();
         enabledModules.values().forEach(m -> commands.putAll(m.getCommands()));
+        rebuildIndex();
+    }
+
+    private synchronized CommandIndex rebuildIndex() {
+        int version = CommandRegistry.getVersion();
+        CommandIndex index = new CommandIndex(CommandRegistry.getCommands(), commands, textCommands, version);
+        commandIndex = index;
+        return index;
     }
 
     public void save() {
@@ -299,6 +336,7 @@ public class ServerConfig {
         for(String cmdkey : commands.keySet()) {
             textCommands.put(cmdkey, commands.getString(cmdkey));
         }
+        rebuildIndex();
 
         prefix = config.getString("prefix");
         restrictTexts = config.getBoolean("restrictTexts");
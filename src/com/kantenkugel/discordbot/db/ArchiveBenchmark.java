@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import com.kantenkugel.discordbot.DbEngine;
+import org.json.JSONObject;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic load against the archive-path, to find out how many messages per second it sustains.
+ * <p>
+ * Generates the ops {@link com.kantenkugel.discordbot.DbEngine} produces for message-, edit- and delete-events
+ * at a fixed rate from a single thread (like the event-thread of JDA) and hands them to the storage through the same
+ * worker-queue as {@link DbEngine} ({@link DbEngine#createWorker}, so {@code archiveQueueSize} and {@code backpressure} apply).
+ * Channels and authors are zipf-distributed (few busy channels and chatty users, a long tail of quiet ones) and
+ * edits/deletes hit recently sent messages. Everything is derived from {@code seed}, ids and timestamps from a simulated
+ * clock starting at {@code epoch}, so runs with the same arguments produce the same stream.
+ * <p>
+ * Reports the achieved throughput, the latency of each op measured from its scheduled send-time (so a stalled
+ * event-thread shows up in the percentiles instead of just lowering the rate), and the DB round-trips per message
+ * (statement-executions recorded by {@link DbMetrics}).
+ * <p>
+ * Usage: {@code ArchiveBenchmark [key=value ...]}. Keys are the ones of {@link #DEFAULTS}; all other keys are passed to
+ * the storage as db-config (eg {@code batchSize=1000}). Defaults to an in-memory H2 archive.
+ */
+public class ArchiveBenchmark {
+    private static final JSONObject DEFAULTS = new JSONObject()
+            .put("rate", 500)           //ops per second
+            .put("duration", 30)        //s measured
+            .put("warmup", 5)           //s before measuring
+            .put("guilds", 50)
+            .put("channels", 10)        //per guild
+            .put("users", 5000)
+            .put("skew", 1.1)           //zipf-exponent of channel- and user-activity
+            .put("edits", 0.05)         //share of ops editing a recent message
+            .put("deletes", 0.02)       //share of ops deleting a recent message
+            .put("seed", 42)
+            .put("epoch", 1451606400000L);  //ms, simulated time of the first op
+    private static final String[] WORDS = ("the a to and of is in it you that i for on this with be are not have was but what "
+            + "can just do so if at me my no yes jda bot api event guild channel message user error version update help "
+            + "thanks lol java code build null exception token permission role server").split(" ");
+
+    private final JSONObject settings;
+    private final ArchiveStorage storage;
+    private final ThreadPoolExecutor worker;
+    private final Random random;
+    private final Zipf channelPick;
+    private final Zipf userPick;
+    private final double deleteShare, editShare;
+    private final String[][] channels;
+    private final String[] users;
+    private final List<String[]> recent = new ArrayList<>();
+    private final long interval;
+    private final long epoch;
+    //simulated ns since epoch, advances by one interval per op
+    private long elapsed = 0;
+    private long nextId;
+
+    private long messages, edits, deletes;
+
+    public ArchiveBenchmark(JSONObject settings, ArchiveStorage storage, ThreadPoolExecutor worker) {
+        this.settings = settings;
+        this.storage = storage;
+        this.worker = worker;
+        this.interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, settings.getInt("rate"));
+        this.epoch = settings.getLong("epoch");
+        this.nextId = Schema.snowflakeAt(epoch);
+        this.random = new Random(settings.getLong("seed"));
+        int guilds = settings.getInt("guilds");
+        int perGuild = settings.getInt("channels");
+        this.channels = new String[guilds * perGuild][];
+        for(int i = 0; i < channels.length; i++) {
+            //{channelId, guildId}
+            channels[i] = new String[]{Long.toString(1000000 + i), Long.toString(1 + i / perGuild)};
+        }
+        this.users = new String[settings.getInt("users")];
+        for(int i = 0; i < users.length; i++) {
+            users[i] = Long.toString(2000000 + i);
+        }
+        //shuffled, so the busy channels don't all end up in the first guilds
+        Collections.shuffle(Arrays.asList(channels), random);
+        this.channelPick = new Zipf(channels.length, settings.getDouble("skew"));
+        this.userPick = new Zipf(users.length, settings.getDouble("skew"));
+        this.deleteShare = settings.getDouble("deletes");
+        this.editShare = settings.getDouble("edits");
+    }
+
+    /**
+     * Creates the guilds and channels the generated messages are sent to.
+     */
+    public void setup() {
+        Map<String, Map<String, String>> guilds = new TreeMap<>();
+        for(String[] channel : channels) {
+            guilds.computeIfAbsent(channel[1], id -> new HashMap<>()).put(channel[0], "channel-" + channel[0]);
+        }
+        guilds.forEach((id, guildChannels) -> worker.execute(() -> storage.updateGuild(id, "guild-" + id, guildChannels)));
+    }
+
+    /**
+     * Sends ops at the configured rate for the given time.
+     *
+     * @return
+     *      latency of the ops in microseconds, from scheduled to handed to the worker (including waiting for space in its queue)
+     */
+    public DbMetrics.Histogram run(long seconds) {
+        DbMetrics.Histogram latency = new DbMetrics.Histogram();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for(long scheduled = start; scheduled < end; scheduled += interval) {
+            long wait = scheduled - System.nanoTime();
+            if(wait > 0)
+                LockSupport.parkNanos(wait);
+            ArchiveOp op = nextOp();
+            worker.execute(() -> storage.handleMessage(op));
+            latency.record((System.nanoTime() - scheduled) / 1000);
+        }
+        return latency;
+    }
+
+    private ArchiveOp nextOp() {
+        elapsed += interval;
+        long now = epoch + elapsed / 1000000;
+        double kind = random.nextDouble();
+        if(!recent.isEmpty() && kind < deleteShare) {
+            String[] message = recent.remove(random.nextInt(recent.size()));
+            deletes++;
+            return ArchiveOp.delete(message[0]);
+        }
+        if(!recent.isEmpty() && kind < deleteShare + editShare) {
+            String[] message = recent.get(random.nextInt(recent.size()));
+            //typical edit: a typo fixed somewhere or something appended
+            String[] words = message[1].split(" ");
+            words[random.nextInt(words.length)] = WORDS[random.nextInt(WORDS.length)];
+            message[1] = String.join(" ", words) + (random.nextBoolean() ? "" : " " + WORDS[random.nextInt(WORDS.length)]);
+            edits++;
+            return ArchiveOp.edit(message[0], message[1], now);
+        }
+        String[] channel = channels[channelPick.next(random)];
+        String user = users[userPick.next(random)];
+        //snowflake of the simulated time, unless several messages share a millisecond
+        nextId = Math.max(nextId + 1, Schema.snowflakeAt(now));
+        String id = Long.toString(nextId);
+        String content = content();
+        if(recent.size() >= 10000)
+            recent.remove(random.nextInt(recent.size()));
+        recent.add(new String[]{id, content});
+        messages++;
+        return ArchiveOp.message(id, channel[0], user, "user-" + user, content, now);
+    }
+
+    private String content() {
+        //exponentially distributed length, 10 words on average
+        int length = 1 + (int) Math.min(300, -Math.log(1 - random.nextDouble()) * 10);
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < length; i++) {
+            sb.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.length() > 2000 ? sb.substring(0, 2000) : sb.toString();
+    }
+
+    public static void main(String[] args) throws SQLException, InterruptedException {
+        JSONObject settings = new JSONObject(DEFAULTS.toString());
+        JSONObject dbConfig = new JSONObject()
+                .put("storage", "h2")
+                .put("h2File", "mem:benchmark")
+                .put("spoolFile", "")
+                .put("shutdownTimeout", 600000);
+        for(String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if(pair.length != 2) {
+                System.out.println("Usage: ArchiveBenchmark [key=value ...], benchmark-keys and defaults: " + DEFAULTS);
+                return;
+            }
+            (DEFAULTS.has(pair[0]) ? settings : dbConfig).put(pair[0], pair[1]);
+        }
+        ArchiveStorage storage;
+        try {
+            storage = dbConfig.getString("storage").equalsIgnoreCase("mysql") ? new MySqlStorage(dbConfig) : new H2Storage(dbConfig);
+        } catch(javax.security.auth.login.LoginException e) {
+            System.out.println("Missing mysql-settings: " + e.getMessage());
+            return;
+        }
+        storage.open();
+        AtomicLong dropped = new AtomicLong();
+        ThreadPoolExecutor worker = DbEngine.createWorker(dbConfig, dropped);
+        ArchiveBenchmark benchmark = new ArchiveBenchmark(settings, storage, worker);
+        benchmark.setup();
+        System.out.println("Settings: " + settings);
+        System.out.println("Warming up for " + settings.getInt("warmup") + "s...");
+        benchmark.run(settings.getInt("warmup"));
+        DbMetrics.reset();
+        long droppedBefore = dropped.get();
+        long messagesBefore = benchmark.messages;
+        long editsBefore = benchmark.edits;
+        long deletesBefore = benchmark.deletes;
+
+        System.out.println("Measuring for " + settings.getInt("duration") + "s...");
+        long start = System.nanoTime();
+        DbMetrics.Histogram latency = benchmark.run(settings.getInt("duration"));
+        long sent = System.nanoTime();
+        //waits for the worker and then the writer to drain their queues
+        worker.shutdown();
+        worker.awaitTermination(dbConfig.getLong("shutdownTimeout"), TimeUnit.MILLISECONDS);
+        storage.close();
+        long drained = System.nanoTime();
+
+        long messages = benchmark.messages - messagesBefore;
+        long ops = latency.getCount();
+        long roundTrips = 0;
+        for(Map.Entry<String, Long> calls : DbMetrics.getCalls().entrySet()) {
+            //flushes are recorded on top of the statements they execute
+            if(!calls.getKey().equals("writerFlush"))
+                roundTrips += calls.getValue();
+        }
+        double sendSeconds = (sent - start) / 1e9;
+        double totalSeconds = (drained - start) / 1e9;
+        System.out.println(String.format("Ops:          %d (%d messages, %d edits, %d deletes)", ops, messages,
+                benchmark.edits - editsBefore, benchmark.deletes - deletesBefore));
+        System.out.println(String.format("Sent:         %.0f ops/s (target %d), %d dropped by backpressure", ops / sendSeconds,
+                settings.getInt("rate"), dropped.get() - droppedBefore));
+        System.out.println(String.format("Stored:       %.0f ops/s (%.1fs to drain the queue)", ops / totalSeconds, (drained - sent) / 1e9));
+        System.out.println(String.format("Latency:      p50 %dus, p99 %dus, p999 %dus, max %dus", latency.percentile(0.5),
+                latency.percentile(0.99), latency.percentile(0.999), latency.getMax()));
+        System.out.println(String.format("Round-trips:  %d (%.3f per message, %.3f per op)", roundTrips,
+                messages == 0 ? 0 : roundTrips / (double) messages, ops == 0 ? 0 : roundTrips / (double) ops));
+        System.out.println(DbMetrics.format(20));
+    }
+
+    /**
+     * Picks indexes 0..n-1 with probability proportional to 1/(i+1)^skew.
+     */
+    private static class Zipf {
+        private final double[] cumulative;
+
+        private Zipf(int n, double skew) {
+            cumulative = new double[n];
+            double sum = 0;
+            for(int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+            for(int i = 0; i < n; i++) {
+                cumulative[i] /= sum;
+            }
+        }
+
+        private int next(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, index < 0 ? -index - 1 : index);
+        }
+    }
+}
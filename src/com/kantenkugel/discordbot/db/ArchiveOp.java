@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+/**
+ * Plain value-snapshot of a single archive write.
+ * These are created on the event-thread and handed to the {@link ArchiveWriter}, so they must not reference any JDA entities.
+ */
+public class ArchiveOp {
+    public final Type type;
+    /**
+     * Id of the affected entity (message, guild, channel or user - depending on the type)
+     */
+    public final String id;
+    public final String channelId;
+    public final String guildId;
+    public final String authorId, authorName;
+    /**
+     * Name of the affected guild, channel or user
+     */
+    public final String name;
+    public final String content;
+    public final long timestamp;
+
+    ArchiveOp(Type type, String id, String channelId, String guildId, String authorId, String authorName, String name, String content, long timestamp) {
+        this.type = type;
+        this.id = id;
+        this.channelId = channelId;
+        this.guildId = guildId;
+        this.authorId = authorId;
+        this.authorName = authorName;
+        this.name = name;
+        this.content = content;
+        this.timestamp = timestamp;
+    }
+
+    public static ArchiveOp message(String messageId, String channelId, String authorId, String authorName, String content, long created) {
+        return new ArchiveOp(Type.MESSAGE, messageId, channelId, null, authorId, authorName, null, content, created);
+    }
+
+    public static ArchiveOp edit(String messageId, String content, long edited) {
+        return new ArchiveOp(Type.EDIT, messageId, null, null, null, null, null, content, edited);
+    }
+
+    public static ArchiveOp delete(String messageId) {
+        return new ArchiveOp(Type.DELETE, messageId, null, null, null, null, null, null, 0);
+    }
+
+    public static ArchiveOp guild(String guildId, String name) {
+        return new ArchiveOp(Type.GUILD, guildId, null, guildId, null, null, name, null, 0);
+    }
+
+    public static ArchiveOp guildLeave(String guildId) {
+        return new ArchiveOp(Type.GUILD_LEAVE, guildId, null, guildId, null, null, null, null, 0);
+    }
+
+    public static ArchiveOp channel(String channelId, String name, String guildId) {
+        return new ArchiveOp(Type.CHANNEL, channelId, channelId, guildId, null, null, name, null, 0);
+    }
+
+    public static ArchiveOp channelDelete(String channelId) {
+        return new ArchiveOp(Type.CHANNEL_DELETE, channelId, channelId, null, null, null, null, null, 0);
+    }
+
+    public static ArchiveOp user(String userId, String name) {
+        return new ArchiveOp(Type.USER, userId, null, null, userId, name, name, null, 0);
+    }
+
+    public enum Type {
+        MESSAGE, EDIT, DELETE, GUILD, GUILD_LEAVE, CHANNEL, CHANNEL_DELETE, USER;
+
+        /**
+         * @return
+         *      true, if this type describes the state of a guild/channel/user rather than a message
+         */
+        public boolean isStructural() {
+            return ordinal() >= GUILD.ordinal();
+        }
+    }
+}
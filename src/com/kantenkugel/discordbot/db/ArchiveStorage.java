@@ -0,0 +1,249 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage-backend of the archive.
+ * {@link com.kantenkugel.discordbot.DbEngine} translates the JDA-events into calls of this interface,
+ * so implementations only deal with plain ids and values (and can be used without a running bot).
+ * <br>Writes never fail: implementations queue, spool or log them if the storage is unavailable.
+ *
+ * @see MySqlStorage
+ * @see H2Storage
+ */
+public interface ArchiveStorage {
+    /**
+     * Connects and creates missing tables.
+     *
+     * @throws SQLException
+     *      if the storage can not be used
+     */
+    void open() throws SQLException;
+
+    /**
+     * Flushes pending writes and disconnects.
+     */
+    void close();
+
+    /**
+     * Archives a new message, an edit or a delete ({@link ArchiveOp#message}, {@link ArchiveOp#edit}, {@link ArchiveOp#delete}).
+     */
+    void handleMessage(ArchiveOp op);
+
+    /**
+     * Writes the given ops right away (bypassing any queue), for bulk-imports that need to know when their writes are stored.
+     *
+     * @return
+     *      true, if the ops were written; false if the storage is currently unavailable and this should be retried later
+     * @throws SQLException
+     *      if the ops could not be written
+     */
+    boolean archive(List<ArchiveOp> ops) throws SQLException;
+
+    /**
+     * Reconciles the stored guilds and channels with all guilds visible to the bot.
+     *
+     * @param guilds
+     *      id -> name
+     * @param channels
+     *      id -> {name, guildId}
+     */
+    void handleGuilds(Map<String, String> guilds, Map<String, String[]> channels);
+
+    /**
+     * @param channels
+     *      id -> name of all text-channels of the guild. Stored channels not in here are marked as deleted
+     */
+    void updateGuild(String id, String name, Map<String, String> channels);
+
+    void deleteGuild(String id);
+
+    void updateChannel(String id, String name, String guildId);
+
+    void deleteChannel(String id);
+
+    void updateUser(String id, String name);
+
+    void addBan(String guildId, String bannedId, String bannedName, String executorId, String reason);
+
+    List<Ban> getBans(String guildId);
+
+    /**
+     * @return
+     *      the (url-safe, unguessable) token of the new history, null if it could not be created
+     */
+    String createHistory(String userId, String channelId);
+
+    /**
+     * @return
+     *      the history with the given token, null if there is none
+     * @throws SQLException
+     *      if the storage is not available
+     */
+    History getHistory(String token) throws SQLException;
+
+    /**
+     * Reads one page of the messages (including deleted ones) of a channel with their latest content, newest first.
+     * Pages are keyset-paginated on (created, id), so reading a page costs the same no matter how deep into the channel it is.
+     *
+     * @param beforeCreated
+     *      created-time (ms) of the last message of the previous page,
+     *      or the time up to which messages are included (for the first page)
+     * @param beforeId
+     *      id of the last message of the previous page, null for the first page
+     * @return
+     *      up to limit messages
+     * @throws SQLException
+     *      if the storage is not available
+     */
+    List<HistoryMessage> getHistoryPage(String channelId, long beforeCreated, String beforeId, int limit) throws SQLException;
+
+    /**
+     * Runs an ad-hoc query and hands the live result to the handler (while the connection is held).
+     *
+     * @param maxRows
+     *      the most rows the storage has to produce
+     * @return
+     *      what the handler returned
+     * @throws SQLException
+     *      if the query failed or the storage is not available
+     */
+    <T> T query(String query, int maxRows, ResultHandler<T> handler) throws SQLException;
+
+    /**
+     * @return
+     *      the governor of the ad-hoc queries (to list or cancel running ones)
+     */
+    QueryGovernor getQueryGovernor();
+
+    /**
+     * @return
+     *      the original content followed by the content after each edit, or an empty list if the message is unknown
+     */
+    List<String> getMessageVersions(String messageId);
+
+    /**
+     * @return
+     *      id -> latest content of all found messages
+     */
+    Map<String, String> getMessageContents(Collection<String> ids);
+
+    /**
+     * Reads archived (not deleted) messages, newest first.
+     *
+     * @param before
+     *      only messages with a smaller id are returned
+     * @return
+     *      up to limit messages as {id, guildId, channelId, authorId, latest content}
+     */
+    List<String[]> getMessagesBefore(long before, int limit) throws SQLException;
+
+    /**
+     * Starts the migration of VARCHAR-ids to numeric ids in the background.
+     *
+     * @return
+     *      a status-message for the user
+     */
+    String migrateIds();
+
+    /**
+     * Starts the conversion of full-content edits into deltas in the background.
+     *
+     * @return
+     *      a status-message for the user
+     */
+    String convertEdits();
+
+    /**
+     * @return
+     *      true, if writes currently reach the storage (instead of being spooled)
+     */
+    boolean isAvailable();
+
+    /**
+     * @return
+     *      one-line summary of the state
+     */
+    String getStatus();
+
+    /**
+     * @return
+     *      detailed, multi-line statistics
+     */
+    String getStats();
+
+    interface ResultHandler<T> {
+        T handle(ResultSet rs) throws SQLException;
+    }
+
+    class History {
+        public final String token;
+        public final String userId;
+        public final String channelId, channelName;
+        public final String guildName;
+        public final long created;
+
+        public History(String token, String userId, String channelId, String channelName, String guildName, long created) {
+            this.token = token;
+            this.userId = userId;
+            this.channelId = channelId;
+            this.channelName = channelName;
+            this.guildName = guildName;
+            this.created = created;
+        }
+    }
+
+    class HistoryMessage {
+        public final String id;
+        public final String authorId, authorName;
+        public final String content;
+        public final long created;
+        public final boolean edited, deleted;
+
+        public HistoryMessage(String id, String authorId, String authorName, String content, long created, boolean edited, boolean deleted) {
+            this.id = id;
+            this.authorId = authorId;
+            this.authorName = authorName;
+            this.content = content;
+            this.created = created;
+            this.edited = edited;
+            this.deleted = deleted;
+        }
+    }
+
+    class Ban {
+        public final String reason;
+        public final String bannedId, bannedName;
+        public final String executorId, getExecutorName;
+        public final int timestampS;
+
+        public Ban(String reason, String bannedId, String bannedName, String executorId, String getExecutorName, int timestampS) {
+            this.reason = reason;
+            this.bannedId = bannedId;
+            this.bannedName = bannedName;
+            this.executorId = executorId;
+            this.getExecutorName = getExecutorName;
+            this.timestampS = timestampS;
+        }
+    }
+}
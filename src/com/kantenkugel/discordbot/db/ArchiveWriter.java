@@ -0,0 +1,630 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind pipeline for the message archive.
+ * Writes are queued by the event-thread and flushed by this thread as JDBC-batches inside of a single transaction,
+ * either once {@code batchSize} writes are pending or {@code flushInterval} ms have passed.
+ * Edits and deletes are held back for up to {@code coalesceWindow} ms (checked on every flush), so storms of them
+ * (eg. bulk-deletes) end up in a few {@code WHERE id IN (...)} updates and multi-row edit-inserts.
+ * <p>
+ * While the {@link CircuitBreaker} is open, all writes go to the {@link SpoolJournal} instead.
+ * This thread also acts as reconnect-supervisor: it drives the reconnect-attempts of the breaker and,
+ * once the DB is reachable again, replays the journal (in order) before any new writes hit the DB.
+ */
+public class ArchiveWriter extends Thread {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Writer");
+
+    private static final String GUILD_UPSERT = DbMetrics.named("guildUpsert", "INSERT INTO guilds(id, name) VALUES (?, ?) ON DUPLICATE KEY UPDATE name = VALUES(name), last_seen = NULL;");
+    private static final String GUILD_LEAVE = DbMetrics.named("guildLeave", "UPDATE guilds SET last_seen = CURRENT_DATE WHERE id = ?;");
+    private static final String CHANNEL_UPSERT = DbMetrics.named("channelUpsert", "INSERT INTO channels(id, name, guildId) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE name = VALUES(name);");
+    private static final String CHANNEL_DELETE = DbMetrics.named("channelDelete", "UPDATE channels SET deleted = 1 WHERE id = ?;");
+    private static final String USER_UPSERT = DbMetrics.named("userUpsert", "INSERT INTO users(id, username) VALUES (?, ?) ON DUPLICATE KEY UPDATE username = VALUES(username);");
+    private static final String ALIAS_INSERT = DbMetrics.named("aliasInsert", "INSERT INTO user_aliases(userId, alias) SELECT ?, ? FROM DUAL " +
+            "WHERE NOT EXISTS (SELECT 1 FROM user_aliases WHERE userId = ? AND alias = ?);");
+    //not INSERT IGNORE: that would also turn foreign-key violations (unknown channel/author) into warnings and lose the message silently
+    private static final String MESSAGE_INSERT = DbMetrics.named("messageInsert", "INSERT INTO messages(id, channelId, authorId, content, created) VALUES (?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE id = id;");
+    private static final String MESSAGE_DELETE = DbMetrics.named("messageDelete", "UPDATE messages SET deleted = 1 WHERE id IN ");
+    //edits of unknown messages are skipped by the join
+    private static final String MESSAGE_EDITS = DbMetrics.named("messageEdits", "INSERT INTO message_edits (messageId, kind, content, edited) SELECT m.id, e.kind, e.content, e.edited FROM (%s) AS e " +
+            "JOIN messages AS m ON m.id = e.id ORDER BY e.seq;");
+    private static final DbMetrics.Stats FLUSH_STATS = DbMetrics.get("writerFlush");
+    private static final int DELETE_CHUNK = 1000;
+    private static final int EDIT_CHUNK = 250;
+
+    private final ConnectionPool pool;
+    private final SpoolJournal spool;
+    private final CircuitBreaker breaker;
+    private final BlockingQueue<ArchiveOp> queue;
+    private final int batchSize;
+    private final long flushInterval;
+    private final Backpressure backpressure;
+    private final long blockTimeout;
+    private final long coalesceWindow;
+    private final UserCache userCache;
+    private final EditCodec editCodec;
+
+    private volatile boolean running = true;
+    private volatile boolean paused = false;
+    private final Object writeLock = new Object();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long written = 0;
+    private volatile long flushes = 0;
+    private volatile long spooled = 0;
+    private volatile long replayed = 0;
+    private volatile long coalescedDeletes = 0;
+    private volatile long coalescedEdits = 0;
+    private volatile long savedRoundTrips = 0;
+
+    /**
+     * Creates a new, not yet started writer.
+     *
+     * @param pool
+     *      the pool to borrow connections from (one per flush)
+     * @param spool
+     *      the journal used while the DB is unreachable, or null to drop writes during outages
+     * @param breaker
+     *      the circuit-breaker guarding the DB
+     * @param config
+     *      the db-section of the BotConfig
+     * @param userCache
+     *      cache of users already present in the DB. Only users missing from it are upserted.
+     */
+    public ArchiveWriter(ConnectionPool pool, SpoolJournal spool, CircuitBreaker breaker, JSONObject config, UserCache userCache) {
+        super("DB-Writer");
+        this.pool = pool;
+        this.spool = spool;
+        this.breaker = breaker;
+        this.queue = new LinkedBlockingQueue<>(config.optInt("writeQueueSize", 10000));
+        this.batchSize = Math.max(1, config.optInt("batchSize", 500));
+        this.flushInterval = Math.max(10, config.optLong("flushInterval", 1000));
+        this.backpressure = Backpressure.fromString(config.optString("backpressure", "block"));
+        this.blockTimeout = config.optLong("blockTimeout", 5000);
+        this.coalesceWindow = config.optLong("coalesceWindow", 2000);
+        this.userCache = userCache;
+        this.editCodec = new EditCodec(config.optInt("editCacheSize", 10000), config.optInt("editSnapshotInterval", 10));
+        setDaemon(true);
+    }
+
+    /**
+     * Queues a write. Depending on the configured {@link Backpressure}, this will either wait for free queue-space
+     * (up to {@code blockTimeout} ms) or drop the write immediately if the queue is full.
+     *
+     * @param op
+     *      the write to queue
+     * @return
+     *      true, if the write was queued; false if it was dropped
+     */
+    public boolean submit(ArchiveOp op) {
+        if(!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        boolean queued;
+        if(backpressure == Backpressure.BLOCK) {
+            try {
+                queued = queue.offer(op, blockTimeout, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        } else {
+            queued = queue.offer(op);
+        }
+        if(!queued) {
+            if(dropped.getAndIncrement() % 1000 == 0)
+                LOG.warn("Write-queue is full! Dropping writes (" + dropped.get() + " dropped so far)");
+        }
+        return queued;
+    }
+
+    /**
+     * Trips the circuit-breaker. All following writes are spooled until a reconnect succeeds.
+     */
+    public void markUnavailable() {
+        if(breaker.trip())
+            LOG.warn("DB marked as unavailable. Spooling writes until it is reachable again");
+    }
+
+    public boolean isAvailable() {
+        return breaker.isClosed();
+    }
+
+    /**
+     * Stops writing to the DB (writes are spooled instead) until {@link #resumeWrites()} is called.
+     * Waits for a write currently in progress to finish, so the DB is not touched by this writer once this returns.
+     */
+    public void pauseWrites() {
+        paused = true;
+        synchronized(writeLock) {
+            LOG.info("Writer paused");
+        }
+    }
+
+    public void resumeWrites() {
+        paused = false;
+        LOG.info("Writer resumed");
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    public void run() {
+        List<ArchiveOp> batch = new ArrayList<>(batchSize);
+        List<ArchiveOp> mutations = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + flushInterval;
+        long mutationDeadline = 0;
+        while(running) {
+            try {
+                ArchiveOp op = queue.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if(op != null) {
+                    batch.add(op);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch(InterruptedException ignored) {
+                //woken up by shutdown()
+            }
+            if(batch.size() >= batchSize || System.currentTimeMillis() >= deadline) {
+                try {
+                    if(coalesceWindow > 0) {
+                        if(mutations.isEmpty())
+                            mutationDeadline = System.currentTimeMillis() + coalesceWindow;
+                        batch.removeIf(op -> (op.type == ArchiveOp.Type.EDIT || op.type == ArchiveOp.Type.DELETE) && mutations.add(op));
+                        if(!mutations.isEmpty() && (mutations.size() >= batchSize || System.currentTimeMillis() >= mutationDeadline)) {
+                            //appended, so they still come after the inserts of their messages
+                            batch.addAll(mutations);
+                            mutations.clear();
+                        }
+                    }
+                    if(!batch.isEmpty()) {
+                        flush(batch);
+                        batch.clear();
+                    }
+                    if(breaker.attemptReset() && spool != null && !spool.isEmpty()) {
+                        replay();
+                    }
+                } catch(RuntimeException e) {
+                    //a dead writer would silently drop every following write, so keep going without the current batch
+                    LOG.log(e);
+                    if(!batch.isEmpty()) {
+                        dropped.addAndGet(batch.size());
+                        LOG.warn("Discarded " + batch.size() + " writes after an unexpected error");
+                        batch.clear();
+                    }
+                }
+                deadline = System.currentTimeMillis() + flushInterval;
+            }
+        }
+        //flush everything still pending (goes to the spool if the db is gone)
+        batch.addAll(mutations);
+        queue.drainTo(batch);
+        while(!batch.isEmpty()) {
+            List<ArchiveOp> part = batch.subList(0, Math.min(batchSize, batch.size()));
+            flush(part);
+            part.clear();
+        }
+        if(spool != null) {
+            if(!spool.isEmpty())
+                LOG.info(spool.size() + " writes remain spooled until next start");
+            spool.close();
+        }
+    }
+
+    private void flush(List<ArchiveOp> batch) {
+        //keep the order: nothing new may reach the db before the spool is drained
+        if(!breaker.isClosed() || paused || (spool != null && !spool.isEmpty())) {
+            spool(batch);
+            return;
+        }
+        int done = writeSplitting(batch);
+        if(done < batch.size())
+            spool(batch.subList(done, batch.size()));
+    }
+
+    /**
+     * Writes the given ops, bisecting the batch whenever it fails for another reason than the DB being unavailable.
+     * That way, a single bad op (eg. an over-long content) only drops itself instead of the whole batch.
+     *
+     * @return
+     *      the amount of ops from the start of the batch that were written (or dropped as unwritable).
+     *      Less than the batch-size if the DB became unavailable in between.
+     */
+    private int writeSplitting(List<ArchiveOp> batch) {
+        Result result = write(batch);
+        if(result == Result.OK)
+            return batch.size();
+        if(result == Result.UNAVAILABLE)
+            return 0;
+        if(batch.size() == 1) {
+            ArchiveOp op = batch.get(0);
+            dropped.incrementAndGet();
+            LOG.warn("Dropped " + op.type + "-write for " + (op.id == null ? op.authorId : op.id) + " as it could not be written");
+            return 1;
+        }
+        int half = batch.size() / 2;
+        int done = writeSplitting(batch.subList(0, half));
+        if(done < half)
+            return done;
+        return half + writeSplitting(batch.subList(half, batch.size()));
+    }
+
+    private void spool(List<ArchiveOp> batch) {
+        if(spool == null) {
+            dropped.addAndGet(batch.size());
+            LOG.warn("Discarded " + batch.size() + " writes, DB is unavailable and spooling is disabled");
+            return;
+        }
+        int lost = 0;
+        for(ArchiveOp op : batch) {
+            if(!spool.append(op))
+                lost++;
+        }
+        spool.force();
+        spooled += batch.size() - lost;
+        if(lost > 0) {
+            dropped.addAndGet(lost);
+            LOG.warn("Spool is full! Discarded " + lost + " writes");
+        }
+    }
+
+    private void replay() {
+        //only a few batches per cycle, so the queue doesn't back up meanwhile
+        for(int i = 0; i < 10 && breaker.isClosed() && !paused && !spool.isEmpty(); i++) {
+            SpoolJournal.Batch batch = spool.peek(batchSize);
+            int done = writeSplitting(batch.ops);
+            if(done < batch.ops.size()) {
+                //db went away in between. only remove the part that made it
+                if(done > 0) {
+                    spool.commit(spool.peek(done));
+                    replayed += done;
+                }
+                return;
+            }
+            spool.commit(batch);
+            replayed += batch.ops.size();
+            if(spool.isEmpty())
+                LOG.info("Spool fully replayed");
+        }
+    }
+
+    /**
+     * Writes the given ops on the calling thread, bypassing the queue (for bulk-imports that have to know when their
+     * writes are stored). Takes turns with the writer-thread, so at most one batch is written at a time.
+     *
+     * @return
+     *      true, if the ops were written; false if the DB is currently unavailable, writes are paused
+     *      or the spool is still being replayed (same as {@link #flush()}, so nothing overtakes spooled ops)
+     * @throws SQLException
+     *      if the ops could not be written for another reason, eg a message of an unknown channel (logged already)
+     */
+    public boolean writeNow(List<ArchiveOp> ops) throws SQLException {
+        if(!breaker.isClosed() || paused || (spool != null && !spool.isEmpty()))
+            return false;
+        Result result = write(ops);
+        if(result == Result.FAILED)
+            throw new SQLException("Could not write " + ops.size() + " ops");
+        return result == Result.OK;
+    }
+
+    private Result write(List<ArchiveOp> batch) {
+        synchronized(writeLock) {
+            //pauseWrites() may have been called between the check in flush()/replay() and here
+            if(paused)
+                return Result.UNAVAILABLE;
+            long start = System.nanoTime();
+            Result result = doWrite(batch);
+            FLUSH_STATS.record(System.nanoTime() - start, result == Result.OK ? batch.size() : 0, batch.size(), result != Result.OK, false);
+            return result;
+        }
+    }
+
+    private Result doWrite(List<ArchiveOp> batch) {
+        //structural ops are state-updates, so only the last one per entity matters
+        Map<String, ArchiveOp> guilds = new LinkedHashMap<>();
+        Map<String, ArchiveOp> channels = new LinkedHashMap<>();
+        //authors before messages, so the foreign-keys of the messages are satisfied
+        Map<String, String> authors = new LinkedHashMap<>();
+        for(ArchiveOp op : batch) {
+            switch(op.type) {
+                case GUILD:
+                case GUILD_LEAVE:
+                    guilds.remove(op.id);
+                    guilds.put(op.id, op);
+                    break;
+                case CHANNEL:
+                case CHANNEL_DELETE:
+                    channels.remove(op.id);
+                    channels.put(op.id, op);
+                    break;
+                case MESSAGE:
+                case USER:
+                    authors.put(op.authorId, op.authorName);
+                    break;
+            }
+        }
+        authors.entrySet().removeIf(author -> userCache.isCurrent(author.getKey(), author.getValue()));
+        List<ArchiveOp> edits = new ArrayList<>();
+        editCodec.begin();
+        Set<String> deletes = new LinkedHashSet<>();
+        int deleteOps = 0;
+        PooledConnection pc;
+        try {
+            pc = pool.borrow();
+        } catch(SQLException e) {
+            if(isConnectionError(e)) {
+                markUnavailable();
+                return Result.UNAVAILABLE;
+            }
+            LOG.log(e);
+            return Result.FAILED;
+        }
+        Connection conn = pc.getConnection();
+        PreparedStatement[] statements = new PreparedStatement[0];
+        try {
+            conn.setAutoCommit(false);
+            PreparedStatement guildUpsert = pc.prepare(GUILD_UPSERT);
+            PreparedStatement guildLeave = pc.prepare(GUILD_LEAVE);
+            PreparedStatement channelUpsert = pc.prepare(CHANNEL_UPSERT);
+            PreparedStatement channelDelete = pc.prepare(CHANNEL_DELETE);
+            PreparedStatement userUpsert = pc.prepare(USER_UPSERT);
+            PreparedStatement aliasInsert = pc.prepare(ALIAS_INSERT);
+            PreparedStatement messageInsert = pc.prepare(MESSAGE_INSERT);
+            statements = new PreparedStatement[]{guildUpsert, guildLeave, channelUpsert, channelDelete,
+                    userUpsert, aliasInsert, messageInsert};
+            for(ArchiveOp op : guilds.values()) {
+                if(op.type == ArchiveOp.Type.GUILD) {
+                    Schema.setId(guildUpsert, 1, op.id);
+                    guildUpsert.setString(2, op.name);
+                    guildUpsert.addBatch();
+                } else {
+                    Schema.setId(guildLeave, 1, op.id);
+                    guildLeave.addBatch();
+                }
+            }
+            for(ArchiveOp op : channels.values()) {
+                if(op.type == ArchiveOp.Type.CHANNEL) {
+                    Schema.setId(channelUpsert, 1, op.id);
+                    channelUpsert.setString(2, op.name);
+                    Schema.setId(channelUpsert, 3, op.guildId);
+                    channelUpsert.addBatch();
+                } else {
+                    Schema.setId(channelDelete, 1, op.id);
+                    channelDelete.addBatch();
+                }
+            }
+            for(Map.Entry<String, String> author : authors.entrySet()) {
+                Schema.setId(userUpsert, 1, author.getKey());
+                userUpsert.setString(2, author.getValue());
+                userUpsert.addBatch();
+                Schema.setId(aliasInsert, 1, author.getKey());
+                aliasInsert.setString(2, author.getValue());
+                Schema.setId(aliasInsert, 3, author.getKey());
+                aliasInsert.setString(4, author.getValue());
+                aliasInsert.addBatch();
+            }
+            //inserts are executed before edits/deletes, so this order keeps causality
+            for(ArchiveOp op : batch) {
+                switch(op.type) {
+                    case MESSAGE:
+                        Schema.setId(messageInsert, 1, op.id);
+                        Schema.setId(messageInsert, 2, op.channelId);
+                        Schema.setId(messageInsert, 3, op.authorId);
+                        messageInsert.setString(4, op.content);
+                        messageInsert.setTimestamp(5, new Timestamp(op.timestamp));
+                        messageInsert.addBatch();
+                        editCodec.original(op.id, op.content);
+                        break;
+                    case EDIT:
+                        edits.add(op);
+                        break;
+                    case DELETE:
+                        deletes.add(op.id);
+                        deleteOps++;
+                        break;
+                }
+            }
+            for(PreparedStatement statement : statements) {
+                statement.executeBatch();
+            }
+            for(int i = 0; i < edits.size(); i += EDIT_CHUNK) {
+                insertEdits(pc, edits.subList(i, Math.min(edits.size(), i + EDIT_CHUNK)));
+            }
+            if(!deletes.isEmpty())
+                pc.executeIn(MESSAGE_DELETE, deletes, DELETE_CHUNK);
+            conn.commit();
+            editCodec.commit();
+            //one statement per edit/delete before
+            int roundTrips = (edits.size() + EDIT_CHUNK - 1) / EDIT_CHUNK + (deletes.size() + DELETE_CHUNK - 1) / DELETE_CHUNK;
+            coalescedEdits += edits.size();
+            coalescedDeletes += deleteOps;
+            savedRoundTrips += edits.size() + deleteOps - roundTrips;
+            authors.forEach(userCache::put);
+            written += batch.size();
+            flushes++;
+            LOG.trace("Flushed " + batch.size() + " writes");
+            return Result.OK;
+        } catch(SQLException e) {
+            rollback(pc, statements);
+            if(isConnectionError(e)) {
+                pc.markBroken();
+                markUnavailable();
+                return Result.UNAVAILABLE;
+            }
+            LOG.log(e);
+            return Result.FAILED;
+        } catch(RuntimeException e) {
+            //eg. from the EditCodec. must not reach the finally-block uncommitted, as enabling auto-commit commits
+            rollback(pc, statements);
+            LOG.log(e);
+            return Result.FAILED;
+        } finally {
+            try {
+                conn.setAutoCommit(true);
+            } catch(SQLException e) {
+                pc.markBroken();
+            }
+            pc.close();
+        }
+    }
+
+    private void insertEdits(PooledConnection pc, List<ArchiveOp> edits) throws SQLException {
+        StringBuilder rows = new StringBuilder();
+        for(int i = 0; i < edits.size(); i++) {
+            rows.append(i == 0 ? "SELECT 0 AS seq, ? AS id, ? AS kind, ? AS content, ? AS edited" : " UNION ALL SELECT " + i + ", ?, ?, ?, ?");
+        }
+        try(PreparedStatement statement = DbMetrics.instrument(pc.getConnection().prepareStatement(String.format(MESSAGE_EDITS, rows)),
+                DbMetrics.nameOf(MESSAGE_EDITS))) {
+            statement.setQueryTimeout(pool.getQueryTimeout());
+            int index = 1;
+            for(ArchiveOp edit : edits) {
+                Object[] encoded = editCodec.encode(edit.id, edit.content);
+                Schema.setId(statement, index++, edit.id);
+                statement.setInt(index++, (Integer) encoded[0]);
+                statement.setString(index++, (String) encoded[1]);
+                statement.setTimestamp(index++, new Timestamp(edit.timestamp));
+            }
+            statement.executeUpdate();
+        }
+    }
+
+    private void rollback(PooledConnection pc, PreparedStatement[] statements) {
+        try {
+            for(PreparedStatement statement : statements) {
+                statement.clearBatch();
+            }
+            pc.getConnection().rollback();
+        } catch(SQLException e) {
+            LOG.log(e);
+            pc.markBroken();
+        }
+    }
+
+    /**
+     * Stops accepting new writes, flushes all pending ones (to the DB or the spool) and closes the spool.
+     * If called from the writer-thread itself, this does not wait for the final flush.
+     *
+     * @param timeout
+     *      max amount of ms to wait for the final flush
+     */
+    public void shutdown(long timeout) {
+        running = false;
+        if(Thread.currentThread() == this)
+            return;
+        interrupt();
+        try {
+            join(timeout);
+        } catch(InterruptedException ignored) {}
+        if(isAlive())
+            LOG.warn("Writer did not finish flushing within " + timeout + "ms");
+    }
+
+    /**
+     * Checks if the given exception means that the DB (or the connection to it) is gone,
+     * as opposed to an error caused by the statement itself.
+     */
+    public static boolean isConnectionError(SQLException e) {
+        return e instanceof SQLTimeoutException || e instanceof SQLTransientConnectionException
+                || e instanceof SQLNonTransientConnectionException || e instanceof SQLRecoverableException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public long getCoalescedDeletes() {
+        return coalescedDeletes;
+    }
+
+    public long getCoalescedEdits() {
+        return coalescedEdits;
+    }
+
+    /**
+     * @return
+     *      the amount of statements saved by coalescing edits and deletes, compared to one statement per edit/delete
+     */
+    public long getSavedRoundTrips() {
+        return savedRoundTrips;
+    }
+
+    public EditCodec getEditCodec() {
+        return editCodec;
+    }
+
+    public long getSpooled() {
+        return spooled;
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+
+    public int getSpoolSize() {
+        return spool == null ? 0 : spool.size();
+    }
+
+    public int getSpoolBytes() {
+        return spool == null ? 0 : spool.getUsedBytes();
+    }
+
+    private enum Result {
+        OK, FAILED, UNAVAILABLE
+    }
+
+    public enum Backpressure {
+        /**
+         * Waits for free space in the queue (up to blockTimeout ms) before dropping writes
+         */
+        BLOCK,
+        /**
+         * Drops writes immediately if the queue is full
+         */
+        DROP;
+
+        public static Backpressure fromString(String s) {
+            return "drop".equalsIgnoreCase(s) ? DROP : BLOCK;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tracks whether the DB is reachable.
+ * Once tripped (OPEN), callers are expected to fail fast instead of waiting on the DB.
+ * The supervisor (the {@link ArchiveWriter}) periodically calls {@link #attemptReset()}, which runs the reconnect-probe
+ * with jittered exponential backoff between attempts (HALF_OPEN while the probe runs).
+ */
+public class CircuitBreaker {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Circuit");
+
+    private final Probe probe;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    private volatile State state = State.CLOSED;
+    private volatile int failures = 0;
+    private volatile long nextAttempt = 0;
+    private volatile long openedAt = 0;
+    private volatile long trips = 0;
+
+    /**
+     * @param config
+     *      the db-section of the BotConfig
+     * @param probe
+     *      reconnect-action. Has to throw if the DB is not usable yet.
+     */
+    public CircuitBreaker(JSONObject config, Probe probe) {
+        this.probe = probe;
+        this.baseDelay = Math.max(100, config.optLong("reconnectBaseDelay", 1000));
+        this.maxDelay = Math.max(baseDelay, config.optLong("reconnectMaxDelay", 60000));
+    }
+
+    /**
+     * Opens the circuit. Does nothing if it is already open.
+     *
+     * @return
+     *      true, if the circuit was closed before
+     */
+    public synchronized boolean trip() {
+        if(state != State.CLOSED)
+            return false;
+        state = State.OPEN;
+        failures = 0;
+        openedAt = System.currentTimeMillis();
+        nextAttempt = openedAt + backoff();
+        trips++;
+        return true;
+    }
+
+    /**
+     * Runs the reconnect-probe if the circuit is open and the backoff has passed.
+     *
+     * @return
+     *      true, if the circuit is closed (afterwards)
+     */
+    public boolean attemptReset() {
+        synchronized(this) {
+            if(state == State.CLOSED)
+                return true;
+            if(state == State.HALF_OPEN || System.currentTimeMillis() < nextAttempt)
+                return false;
+            state = State.HALF_OPEN;
+        }
+        try {
+            probe.run();
+        } catch(SQLException | RuntimeException e) {
+            synchronized(this) {
+                failures++;
+                nextAttempt = System.currentTimeMillis() + backoff();
+                state = State.OPEN;
+            }
+            LOG.debug("Reconnect attempt " + failures + " failed (" + e.getMessage() + "), next one in " + getRetryIn() + "ms");
+            return false;
+        }
+        synchronized(this) {
+            state = State.CLOSED;
+        }
+        LOG.info("Reconnected after " + (failures + 1) + " attempts (" + (System.currentTimeMillis() - openedAt) / 1000 + "s down)");
+        return true;
+    }
+
+    private long backoff() {
+        //equal jitter: half the exponential delay is fixed, the other half random, so restarts don't retry in lockstep
+        long delay = Math.min(maxDelay, baseDelay << Math.min(failures, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    public long getTrips() {
+        return trips;
+    }
+
+    /**
+     * @return
+     *      ms until the next reconnect-attempt, or 0 if the circuit is closed
+     */
+    public long getRetryIn() {
+        return state == State.CLOSED ? 0 : Math.max(0, nextAttempt - System.currentTimeMillis());
+    }
+
+    /**
+     * @return
+     *      ms since the circuit was opened, or 0 if it is closed
+     */
+    public long getOpenFor() {
+        return state == State.CLOSED ? 0 : System.currentTimeMillis() - openedAt;
+    }
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public interface Probe {
+        void run() throws SQLException;
+    }
+}
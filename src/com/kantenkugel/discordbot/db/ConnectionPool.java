@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small fixed-size JDBC connection pool.
+ * Connections are created lazily up to {@code poolSize} and validated on borrow if they were idle for longer than
+ * {@code validationInterval} ms. Broken connections are replaced transparently.
+ */
+public class ConnectionPool {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Pool");
+
+    private final ConnectionFactory factory;
+    private final int size;
+    private final long borrowTimeout;
+    private final long validationInterval;
+    private final int queryTimeout;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final List<PooledConnection> all = new ArrayList<>();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+    private volatile boolean closed = false;
+
+    public ConnectionPool(ConnectionFactory factory, JSONObject config) {
+        this.factory = factory;
+        this.size = Math.max(1, config.optInt("poolSize", 4));
+        this.borrowTimeout = config.optLong("borrowTimeout", 10000);
+        this.validationInterval = config.optLong("validationInterval", 30000);
+        this.queryTimeout = config.optInt("queryTimeout", 10);
+        this.permits = new Semaphore(size, true);
+    }
+
+    /**
+     * Borrows a connection from this pool. The returned connection has to be closed once done,
+     * which returns it to the pool (use try-with-resources).
+     *
+     * @return
+     *      a validated connection
+     * @throws SQLException
+     *      if no connection became available within {@code borrowTimeout} ms, or a new connection could not be opened
+     */
+    public PooledConnection borrow() throws SQLException {
+        if(closed)
+            throw new SQLTransientConnectionException("Connection pool is closed");
+        try {
+            if(!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS))
+                throw new SQLTransientConnectionException("Timed out waiting for a pooled connection");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a pooled connection");
+        }
+        try {
+            PooledConnection pc;
+            while((pc = idle.pollFirst()) != null) {
+                if(isHealthy(pc)) {
+                    pc.lastUsed = System.currentTimeMillis();
+                    pc.reopen();
+                    return pc;
+                }
+                LOG.warn("Replacing broken pooled connection");
+                replaced.incrementAndGet();
+                discard(pc);
+            }
+            pc = new PooledConnection(this, factory.create());
+            created.incrementAndGet();
+            synchronized(all) {
+                all.add(pc);
+            }
+            return pc;
+        } catch(SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private boolean isHealthy(PooledConnection pc) {
+        if(pc.isBroken())
+            return false;
+        if(System.currentTimeMillis() - pc.lastUsed < validationInterval)
+            return true;
+        try {
+            return pc.getConnection().isValid(2);
+        } catch(SQLException e) {
+            return false;
+        }
+    }
+
+    void release(PooledConnection pc) {
+        if(closed || pc.isBroken()) {
+            discard(pc);
+        } else {
+            pc.lastUsed = System.currentTimeMillis();
+            //LIFO keeps the hot connections hot and lets the others expire
+            idle.offerFirst(pc);
+        }
+        permits.release();
+    }
+
+    private void discard(PooledConnection pc) {
+        synchronized(all) {
+            all.remove(pc);
+        }
+        pc.closeQuietly();
+    }
+
+    /**
+     * Closes all idle connections. Connections that are currently borrowed are closed once they are returned.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection pc;
+        while((pc = idle.pollFirst()) != null) {
+            discard(pc);
+        }
+    }
+
+    int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getOpen() {
+        synchronized(all) {
+            return all.size();
+        }
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public int getInUse() {
+        return size - permits.availablePermits();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getReplaced() {
+        return replaced.get();
+    }
+
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+}
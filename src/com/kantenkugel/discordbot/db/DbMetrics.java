@@ -0,0 +1,323 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLTimeoutException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-statement metrics of the archive.
+ * <p>
+ * Statements handed out by {@link PooledConnection} are {@link #instrument(PreparedStatement, String) instrumented}:
+ * every execution records its latency (log2-histogram in microseconds), errors and timeouts, the affected rows and, for batches,
+ * the batch-size. Statements are named after the constant they are defined in (see {@link #named(String, String)}),
+ * unnamed ones by their normalized sql.
+ * Gauges (eg the depth of the write-queue) are read whenever the metrics are shown or dumped.
+ */
+public class DbMetrics {
+    private static final Map<String, String> NAMES = new ConcurrentHashMap<>();
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static volatile long since = System.currentTimeMillis();
+
+    /**
+     * Registers the name of a statement.
+     *
+     * @return
+     *      the given sql, so this can wrap the definition of the constant
+     */
+    public static String named(String name, String sql) {
+        NAMES.put(sql, name);
+        return sql;
+    }
+
+    /**
+     * @return
+     *      the registered name of the sql, or the sql with whitespace and placeholder-lists collapsed
+     */
+    public static String nameOf(String sql) {
+        String name = NAMES.get(sql);
+        if(name != null)
+            return name;
+        String normalized = sql.replaceAll("\\s+", " ").replaceAll("\\?(\\s*,\\s*\\?)+", "?..").trim();
+        return normalized.length() > 60 ? normalized.substring(0, 57) + "..." : normalized;
+    }
+
+    /**
+     * @return
+     *      the given statement, recording every execution under the given name
+     */
+    public static PreparedStatement instrument(PreparedStatement statement, String name) {
+        Stats stats = get(name);
+        int[] pending = new int[1];
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    String methodName = method.getName();
+                    if(methodName.equals("addBatch")) {
+                        pending[0]++;
+                    } else if(methodName.equals("clearBatch")) {
+                        pending[0] = 0;
+                    } else if(methodName.startsWith("execute")) {
+                        int batch = methodName.endsWith("Batch") ? pending[0] : 0;
+                        pending[0] = 0;
+                        long start = System.nanoTime();
+                        try {
+                            Object result = method.invoke(statement, args);
+                            stats.record(System.nanoTime() - start, rows(result), batch, false, false);
+                            return result;
+                        } catch(InvocationTargetException e) {
+                            stats.record(System.nanoTime() - start, 0, batch, true, e.getCause() instanceof SQLTimeoutException);
+                            throw e.getCause();
+                        }
+                    }
+                    try {
+                        return method.invoke(statement, args);
+                    } catch(InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private static long rows(Object result) {
+        if(result instanceof Number)
+            return ((Number) result).longValue();
+        long rows = 0;
+        if(result instanceof int[]) {
+            for(int count : (int[]) result) {
+                rows += Math.max(0, count);
+            }
+        } else if(result instanceof long[]) {
+            for(long count : (long[]) result) {
+                rows += Math.max(0, count);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return
+     *      the stats of the given name, for recording things that are no prepared statements
+     */
+    public static Stats get(String name) {
+        return STATS.computeIfAbsent(name, Stats::new);
+    }
+
+    /**
+     * @return
+     *      name -> number of recorded calls
+     */
+    public static Map<String, Long> getCalls() {
+        Map<String, Long> calls = new TreeMap<>();
+        STATS.forEach((name, stats) -> calls.put(name, stats.latency.getCount()));
+        return calls;
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Resets all stats in place, as they are also held by instrumented statements and recorders.
+     */
+    public static void reset() {
+        STATS.values().forEach(Stats::reset);
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * @return
+     *      the statements with the highest total time (at most limit) as table
+     */
+    public static String format(int limit) {
+        List<Stats> sorted = new ArrayList<>(STATS.values());
+        sorted.sort(Comparator.comparingLong((Stats stats) -> stats.totalMicros.get()).reversed());
+        StringBuilder sb = new StringBuilder(String.format("%-18s%8s%5s%5s%8s%8s%8s%9s%10s\n",
+                "Statement", "Calls", "Err", "Tmo", "p50", "p99", "Max", "Rows", "Batch"));
+        for(Stats stats : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            String name = stats.name.length() > 17 ? stats.name.substring(0, 16) + '~' : stats.name;
+            sb.append(String.format("%-18s%8d%5d%5d%8s%8s%8s%9d%10s\n", name, stats.latency.getCount(), stats.errors.get(),
+                    stats.timeouts.get(), time(stats.latency.percentile(0.5)), time(stats.latency.percentile(0.99)),
+                    time(stats.latency.getMax()), stats.rows.get(),
+                    stats.batches.getCount() == 0 ? "-" : String.format("%.0f/%d", stats.batches.getMean(), stats.batches.getMax())));
+        }
+        if(sorted.size() > limit)
+            sb.append("... ").append(sorted.size() - limit).append(" more (see dump)\n");
+        StringBuilder gauges = new StringBuilder();
+        new TreeMap<>(GAUGES).forEach((name, value) -> gauges.append(gauges.length() == 0 ? "" : ", ").append(name).append('=').append(value.getAsLong()));
+        sb.append("Gauges: ").append(gauges).append("\nSince ").append((System.currentTimeMillis() - since) / 1000).append('s');
+        return sb.toString();
+    }
+
+    private static String time(long micros) {
+        if(micros < 1000)
+            return micros + "us";
+        if(micros < 10000000)
+            return String.format("%.1fms", micros / 1000.0);
+        return micros / 1000000 + "s";
+    }
+
+    /**
+     * @return
+     *      all metrics including the raw histograms
+     */
+    public static JSONObject toJson() {
+        JSONObject statements = new JSONObject();
+        STATS.forEach((name, stats) -> statements.put(name, stats.toJson()));
+        JSONObject gauges = new JSONObject();
+        GAUGES.forEach((name, value) -> gauges.put(name, value.getAsLong()));
+        return new JSONObject()
+                .put("since", since)
+                .put("time", System.currentTimeMillis())
+                .put("statements", statements)
+                .put("gauges", gauges);
+    }
+
+    public static class Stats {
+        public final String name;
+        private final Histogram latency = new Histogram();
+        private final Histogram batches = new Histogram();
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+
+        private Stats(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param batch
+         *      size of the executed batch, 0 if it was no batch
+         */
+        public void record(long nanos, long rows, int batch, boolean failed, boolean timedOut) {
+            long micros = nanos / 1000;
+            latency.record(micros);
+            totalMicros.addAndGet(micros);
+            this.rows.addAndGet(rows);
+            if(batch > 0)
+                batches.record(batch);
+            if(failed)
+                errors.incrementAndGet();
+            if(timedOut)
+                timeouts.incrementAndGet();
+        }
+
+        private void reset() {
+            latency.reset();
+            batches.reset();
+            totalMicros.set(0);
+            errors.set(0);
+            timeouts.set(0);
+            rows.set(0);
+        }
+
+        private JSONObject toJson() {
+            return new JSONObject()
+                    .put("calls", latency.getCount())
+                    .put("errors", errors.get())
+                    .put("timeouts", timeouts.get())
+                    .put("rows", rows.get())
+                    .put("totalMicros", totalMicros.get())
+                    .put("latencyMicros", latency.toJson())
+                    .put("batchSizes", batches.toJson());
+        }
+    }
+
+    /**
+     * Histogram with power-of-2 buckets: bucket i counts values below 2^i (and at least 2^(i-1)).
+     * Percentiles are reported as the upper bound of their bucket.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while(value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+        }
+
+        public void reset() {
+            for(int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        public long percentile(double percentile) {
+            long total = count.get();
+            if(total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if(seen >= rank)
+                    return Math.min(max.get(), (1L << i) - 1);
+            }
+            return max.get();
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMean() {
+            long total = count.get();
+            return total == 0 ? 0 : sum.get() / (double) total;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        private JSONObject toJson() {
+            JSONArray counts = new JSONArray();
+            for(int i = 0; i < BUCKETS; i++) {
+                counts.put(buckets.get(i));
+            }
+            return new JSONObject()
+                    .put("count", count.get())
+                    .put("mean", getMean())
+                    .put("max", max.get())
+                    .put("p50", percentile(0.5))
+                    .put("p90", percentile(0.9))
+                    .put("p99", percentile(0.99))
+                    .put("p999", percentile(0.999))
+                    .put("buckets", counts);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BiPredicate;
+
+/**
+ * Immutable, memory-mapped segment of the {@link SearchIndex}, stored as {@code seg-<first>-<last>.idx}
+ * (the generations it was built from).
+ * <br>Layout: {@code [magic][generation][docCount][tombstoneCount][totalLength]}, the document-table
+ * ({@code [id][guildId][channelId][authorId][length]} per document), the tombstones, the postings ({@code [doc][freq]},
+ * grouped by term and sorted by doc) and the term-dictionary ({@code [termLength][term][docFreq][postingsOffset]}),
+ * followed by {@code [dictionaryOffset][termCount]}.
+ * Only the dictionary is read into memory.
+ */
+class DiskSegment implements SearchSegment {
+    private static final int MAGIC = 0x4B425349; //KBSI
+    private static final int HEADER_SIZE = 24;
+    private static final int DOC_SIZE = 36;
+
+    private final Path file;
+    private final int first;
+    private final MappedByteBuffer buffer;
+    private final int generation, size, tombstoneCount;
+    private final long totalLength;
+    private final Map<String, int[]> dictionary;
+
+    DiskSegment(Path file) throws IOException {
+        this.file = file;
+        String[] range = file.getFileName().toString().replaceAll("^seg-|\\.idx$", "").split("-");
+        this.first = Integer.parseInt(range[0]);
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if(buffer.capacity() < HEADER_SIZE + 8 || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a search-segment: " + file);
+        this.generation = buffer.getInt(4);
+        this.size = buffer.getInt(8);
+        this.tombstoneCount = buffer.getInt(12);
+        this.totalLength = buffer.getLong(16);
+        int pos = buffer.getInt(buffer.capacity() - 8);
+        int termCount = buffer.getInt(buffer.capacity() - 4);
+        this.dictionary = new HashMap<>(termCount * 4 / 3 + 1);
+        for(int i = 0; i < termCount; i++) {
+            byte[] term = new byte[buffer.getShort(pos)];
+            buffer.position(pos + 2);
+            buffer.get(term);
+            pos += 2 + term.length;
+            dictionary.put(new String(term, StandardCharsets.UTF_8), new int[]{buffer.getInt(pos), buffer.getInt(pos + 4)});
+            pos += 8;
+        }
+    }
+
+    /**
+     * Writes the live documents of the given segments into a new segment.
+     *
+     * @param dir
+     *      the directory of the index
+     * @param sources
+     *      the segments to write, ordered by generation
+     * @param live
+     *      decides which documents of the sources are kept
+     * @param keepTombstones
+     *      whether the tombstones of the sources are still needed (there are older segments)
+     * @return
+     *      the new segment
+     */
+    static DiskSegment write(Path dir, List<? extends SearchSegment> sources, BiPredicate<SearchSegment, Integer> live,
+                             boolean keepTombstones) throws IOException {
+        int first = sources.get(0) instanceof DiskSegment ? ((DiskSegment) sources.get(0)).first : sources.get(0).getGeneration();
+        int generation = sources.get(sources.size() - 1).getGeneration();
+        Path file = dir.resolve("seg-" + first + '-' + generation + ".idx");
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+
+        int[][] ordinals = new int[sources.size()][];
+        int size = 0;
+        long totalLength = 0;
+        SortedSet<String> terms = new TreeSet<>();
+        Set<Long> tombstones = new LinkedHashSet<>();
+        for(int s = 0; s < sources.size(); s++) {
+            SearchSegment source = sources.get(s);
+            ordinals[s] = new int[source.size()];
+            for(int doc = 0; doc < source.size(); doc++) {
+                if(live.test(source, doc)) {
+                    ordinals[s][doc] = size++;
+                    totalLength += source.getLength(doc);
+                } else {
+                    ordinals[s][doc] = -1;
+                }
+            }
+            terms.addAll(source.getTerms());
+            if(keepTombstones) {
+                for(long id : source.getTombstones()) {
+                    tombstones.add(id);
+                }
+            }
+        }
+
+        FileOutputStream fileOut = new FileOutputStream(tmp.toFile());
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(generation);
+            out.writeInt(size);
+            out.writeInt(tombstones.size());
+            out.writeLong(totalLength);
+            for(int s = 0; s < sources.size(); s++) {
+                SearchSegment source = sources.get(s);
+                for(int doc = 0; doc < source.size(); doc++) {
+                    if(ordinals[s][doc] < 0)
+                        continue;
+                    out.writeLong(source.getId(doc));
+                    out.writeLong(source.getGuildId(doc));
+                    out.writeLong(source.getChannelId(doc));
+                    out.writeLong(source.getAuthorId(doc));
+                    out.writeInt(source.getLength(doc));
+                }
+            }
+            for(long id : tombstones) {
+                out.writeLong(id);
+            }
+            List<Object[]> entries = new ArrayList<>(terms.size());
+            int[] docFreq = new int[1];
+            for(String term : terms) {
+                int offset = out.size();
+                docFreq[0] = 0;
+                for(int s = 0; s < sources.size(); s++) {
+                    int[] mapping = ordinals[s];
+                    sources.get(s).forEachPosting(term, (doc, freq) -> {
+                        if(mapping[doc] < 0)
+                            return;
+                        try {
+                            out.writeInt(mapping[doc]);
+                            out.writeInt(freq);
+                        } catch(IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        docFreq[0]++;
+                    });
+                }
+                if(docFreq[0] > 0)
+                    entries.add(new Object[]{term, docFreq[0], offset});
+            }
+            int dictionaryOffset = out.size();
+            //DataOutputStream.size() saturates at Integer.MAX_VALUE
+            if(dictionaryOffset == Integer.MAX_VALUE)
+                throw new IOException("Segment exceeds 2GiB, lower searchMaxSegmentDocs");
+            for(Object[] entry : entries) {
+                byte[] term = ((String) entry[0]).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(term.length);
+                out.write(term);
+                out.writeInt((Integer) entry[1]);
+                out.writeInt((Integer) entry[2]);
+            }
+            out.writeInt(dictionaryOffset);
+            out.writeInt(entries.size());
+            out.flush();
+            fileOut.getFD().sync();
+        } catch(UncheckedIOException e) {
+            Files.deleteIfExists(tmp);
+            throw e.getCause();
+        } catch(IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return new DiskSegment(file);
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return
+     *      the generation of the oldest segment this one was merged from
+     */
+    int getFirstGeneration() {
+        return first;
+    }
+
+    @Override
+    public int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public long getId(int doc) {
+        return buffer.getLong(HEADER_SIZE + doc * DOC_SIZE);
+    }
+
+    @Override
+    public long getGuildId(int doc) {
+        return buffer.getLong(HEADER_SIZE + doc * DOC_SIZE + 8);
+    }
+
+    @Override
+    public long getChannelId(int doc) {
+        return buffer.getLong(HEADER_SIZE + doc * DOC_SIZE + 16);
+    }
+
+    @Override
+    public long getAuthorId(int doc) {
+        return buffer.getLong(HEADER_SIZE + doc * DOC_SIZE + 24);
+    }
+
+    @Override
+    public int getLength(int doc) {
+        return buffer.getInt(HEADER_SIZE + doc * DOC_SIZE + 32);
+    }
+
+    @Override
+    public boolean isDeleted(int doc) {
+        return false;
+    }
+
+    @Override
+    public int getDocFreq(String term) {
+        int[] entry = dictionary.get(term);
+        return entry == null ? 0 : entry[0];
+    }
+
+    @Override
+    public void forEachPosting(String term, PostingConsumer consumer) {
+        int[] entry = dictionary.get(term);
+        if(entry == null)
+            return;
+        for(int i = 0, pos = entry[1]; i < entry[0]; i++, pos += 8) {
+            consumer.accept(buffer.getInt(pos), buffer.getInt(pos + 4));
+        }
+    }
+
+    @Override
+    public Collection<String> getTerms() {
+        return dictionary.keySet();
+    }
+
+    @Override
+    public long[] getTombstones() {
+        long[] result = new long[tombstoneCount];
+        int base = HEADER_SIZE + size * DOC_SIZE;
+        for(int i = 0; i < tombstoneCount; i++) {
+            result[i] = buffer.getLong(base + i * 8);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.util.*;
+
+/**
+ * Delta-encoding of message_edits.
+ * <p>
+ * Every row of message_edits is either a {@link #SNAPSHOT} (full content) or a {@link #DELTA} against the version before it
+ * (the previous edit, or the original content in messages for the first one).
+ * A delta is stored as {@code <prefix>:<suffix>:<text>}: keep {@code prefix} chars from the start and {@code suffix} chars
+ * from the end of the previous version and put {@code text} in between. This covers the typical edit (one changed region)
+ * in a few bytes. A snapshot is written every {@code editSnapshotInterval} edits (and whenever the delta would not be smaller),
+ * so reconstructing a version never has to walk a long chain.
+ * <p>
+ * The instance-part tracks the latest version of recently archived messages, so the writer can encode edits without
+ * reading them back from the DB. Lookups and updates happen inside a {@link #begin() transaction}, which is only applied
+ * to the cache once the write was committed.
+ */
+public class EditCodec {
+    public static final int SNAPSHOT = 0;
+    public static final int DELTA = 1;
+
+    private final int snapshotInterval;
+    private final Map<String, Version> cache;
+    private final Map<String, Version> pending = new HashMap<>();
+
+    private long pendingDeltas, pendingSnapshots, pendingSaved;
+    private volatile long deltas = 0, snapshots = 0, savedChars = 0;
+
+    public EditCodec(int cacheSize, int snapshotInterval) {
+        this.snapshotInterval = Math.max(1, snapshotInterval);
+        this.cache = new LinkedHashMap<String, Version>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Version> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Starts a new transaction, discarding everything not committed before.
+     */
+    public void begin() {
+        pending.clear();
+        pendingDeltas = pendingSnapshots = pendingSaved = 0;
+    }
+
+    /**
+     * Records the original content of a newly archived message.
+     */
+    public void original(String messageId, String content) {
+        pending.put(messageId, new Version(content, 0));
+    }
+
+    /**
+     * Encodes the given edit against the latest known version of its message.
+     *
+     * @return
+     *      {kind, content} to store
+     */
+    public Object[] encode(String messageId, String content) {
+        Version previous = pending.get(messageId);
+        if(previous == null)
+            previous = cache.get(messageId);
+        String delta = previous == null || previous.sinceSnapshot + 1 >= snapshotInterval ? null : diff(previous.content, content);
+        if(delta == null || delta.length() >= content.length()) {
+            pending.put(messageId, new Version(content, 0));
+            pendingSnapshots++;
+            return new Object[]{SNAPSHOT, content};
+        }
+        pending.put(messageId, new Version(content, previous.sinceSnapshot + 1));
+        pendingDeltas++;
+        pendingSaved += content.length() - delta.length();
+        return new Object[]{DELTA, delta};
+    }
+
+    /**
+     * Applies the current transaction to the cache.
+     */
+    public void commit() {
+        cache.putAll(pending);
+        deltas += pendingDeltas;
+        snapshots += pendingSnapshots;
+        savedChars += pendingSaved;
+        begin();
+    }
+
+    public long getDeltas() {
+        return deltas;
+    }
+
+    public long getSnapshots() {
+        return snapshots;
+    }
+
+    public long getSavedChars() {
+        return savedChars;
+    }
+
+    /**
+     * @return
+     *      the delta turning previous into next
+     */
+    public static String diff(String previous, String next) {
+        int max = Math.min(previous.length(), next.length());
+        int prefix = 0;
+        while(prefix < max && previous.charAt(prefix) == next.charAt(prefix))
+            prefix++;
+        int suffix = 0;
+        while(suffix < max - prefix && previous.charAt(previous.length() - 1 - suffix) == next.charAt(next.length() - 1 - suffix))
+            suffix++;
+        return prefix + ":" + suffix + ':' + next.substring(prefix, next.length() - suffix);
+    }
+
+    /**
+     * @return
+     *      the version produced by applying the given delta to previous
+     */
+    public static String apply(String previous, String delta) {
+        int first = delta.indexOf(':');
+        int second = delta.indexOf(':', first + 1);
+        int prefix = Integer.parseInt(delta.substring(0, first));
+        int suffix = Integer.parseInt(delta.substring(first + 1, second));
+        return previous.substring(0, prefix) + delta.substring(second + 1) + previous.substring(previous.length() - suffix);
+    }
+
+    /**
+     * Rebuilds all versions of a message.
+     *
+     * @param original
+     *      the original content (from messages)
+     * @param edits
+     *      the rows of message_edits (as {kind, content}) in insertion-order
+     * @return
+     *      the original content followed by the content after every edit
+     */
+    public static List<String> reconstruct(String original, List<Object[]> edits) {
+        List<String> versions = new ArrayList<>(edits.size() + 1);
+        String current = original;
+        versions.add(current);
+        for(Object[] edit : edits) {
+            current = ((Number) edit[0]).intValue() == DELTA ? apply(current, (String) edit[1]) : (String) edit[1];
+            versions.add(current);
+        }
+        return versions;
+    }
+
+    private static class Version {
+        private final String content;
+        private final int sinceSnapshot;
+
+        private Version(String content, int sinceSnapshot) {
+            this.content = content;
+            this.sinceSnapshot = sinceSnapshot;
+        }
+    }
+}
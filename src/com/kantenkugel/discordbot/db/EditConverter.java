@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * One-time conversion of existing message_edits (full contents) into the delta-encoding of {@link EditCodec}.
+ * Works through the messages with edits in chunks of {@code migrationChunkSize} messages, one transaction per chunk.
+ * <br>This can run while the archive is live: every row is re-encoded from the reconstructed contents, and the writer
+ * encodes new edits against contents as well, so rows written meanwhile stay valid.
+ * Running it again only touches rows whose encoding would change.
+ */
+public class EditConverter implements Runnable {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-EditConverter");
+
+    private static final String NEXT_MESSAGES = "SELECT DISTINCT messageId FROM message_edits WHERE messageId > ? ORDER BY messageId LIMIT ?;";
+    private static final String EDITS = "SELECT e.id, e.messageId, e.kind, e.content, m.content FROM message_edits AS e " +
+            "JOIN messages AS m ON m.id = e.messageId WHERE e.messageId IN (%s) ORDER BY e.messageId, e.id;";
+    private static final String UPDATE = "UPDATE message_edits SET kind = ?, content = ? WHERE id = ? AND messageId = ?;";
+
+    private final ConnectionPool pool;
+    private final int chunkSize;
+    private final int snapshotInterval;
+    private final long pause;
+
+    private volatile String status = "not started";
+
+    public EditConverter(ConnectionPool pool, JSONObject config) {
+        this.pool = pool;
+        this.chunkSize = Math.max(10, config.optInt("migrationChunkSize", 5000) / 10);
+        this.snapshotInterval = config.optInt("editSnapshotInterval", 10);
+        this.pause = config.optLong("migrationPause", 50);
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        long messages = 0, rows = 0, converted = 0, savedChars = 0;
+        Object lower = Schema.hasNumericIds() ? (Object) 0L : "";
+        try {
+            while(!Thread.interrupted()) {
+                List<String> ids = new ArrayList<>();
+                try(PooledConnection pc = pool.borrow()) {
+                    PreparedStatement next = pc.prepare(NEXT_MESSAGES);
+                    next.setObject(1, lower);
+                    next.setInt(2, chunkSize);
+                    ResultSet rs = next.executeQuery();
+                    while(rs.next()) {
+                        ids.add(rs.getString(1));
+                        lower = rs.getObject(1);
+                    }
+                    rs.close();
+                    if(ids.isEmpty())
+                        break;
+                    long[] result = convert(pc, ids);
+                    messages += ids.size();
+                    rows += result[0];
+                    converted += result[1];
+                    savedChars += result[2];
+                }
+                status = String.format("converting: %d messages, %d/%d rows converted so far", messages, converted, rows);
+                Thread.sleep(pause);
+            }
+            status = String.format("done in %ds: %d messages, %d/%d rows converted, %d chars saved",
+                    (System.currentTimeMillis() - start) / 1000, messages, converted, rows, savedChars);
+            LOG.info("Conversion " + status);
+        } catch(SQLException e) {
+            LOG.log(e);
+            status = "failed: " + e.getMessage() + " (can be restarted)";
+        } catch(InterruptedException e) {
+            status = "aborted (can be restarted)";
+        }
+    }
+
+    /**
+     * @return
+     *      {rows read, rows converted, chars saved}
+     */
+    private long[] convert(PooledConnection pc, List<String> ids) throws SQLException {
+        Map<String, String> originals = new LinkedHashMap<>();
+        Map<String, List<Object[]>> edits = new HashMap<>();
+        StringBuilder placeholders = new StringBuilder();
+        for(int i = 0; i < ids.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        try(PreparedStatement statement = pc.getConnection().prepareStatement(String.format(EDITS, placeholders))) {
+            for(int i = 0; i < ids.size(); i++) {
+                Schema.setId(statement, i + 1, ids.get(i));
+            }
+            ResultSet rs = statement.executeQuery();
+            while(rs.next()) {
+                String messageId = rs.getString(2);
+                originals.putIfAbsent(messageId, rs.getString(5));
+                edits.computeIfAbsent(messageId, k -> new ArrayList<>())
+                        .add(new Object[]{rs.getInt(3), rs.getString(4), rs.getLong(1)});
+            }
+            rs.close();
+        }
+
+        long rows = 0, converted = 0, saved = 0;
+        EditCodec codec = new EditCodec(1, snapshotInterval);
+        Connection conn = pc.getConnection();
+        conn.setAutoCommit(false);
+        try {
+            PreparedStatement update = pc.prepare(UPDATE);
+            for(Map.Entry<String, String> entry : originals.entrySet()) {
+                List<Object[]> messageEdits = edits.get(entry.getKey());
+                List<String> versions = EditCodec.reconstruct(entry.getValue(), messageEdits);
+                codec.begin();
+                codec.original(entry.getKey(), entry.getValue());
+                for(int i = 0; i < messageEdits.size(); i++) {
+                    Object[] current = messageEdits.get(i);
+                    Object[] encoded = codec.encode(entry.getKey(), versions.get(i + 1));
+                    rows++;
+                    if(encoded[0].equals(current[0]) && encoded[1].equals(current[1]))
+                        continue;
+                    update.setInt(1, (Integer) encoded[0]);
+                    update.setString(2, (String) encoded[1]);
+                    update.setLong(3, (Long) current[2]);
+                    Schema.setId(update, 4, entry.getKey());
+                    update.addBatch();
+                    converted++;
+                    saved += ((String) current[1]).length() - ((String) encoded[1]).length();
+                }
+            }
+            update.executeBatch();
+            conn.commit();
+        } catch(SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return new long[]{rows, converted, saved};
+    }
+
+    public String getStatus() {
+        return status;
+    }
+}
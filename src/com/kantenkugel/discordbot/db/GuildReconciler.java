@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Set-based reconciliation of the guilds/channels tables against a snapshot of the guilds visible to the bot.
+ * The current DB-state is read with two SELECTs, diffed in memory, and all changes are written in one transaction
+ * via batched upserts and chunked {@code UPDATE ... WHERE id IN (...)} statements.
+ * <br>The snapshot is taken on the event-thread; it is filled and {@link #run() run} on the archive worker, before any later write.
+ */
+public class GuildReconciler {
+    private static final int IN_CHUNK = 1000;
+
+    private static final String GUILD_UPSERT = "INSERT INTO guilds(id, name) VALUES (?, ?) ON DUPLICATE KEY UPDATE name = VALUES(name), last_seen = NULL;";
+    private static final String CHANNEL_UPSERT = "INSERT INTO channels(id, name, guildId) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE name = VALUES(name);";
+
+    private final ConnectionPool pool;
+    private final Map<String, String> guilds = new HashMap<>();
+    private final Map<String, String[]> channels = new HashMap<>();
+
+    public GuildReconciler(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    public void addGuild(String id, String name) {
+        guilds.put(id, name);
+    }
+
+    public void addChannel(String id, String name, String guildId) {
+        channels.put(id, new String[]{name, guildId});
+    }
+
+    /**
+     * @return
+     *      the snapshot as structural ops, used to spool it if the DB is unavailable
+     */
+    public List<ArchiveOp> toOps() {
+        List<ArchiveOp> ops = new ArrayList<>(guilds.size() + channels.size());
+        guilds.forEach((id, name) -> ops.add(ArchiveOp.guild(id, name)));
+        channels.forEach((id, channel) -> ops.add(ArchiveOp.channel(id, channel[0], channel[1])));
+        return ops;
+    }
+
+    /**
+     * Diffs the snapshot against the DB and applies all changes.
+     *
+     * @return
+     *      what was changed and how long it took
+     * @throws SQLException
+     *      if reading or writing failed. Nothing is changed in this case.
+     */
+    public Result run() throws SQLException {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        try(PooledConnection pc = pool.borrow()) {
+            Connection conn = pc.getConnection();
+
+            List<String[]> guildUpserts = new ArrayList<>();
+            List<String> unseenGuilds = new ArrayList<>();
+            Set<String> known = new HashSet<>();
+            try(ResultSet rs = pc.prepare("SELECT id, name, last_seen FROM guilds;").executeQuery()) {
+                while(rs.next()) {
+                    String id = rs.getString(1);
+                    known.add(id);
+                    String name = guilds.get(id);
+                    boolean unseen = rs.getDate(3) != null;
+                    if(name == null) {
+                        if(!unseen)
+                            unseenGuilds.add(id);
+                    } else if(unseen || !name.equals(rs.getString(2))) {
+                        guildUpserts.add(new String[]{id, name});
+                    }
+                }
+            }
+            guilds.forEach((id, name) -> {
+                if(!known.contains(id))
+                    guildUpserts.add(new String[]{id, name});
+            });
+
+            List<String[]> channelUpserts = new ArrayList<>();
+            List<String> deletedChannels = new ArrayList<>();
+            known.clear();
+            try(ResultSet rs = pc.prepare("SELECT id, name, guildId, deleted FROM channels;").executeQuery()) {
+                while(rs.next()) {
+                    String id = rs.getString(1);
+                    known.add(id);
+                    String[] channel = channels.get(id);
+                    if(channel == null) {
+                        //channels of guilds we can't see anymore are left alone (the guild is marked unseen instead)
+                        if(!rs.getBoolean(4) && guilds.containsKey(rs.getString(3)))
+                            deletedChannels.add(id);
+                    } else if(!channel[0].equals(rs.getString(2))) {
+                        channelUpserts.add(new String[]{id, channel[0], channel[1]});
+                    }
+                }
+            }
+            channels.forEach((id, channel) -> {
+                if(!known.contains(id))
+                    channelUpserts.add(new String[]{id, channel[0], channel[1]});
+            });
+
+            conn.setAutoCommit(false);
+            try {
+                batch(pc, GUILD_UPSERT, guildUpserts);
+                result.guildsUnseen = pc.executeIn("UPDATE guilds SET last_seen = CURRENT_DATE WHERE id IN ", unseenGuilds, IN_CHUNK);
+                batch(pc, CHANNEL_UPSERT, channelUpserts);
+                result.channelsDeleted = pc.executeIn("UPDATE channels SET deleted = 1 WHERE id IN ", deletedChannels, IN_CHUNK);
+                conn.commit();
+            } catch(SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            result.guildsUpserted = guildUpserts.size();
+            result.channelsUpserted = channelUpserts.size();
+        }
+        result.guilds = guilds.size();
+        result.channels = channels.size();
+        result.elapsed = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    //rows are {id, name} or {id, name, guildId}
+    private static void batch(PooledConnection pc, String sql, List<String[]> rows) throws SQLException {
+        if(rows.isEmpty())
+            return;
+        PreparedStatement statement = pc.prepare(sql);
+        for(String[] row : rows) {
+            Schema.setId(statement, 1, row[0]);
+            statement.setString(2, row[1]);
+            if(row.length > 2)
+                Schema.setId(statement, 3, row[2]);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    public static class Result {
+        public int guilds, channels;
+        public int guildsUpserted, guildsUnseen, channelsUpserted, channelsDeleted;
+        public long elapsed;
+
+        public int getRowsChanged() {
+            return guildsUpserted + guildsUnseen + channelsUpserted + channelsDeleted;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d Guilds / %d Channels checked in %dms. Changed %d rows (guilds: %d upserted, %d unseen; channels: %d upserted, %d deleted)",
+                    guilds, channels, elapsed, getRowsChanged(), guildsUpserted, guildsUnseen, channelsUpserted, channelsDeleted);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import org.json.JSONObject;
+
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+
+/**
+ * Embedded single-file archive using H2 (config: {@code h2File}), for small deployments, tests and benchmarks.
+ * <br>H2 runs in its MySQL-compatibility mode, so it shares all statements with {@link MySqlStorage}.
+ * A {@code h2File} starting with {@code mem:} keeps the archive in memory (until the storage is closed).
+ * Ids are always numeric, partitioning is not supported.
+ */
+public class H2Storage extends SqlStorage {
+    private final String url;
+
+    public H2Storage(JSONObject config) {
+        super(config);
+        String file = config.optString("h2File", "kanzebot");
+        this.url = "jdbc:h2:" + (file.startsWith("mem:") ? file + ";DB_CLOSE_DELAY=-1" : "file:" + Paths.get(file).toAbsolutePath())
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE";
+    }
+
+    @Override
+    protected Connection connect() throws SQLException {
+        try {
+            Class.forName("org.h2.Driver");
+        } catch(ClassNotFoundException e) {
+            throw new SQLNonTransientConnectionException("H2-driver is missing", "08001", e);
+        }
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    @Override
+    protected String createTable(Schema.Table table) {
+        return table.create(table.name, true, "");
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if(url.startsWith("jdbc:h2:mem:")) {
+            //DB_CLOSE_DELAY keeps in-memory dbs alive between pooled connections, so drop it explicitly
+            try(Connection conn = DriverManager.getConnection(url, "sa", "")) {
+                conn.createStatement().execute("SHUTDOWN");
+            } catch(SQLException e) {
+                LOG.log(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Embedded http-server rendering the history-links handed out by {@code -kbhistory} ({@code /history/<token>}).
+ * The token is random (128 bit), so histories can't be enumerated. The server binds to {@code historyBind}, localhost by default.
+ * <p>
+ * A history shows the messages of its channel up to its creation, newest first, {@code historyPageSize} messages per page.
+ * Pages link to the next one with a keyset-cursor ({@code ?before=<created>-<id>}), so no page ever reads more than
+ * its own rows, and rows are written to the (gzipped, chunked) response as they are rendered.
+ * Finished pages are kept gzipped in a LRU-cache for {@code historyCacheTtl} ms; clients not accepting gzip get them
+ * decompressed on the fly.
+ */
+public class HistoryServer {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-History");
+    private static final String CONTEXT = "/history/";
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("[A-Za-z0-9_-]{22}");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    private final ArchiveStorage storage;
+    private final String bind;
+    private final int port;
+    private final int threads;
+    private final int pageSize;
+    private final long cacheTtl;
+    private final Map<String, Page> cache;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final AtomicLong served = new AtomicLong(0);
+    private final AtomicLong cacheHits = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+
+    public HistoryServer(ArchiveStorage storage, JSONObject config) {
+        this.storage = storage;
+        this.bind = config.optString("historyBind", "127.0.0.1");
+        this.port = config.optInt("historyPort", 0);
+        this.threads = Math.max(1, config.optInt("historyThreads", 4));
+        this.pageSize = Math.max(1, config.optInt("historyPageSize", 200));
+        this.cacheTtl = config.optLong("historyCacheTtl", 60000);
+        int cacheSize = config.optInt("historyCacheSize", 500);
+        this.cache = new LinkedHashMap<String, Page>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(bind.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(bind, port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext(CONTEXT, this::handle);
+        server.start();
+        LOG.info("Serving histories on " + (bind.isEmpty() ? "*" : bind) + ':' + port);
+    }
+
+    public void stop() {
+        if(server == null)
+            return;
+        server.stop(1);
+        executor.shutdownNow();
+        server = null;
+    }
+
+    private void handle(HttpExchange exchange) {
+        try {
+            if(!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            String token;
+            String cursorId = null;
+            long cursorCreated = 0;
+            try {
+                String path = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+                token = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+                if(!TOKEN_PATTERN.matcher(token).matches()) {
+                    sendError(exchange, 404, "Not found");
+                    return;
+                }
+                String query = exchange.getRequestURI().getRawQuery();
+                if(query != null && query.startsWith("before=")) {
+                    String[] cursor = query.substring(7).split("-", 2);
+                    cursorCreated = Long.parseLong(cursor[0]);
+                    cursorId = Long.toString(Long.parseLong(cursor[1]));
+                }
+            } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                sendError(exchange, 404, "Not found");
+                return;
+            }
+            boolean gzip = acceptsGzip(exchange);
+            String key = token + (cursorId == null ? "" : "?" + cursorCreated + '-' + cursorId);
+            Page page = getCached(key);
+            if(page != null) {
+                cacheHits.incrementAndGet();
+                sendCached(exchange, page, gzip);
+            } else {
+                ArchiveStorage.History history = storage.getHistory(token);
+                if(history == null) {
+                    sendError(exchange, 404, "History not found");
+                    return;
+                }
+                render(exchange, key, history, cursorId == null ? history.created : cursorCreated, cursorId, gzip);
+            }
+            served.incrementAndGet();
+        } catch(SQLException e) {
+            errors.incrementAndGet();
+            LOG.log(e);
+            sendError(exchange, 503, "Archive is currently not available");
+        } catch(IOException e) {
+            //client went away
+            errors.incrementAndGet();
+        } catch(RuntimeException e) {
+            errors.incrementAndGet();
+            LOG.log(e);
+            sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void render(HttpExchange exchange, String key, ArchiveStorage.History history, long beforeCreated, String beforeId,
+                        boolean gzip) throws SQLException, IOException {
+        //one more than shown to know whether there is a next page
+        List<ArchiveStorage.HistoryMessage> messages = storage.getHistoryPage(history.channelId, beforeCreated, beforeId, pageSize + 1);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "max-age=" + cacheTtl / 1000);
+        if(gzip)
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, 0);
+
+        //the response is written once, compressed into the cache at the same time
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream body = exchange.getResponseBody();
+        OutputStream out = gzip
+                ? new GZIPOutputStream(new TeeOutputStream(body, compressed))
+                : new TeeOutputStream(body, new GZIPOutputStream(compressed));
+        try(Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            String title = escape('#' + history.channelName + " (" + history.guildName + ')');
+            writer.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>" + title + "</title><style>" +
+                    "body{font-family:sans-serif;background:#36393e;color:#dcddde}td{vertical-align:top;padding:2px 8px}" +
+                    ".time{color:#72767d;white-space:nowrap}.author{font-weight:bold;white-space:nowrap}" +
+                    ".content{white-space:pre-wrap;word-break:break-word}.deleted{color:#f04747}.flag{color:#72767d;font-size:small}" +
+                    "a{color:#00b0f4}</style></head><body>\n");
+            writer.write("<h2>" + title + "</h2><p>Messages up to " + TIME_FORMAT.format(Instant.ofEpochMilli(history.created)) +
+                    " UTC, newest first</p>\n<table>\n");
+            ArchiveStorage.HistoryMessage last = null;
+            for(int i = 0; i < messages.size() && i < pageSize; i++) {
+                last = messages.get(i);
+                writer.write("<tr" + (last.deleted ? " class=\"deleted\"" : "") + "><td class=\"time\">"
+                        + TIME_FORMAT.format(Instant.ofEpochMilli(last.created)) + "</td><td class=\"author\">"
+                        + escape(last.authorName == null ? last.authorId : last.authorName) + "</td><td class=\"content\">"
+                        + escape(last.content)
+                        + (last.edited ? " <span class=\"flag\">(edited)</span>" : "")
+                        + (last.deleted ? " <span class=\"flag\">(deleted)</span>" : "") + "</td></tr>\n");
+            }
+            writer.write("</table>\n");
+            if(last == null)
+                writer.write("<p>No messages</p>\n");
+            else if(messages.size() > pageSize)
+                writer.write("<p><a href=\"" + CONTEXT + history.token + "?before=" + last.created + '-' + last.id + "\">Older messages</a></p>\n");
+            writer.write("</body></html>\n");
+        }
+        putCached(key, compressed.toByteArray());
+    }
+
+    private void sendCached(HttpExchange exchange, Page page, boolean gzip) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "max-age=" + Math.max(0, page.expires - System.currentTimeMillis()) / 1000);
+        if(gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, page.data.length);
+            exchange.getResponseBody().write(page.data);
+            return;
+        }
+        exchange.sendResponseHeaders(200, 0);
+        try(InputStream in = new GZIPInputStream(new ByteArrayInputStream(page.data))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) > 0) {
+                exchange.getResponseBody().write(buffer, 0, read);
+            }
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) {
+        try {
+            byte[] bytes = ("<!DOCTYPE html>\n<html><body><h2>" + code + "</h2><p>" + message + "</p></body></html>\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(code, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } catch(IOException ignored) {
+            //headers were already sent or the client went away
+        }
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        List<String> accepted = exchange.getRequestHeaders().get("Accept-Encoding");
+        if(accepted == null)
+            return false;
+        for(String value : accepted) {
+            if(value.toLowerCase().contains("gzip"))
+                return true;
+        }
+        return false;
+    }
+
+    private Page getCached(String key) {
+        synchronized(cache) {
+            Page page = cache.get(key);
+            if(page != null && page.expires < System.currentTimeMillis()) {
+                cache.remove(key);
+                return null;
+            }
+            return page;
+        }
+    }
+
+    private void putCached(String key, byte[] data) {
+        if(cacheTtl <= 0)
+            return;
+        synchronized(cache) {
+            cache.put(key, new Page(data, System.currentTimeMillis() + cacheTtl));
+        }
+    }
+
+    static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 16);
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch(c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\'':
+                    sb.append("&#39;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public String getStats() {
+        int cached;
+        synchronized(cache) {
+            cached = cache.size();
+        }
+        return String.format("port %d, %d pages served (%d from cache), %d cached, %d errors", port, served.get(), cacheHits.get(),
+                cached, errors.get());
+    }
+
+    private static class Page {
+        private final byte[] data;
+        private final long expires;
+
+        private Page(byte[] data, long expires) {
+            this.data = data;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Writes everything to two streams.
+     */
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream first, second;
+
+        private TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                first.close();
+            } finally {
+                second.close();
+            }
+        }
+    }
+}
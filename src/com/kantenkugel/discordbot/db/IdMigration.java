@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.sql.*;
+
+/**
+ * Online migration of the VARCHAR(20) id-columns to {@link Schema#ID}.
+ * <p>
+ * Every table is copied into a {@code <table>_new} shadow-table in chunks of {@code migrationChunkSize} rows.
+ * Triggers on the old table mirror all concurrent inserts/updates/deletes into the shadow-table meanwhile,
+ * so the archive keeps running during the copy. Once all tables are copied, the writer is paused (writes go to the spool)
+ * and all tables are swapped with a single atomic RENAME. The old tables are kept as {@code <table>_varchar}.
+ * <p>
+ * Note: MySQL does not fire triggers for cascaded foreign-key actions. The bot never deletes rows, so this only matters
+ * for manual deletes during the migration.
+ */
+public class IdMigration implements Runnable {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Migration");
+
+    private static final String NEW = "_new";
+    private static final String OLD = "_varchar";
+
+    private final ConnectionPool pool;
+    private final ArchiveWriter writer;
+    private final int chunkSize;
+    private final long pause;
+
+    private volatile String status = "not started";
+    private volatile boolean done = false;
+
+    public IdMigration(ConnectionPool pool, ArchiveWriter writer, JSONObject config) {
+        this.pool = pool;
+        this.writer = writer;
+        this.chunkSize = Math.max(100, config.optInt("migrationChunkSize", 5000));
+        this.pause = config.optLong("migrationPause", 50);
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            if(Schema.hasNumericIds()) {
+                status = "nothing to do, ids are numeric already";
+                done = true;
+                return;
+            }
+            for(Schema.Table table : Schema.TABLES) {
+                prepare(table);
+            }
+            long rows = 0;
+            for(Schema.Table table : Schema.TABLES) {
+                rows += copy(table);
+            }
+            swap();
+            addForeignKeys();
+            status = String.format("done, migrated %d rows in %ds. Old tables are kept as *%s", rows,
+                    (System.currentTimeMillis() - start) / 1000, OLD);
+            LOG.info("Migration " + status);
+        } catch(SQLException e) {
+            LOG.log(e);
+            status = "failed: " + e.getMessage() + " (can be restarted)";
+            cleanup();
+        } catch(InterruptedException e) {
+            status = "aborted (can be restarted)";
+            cleanup();
+        }
+        done = true;
+    }
+
+    /**
+     * Creates the shadow-table and the triggers mirroring writes into it.
+     * Leftovers of a previous, failed run are removed first.
+     */
+    private void prepare(Schema.Table table) throws SQLException {
+        try(PooledConnection pc = pool.borrow()) {
+            Statement statement = pc.getConnection().createStatement();
+            dropTriggers(statement, table);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + table.name + NEW + ';');
+            //no foreign-keys until the swap, as they would point to the old tables
+            statement.executeUpdate(table.create(table.name + NEW, false));
+            String columns = table.columnList("");
+            String values = table.columnList("NEW.");
+            statement.executeUpdate("CREATE TRIGGER " + trigger(table, "ins") + " AFTER INSERT ON " + table.name
+                    + " FOR EACH ROW REPLACE INTO " + table.name + NEW + " (" + columns + ") VALUES (" + values + ");");
+            statement.executeUpdate("CREATE TRIGGER " + trigger(table, "upd") + " AFTER UPDATE ON " + table.name
+                    + " FOR EACH ROW REPLACE INTO " + table.name + NEW + " (" + columns + ") VALUES (" + values + ");");
+            statement.executeUpdate("CREATE TRIGGER " + trigger(table, "del") + " AFTER DELETE ON " + table.name
+                    + " FOR EACH ROW DELETE FROM " + table.name + NEW + " WHERE id = OLD.id;");
+            statement.close();
+        }
+    }
+
+    private long copy(Schema.Table table) throws SQLException, InterruptedException {
+        String columns = table.columnList("");
+        //INSERT IGNORE: rows already mirrored by the triggers are newer than what we read here
+        String copy = "INSERT IGNORE INTO " + table.name + NEW + " (" + columns + ") SELECT " + columns
+                + " FROM " + table.name + " WHERE id > ? AND id <= ?;";
+        String firstCopy = "INSERT IGNORE INTO " + table.name + NEW + " (" + columns + ") SELECT " + columns
+                + " FROM " + table.name + " WHERE id <= ?;";
+        String bound = "SELECT MAX(id) FROM (SELECT id FROM " + table.name + " WHERE id > ? ORDER BY id LIMIT ?) AS chunk;";
+        String firstBound = "SELECT MAX(id) FROM (SELECT id FROM " + table.name + " ORDER BY id LIMIT ?) AS chunk;";
+        Object lower = null;
+        long rows = 0;
+        while(true) {
+            if(Thread.interrupted())
+                throw new InterruptedException();
+            try(PooledConnection pc = pool.borrow()) {
+                PreparedStatement boundStatement = pc.prepare(lower == null ? firstBound : bound);
+                if(lower == null) {
+                    boundStatement.setInt(1, chunkSize);
+                } else {
+                    boundStatement.setObject(1, lower);
+                    boundStatement.setInt(2, chunkSize);
+                }
+                ResultSet rs = boundStatement.executeQuery();
+                Object upper = rs.next() ? rs.getObject(1) : null;
+                rs.close();
+                if(upper == null)
+                    break;
+                PreparedStatement copyStatement = pc.prepare(lower == null ? firstCopy : copy);
+                if(lower == null) {
+                    copyStatement.setObject(1, upper);
+                } else {
+                    copyStatement.setObject(1, lower);
+                    copyStatement.setObject(2, upper);
+                }
+                rows += copyStatement.executeUpdate();
+                lower = upper;
+            }
+            status = "copying " + table.name + " (" + rows + " rows so far)";
+            //give the archive some room between chunks
+            Thread.sleep(pause);
+        }
+        LOG.info("Copied " + rows + " rows of " + table.name);
+        return rows;
+    }
+
+    private void swap() throws SQLException {
+        status = "swapping tables";
+        writer.pauseWrites();
+        try(PooledConnection pc = pool.borrow()) {
+            Statement statement = pc.getConnection().createStatement();
+            for(Schema.Table table : Schema.TABLES) {
+                dropTriggers(statement, table);
+            }
+            StringBuilder rename = new StringBuilder("RENAME TABLE ");
+            for(Schema.Table table : Schema.TABLES) {
+                rename.append(table.name).append(" TO ").append(table.name).append(OLD).append(", ")
+                        .append(table.name).append(NEW).append(" TO ").append(table.name).append(", ");
+            }
+            rename.setLength(rename.length() - 2);
+            statement.executeUpdate(rename.append(';').toString());
+            statement.close();
+            Schema.setNumericIds(true);
+        } finally {
+            writer.resumeWrites();
+        }
+        LOG.info("Swapped tables, ids are numeric now");
+    }
+
+    private void addForeignKeys() throws SQLException {
+        status = "adding foreign-keys";
+        try(PooledConnection pc = pool.borrow()) {
+            Statement statement = pc.getConnection().createStatement();
+            //the data was consistent in the old tables already. skipping the checks lets mysql add them in-place
+            statement.execute("SET foreign_key_checks = 0;");
+            try {
+                for(Schema.Table table : Schema.TABLES) {
+                    for(String foreignKey : table.foreignKeys) {
+                        statement.executeUpdate("ALTER TABLE " + table.name + " ADD " + foreignKey + ';');
+                    }
+                }
+            } finally {
+                statement.execute("SET foreign_key_checks = 1;");
+                statement.close();
+            }
+        }
+    }
+
+    private void cleanup() {
+        if(Schema.hasNumericIds())
+            return;
+        try(PooledConnection pc = pool.borrow()) {
+            Statement statement = pc.getConnection().createStatement();
+            for(Schema.Table table : Schema.TABLES) {
+                dropTriggers(statement, table);
+                statement.executeUpdate("DROP TABLE IF EXISTS " + table.name + NEW + ';');
+            }
+            statement.close();
+        } catch(SQLException e) {
+            LOG.warn("Could not remove migration-triggers/-tables! They will be removed by the next run");
+            LOG.log(e);
+        }
+    }
+
+    private static void dropTriggers(Statement statement, Schema.Table table) throws SQLException {
+        for(String kind : new String[]{"ins", "upd", "del"}) {
+            statement.executeUpdate("DROP TRIGGER IF EXISTS " + trigger(table, kind) + ';');
+        }
+    }
+
+    private static String trigger(Schema.Table table, String kind) {
+        return "migrate_" + table.name + '_' + kind;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+}
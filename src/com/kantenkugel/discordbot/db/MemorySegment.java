@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.util.*;
+
+/**
+ * The segment currently receiving new documents. Written to disk as {@link DiskSegment} by {@link SearchIndex#flush()}.
+ * <br>Not thread-safe, the {@link SearchIndex} guards access with its lock.
+ */
+class MemorySegment implements SearchSegment {
+    private final int generation;
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<Long, Integer> latest = new HashMap<>();
+    private final Set<Long> tombstones = new HashSet<>();
+    private final BitSet deleted = new BitSet();
+
+    private long[] ids = new long[256], guilds = new long[256], channels = new long[256], authors = new long[256];
+    private int[] lengths = new int[256];
+    private int size = 0;
+    private long totalLength = 0;
+
+    MemorySegment(int generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Adds a new version of a message.
+     *
+     * @param replace
+     *      whether this replaces a version that may be in an older segment (edits)
+     * @param terms
+     *      term -> frequency of the content
+     */
+    void add(long id, long guildId, long channelId, long authorId, Map<String, Integer> terms, int length, boolean replace) {
+        Integer previous = latest.put(id, size);
+        if(previous != null)
+            deleted.set(previous);
+        if(replace)
+            tombstones.add(id);
+        if(size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            guilds = Arrays.copyOf(guilds, capacity);
+            channels = Arrays.copyOf(channels, capacity);
+            authors = Arrays.copyOf(authors, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        ids[size] = id;
+        guilds[size] = guildId;
+        channels[size] = channelId;
+        authors[size] = authorId;
+        lengths[size] = length;
+        for(Map.Entry<String, Integer> term : terms.entrySet()) {
+            postings.computeIfAbsent(term.getKey(), k -> new Postings()).add(size, term.getValue());
+        }
+        totalLength += length;
+        size++;
+    }
+
+    void delete(long id) {
+        Integer previous = latest.remove(id);
+        if(previous != null)
+            deleted.set(previous);
+        tombstones.add(id);
+    }
+
+    /**
+     * @return
+     *      true, if nothing was added or deleted yet
+     */
+    boolean isEmpty() {
+        return size == 0 && tombstones.isEmpty();
+    }
+
+    @Override
+    public int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    @Override
+    public long getId(int doc) {
+        return ids[doc];
+    }
+
+    @Override
+    public long getGuildId(int doc) {
+        return guilds[doc];
+    }
+
+    @Override
+    public long getChannelId(int doc) {
+        return channels[doc];
+    }
+
+    @Override
+    public long getAuthorId(int doc) {
+        return authors[doc];
+    }
+
+    @Override
+    public int getLength(int doc) {
+        return lengths[doc];
+    }
+
+    @Override
+    public boolean isDeleted(int doc) {
+        return deleted.get(doc);
+    }
+
+    @Override
+    public int getDocFreq(String term) {
+        Postings list = postings.get(term);
+        return list == null ? 0 : list.size;
+    }
+
+    @Override
+    public void forEachPosting(String term, PostingConsumer consumer) {
+        Postings list = postings.get(term);
+        if(list == null)
+            return;
+        for(int i = 0; i < list.size; i++) {
+            consumer.accept(list.docs[i], list.freqs[i]);
+        }
+    }
+
+    @Override
+    public Collection<String> getTerms() {
+        return postings.keySet();
+    }
+
+    @Override
+    public long[] getTombstones() {
+        long[] result = new long[tombstones.size()];
+        int i = 0;
+        for(Long id : tombstones) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    private static class Postings {
+        private int[] docs = new int[4], freqs = new int[4];
+        private int size = 0;
+
+        private void add(int doc, int freq) {
+            if(size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = freq;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports the messages sent before the archive was running by paging through the history of every text-channel.
+ * <p>
+ * Channels are worked on by {@code backfillThreads} threads in parallel, but all requests share one limit of
+ * {@code backfillRequestRate} requests/s (and the inserts one of {@code backfillMessageRate} messages/s),
+ * so the import stays well within the rate-limits and does not crowd out the live archive.
+ * Every page is written directly ({@link ArchiveStorage#archive(List)}) before the position of its channel moves on.
+ * If a page can not be written completely (eg its channel is not stored yet), its channel stops at that page and is counted as failed.
+ * The positions are kept in {@code backfillFile}, so an aborted or restarted import continues where it stopped.
+ * Messages older than {@code backfillMaxDays} (0 for all) are not imported.
+ */
+public class MessageBackfill implements Runnable {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Backfill");
+    private static final int PAGE_SIZE = 100;
+
+    private final ArchiveStorage storage;
+    private final SearchIndex index;
+    private final Map<String, String> channels;
+    private final Fetcher fetcher;
+    private final Path file;
+    private final int threads;
+    private final long cutoff;
+    private final RateLimiter requests;
+    private final RateLimiter messages;
+
+    private final Map<String, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private long lastSave = 0;
+    private volatile long started = 0;
+    private volatile String status = "not started";
+
+    /**
+     * @param channels
+     *      channelId -> guildId of all channels to import
+     */
+    public MessageBackfill(ArchiveStorage storage, SearchIndex index, Map<String, String> channels, Fetcher fetcher, JSONObject config) {
+        this.storage = storage;
+        this.index = index;
+        this.channels = channels;
+        this.fetcher = fetcher;
+        this.file = Paths.get(config.optString("backfillFile", "backfill.json"));
+        this.threads = Math.max(1, config.optInt("backfillThreads", 4));
+        int maxDays = config.optInt("backfillMaxDays", 0);
+        this.cutoff = maxDays <= 0 ? 0 : Schema.snowflakeAt(System.currentTimeMillis() - maxDays * 24L * 60 * 60 * 1000);
+        this.requests = new RateLimiter(config.optDouble("backfillRequestRate", 4));
+        this.messages = new RateLimiter(config.optDouble("backfillMessageRate", 1000));
+    }
+
+    @Override
+    public void run() {
+        started = System.currentTimeMillis();
+        try {
+            load();
+        } catch(IOException e) {
+            LOG.log(e);
+            status = "failed: could not read " + file + " (" + e.getMessage() + ')';
+            return;
+        }
+        List<String> pending = new ArrayList<>();
+        for(String channel : channels.keySet()) {
+            Checkpoint checkpoint = checkpoints.computeIfAbsent(channel, c -> new Checkpoint());
+            if(checkpoint.done)
+                done.incrementAndGet();
+            else
+                pending.add(channel);
+        }
+        status = "running";
+        LOG.info("Importing the history of " + pending.size() + " channels (" + done.get() + " done before)");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(pending.size());
+            for(String channel : pending) {
+                futures.add(executor.submit(() -> importChannel(channel)));
+            }
+            for(Future<?> future : futures) {
+                future.get();
+            }
+            status = String.format("done in %ds: %d messages imported, %d/%d channels complete, %d failed (can be restarted)",
+                    (System.currentTimeMillis() - started) / 1000, imported.get(), done.get(), channels.size(), failed.get());
+            LOG.info("Backfill " + status);
+        } catch(InterruptedException e) {
+            status = "aborted after " + imported.get() + " messages (can be restarted)";
+        } catch(ExecutionException e) {
+            LOG.log(e.getCause());
+            status = "failed: " + e.getCause() + " (can be restarted)";
+        } finally {
+            executor.shutdownNow();
+            save(true);
+        }
+    }
+
+    private void importChannel(String channel) {
+        Checkpoint checkpoint = checkpoints.get(channel);
+        String guild = channels.get(channel);
+        try {
+            while(!checkpoint.done) {
+                requests.acquire(1);
+                JSONArray page;
+                try {
+                    page = fetcher.fetch(channel, checkpoint.before, PAGE_SIZE);
+                } catch(RateLimitedException e) {
+                    Thread.sleep(e.retryAfter);
+                    continue;
+                }
+                List<ArchiveOp> ops = new ArrayList<>(page.length());
+                String oldest = null;
+                for(int i = 0; i < page.length(); i++) {
+                    JSONObject message = page.getJSONObject(i);
+                    String id = message.getString("id");
+                    oldest = id;
+                    if(Long.parseLong(id) < cutoff)
+                        break;
+                    JSONObject author = message.getJSONObject("author");
+                    ops.add(ArchiveOp.message(id, channel, author.getString("id"), author.getString("username"),
+                            message.optString("content", ""), Schema.timeOf(Long.parseLong(id))));
+                }
+                if(!ops.isEmpty()) {
+                    messages.acquire(ops.size());
+                    while(!storage.archive(ops)) {
+                        //db is down (or the spool is replayed), wait for it instead of skipping the page
+                        Thread.sleep(5000);
+                    }
+                    if(index != null) {
+                        for(ArchiveOp op : ops) {
+                            index.add(op.id, guild, channel, op.authorId, op.content, false);
+                        }
+                    }
+                }
+                checkpoint.count += ops.size();
+                if(oldest != null)
+                    checkpoint.before = oldest;
+                checkpoint.done = page.length() < PAGE_SIZE || ops.size() < page.length();
+                imported.addAndGet(ops.size());
+                save(false);
+            }
+            done.incrementAndGet();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(IOException | SQLException | RuntimeException e) {
+            failed.incrementAndGet();
+            LOG.warn("Could not import the history of channel " + channel + ": " + e);
+        }
+    }
+
+    private void load() throws IOException {
+        if(!Files.exists(file))
+            return;
+        JSONObject json = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        for(String channel : json.keySet()) {
+            JSONObject entry = json.getJSONObject(channel);
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.before = entry.optString("before", null);
+            checkpoint.count = entry.optLong("count", 0);
+            checkpoint.done = entry.optBoolean("done", false);
+            checkpoints.put(channel, checkpoint);
+        }
+    }
+
+    /**
+     * Writes the positions of all channels, at most once per second unless forced.
+     */
+    private synchronized void save(boolean force) {
+        if(!force && System.currentTimeMillis() - lastSave < 1000)
+            return;
+        lastSave = System.currentTimeMillis();
+        JSONObject json = new JSONObject();
+        checkpoints.forEach((channel, checkpoint) -> json.put(channel, new JSONObject()
+                .put("before", checkpoint.before)
+                .put("count", checkpoint.count)
+                .put("done", checkpoint.done)));
+        Path tmp = file.toAbsolutePath().resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, json.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            LOG.warn("Could not save the backfill-positions: " + e);
+        }
+    }
+
+    public String getStatus() {
+        if(!"running".equals(status))
+            return status;
+        long seconds = Math.max(1, (System.currentTimeMillis() - started) / 1000);
+        return String.format("running: %d/%d channels complete, %d messages imported (%d/s)",
+                done.get(), channels.size(), imported.get(), imported.get() / seconds);
+    }
+
+    private static class Checkpoint {
+        //only touched by the thread importing the channel; save() may see a slightly older state, which is fine
+        private volatile String before = null;
+        private volatile long count = 0;
+        private volatile boolean done = false;
+    }
+
+    /**
+     * Reads the history of a channel.
+     */
+    public interface Fetcher {
+        /**
+         * @param before
+         *      id of the oldest message already read, null to start with the newest messages
+         * @return
+         *      up to limit messages (raw json) before the given one, newest first
+         * @throws RateLimitedException
+         *      if the request was rate-limited
+         * @throws IOException
+         *      if the history can not be read (eg missing permissions)
+         */
+        JSONArray fetch(String channelId, String before, int limit) throws IOException;
+    }
+
+    public static class RateLimitedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfter;
+
+        public RateLimitedException(long retryAfter) {
+            super("Rate-limited for " + retryAfter + "ms");
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /**
+     * Token-bucket shared by all import-threads, allowing bursts of up to one second worth of permits.
+     */
+    private static class RateLimiter {
+        private final double rate;
+        private double available;
+        private long last = System.nanoTime();
+
+        private RateLimiter(double rate) {
+            this.rate = Math.max(0.1, rate);
+            this.available = this.rate;
+        }
+
+        private void acquire(int permits) throws InterruptedException {
+            long wait;
+            synchronized(this) {
+                long now = System.nanoTime();
+                available = Math.min(rate, available + (now - last) * rate / 1e9);
+                last = now;
+                available -= permits;
+                //going negative reserves the permits, the caller waits until they would have been refilled
+                wait = available >= 0 ? 0 : (long) (-available / rate * 1000);
+            }
+            if(wait > 0)
+                Thread.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import com.kantenkugel.discordbot.util.TaskHelper;
+import org.json.JSONObject;
+
+import javax.security.auth.login.LoginException;
+import java.sql.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The MySQL-archive (config: {@code host}, {@code database}, {@code user}, {@code password}).
+ * Supports migrating old VARCHAR-ids ({@link IdMigration}) and partitioning ({@link PartitionManager}).
+ */
+public class MySqlStorage extends SqlStorage {
+    private volatile IdMigration migration;
+    private PartitionManager partitions;
+
+    /**
+     * @throws LoginException
+     *      if one of the connection-values is missing in the config
+     */
+    public MySqlStorage(JSONObject config) throws LoginException {
+        super(config);
+        for(String key : new String[]{"host", "database", "user", "password"}) {
+            if(config.optString(key, "").trim().isEmpty())
+                throw new LoginException("one of the db-configs values was empty or non-present");
+        }
+    }
+
+    @Override
+    protected Connection connect() throws SQLException {
+        return connect(config.getString("host"), config.getString("user"), config.getString("password"));
+    }
+
+    /**
+     * Ad-hoc queries go to {@code queryHost} as {@code queryUser} (if set), eg a replica and/or a user with only SELECT-grants.
+     */
+    @Override
+    protected Connection connectForQueries() throws SQLException {
+        String user = config.optString("queryUser", "");
+        return connect(config.optString("queryHost", "").isEmpty() ? config.getString("host") : config.getString("queryHost"),
+                user.isEmpty() ? config.getString("user") : user,
+                user.isEmpty() ? config.getString("password") : config.optString("queryPassword", ""));
+    }
+
+    private Connection connect(String host, String user, String password) throws SQLException {
+        try {
+            Class.forName("com.mysql.jdbc.Driver");
+            //rewriteBatchedStatements lets the driver turn the writers batches into multi-row INSERTs
+            Connection connection = DriverManager.getConnection("jdbc:mysql://" + host + '/' + config.getString("database")
+                    + "?useUnicode=true&rewriteBatchedStatements=true", user, password);
+            Statement statement = connection.createStatement();
+            statement.executeQuery("SET NAMES 'utf8mb4'");
+            statement.close();
+            return connection;
+        } catch(Exception ex) {
+            //08001 marks this as a connection-problem, so the writer starts spooling
+            throw new SQLNonTransientConnectionException("Failed to connect or login to DB", "08001", ex);
+        }
+    }
+
+    /**
+     * Multiplies the rows EXPLAIN estimates for every table of the plan (ie assumes nested loops),
+     * which is what a join without usable indexes costs.
+     */
+    @Override
+    protected long estimateCost(Connection conn, String query) throws SQLException {
+        long cost = 1;
+        try(Statement statement = conn.createStatement()) {
+            statement.setQueryTimeout(5);
+            ResultSet rs = statement.executeQuery("EXPLAIN " + query);
+            while(rs.next()) {
+                long rows = rs.getLong("rows");
+                if(rows > 0)
+                    cost = rows > Long.MAX_VALUE / cost ? Long.MAX_VALUE : cost * rows;
+            }
+            rs.close();
+        }
+        return cost;
+    }
+
+    @Override
+    protected String createTable(Schema.Table table) {
+        return table.create(table.name, true);
+    }
+
+    @Override
+    protected void upgradeTables(Connection conn) throws SQLException {
+        Schema.upgrade(conn);
+        Schema.detect(conn);
+    }
+
+    @Override
+    public void open() throws SQLException {
+        super.open();
+        if(config.optBoolean("partitioning", false)) {
+            partitions = new PartitionManager(pool, config);
+            TaskHelper.startTimed("db-partitions", 24 * 60 * 60 * 1000, partitions);
+        }
+    }
+
+    /**
+     * Starts the online migration of the id-columns to BIGINT in the background.
+     */
+    @Override
+    public String migrateIds() {
+        if(Schema.hasNumericIds())
+            return super.migrateIds();
+        IdMigration newMigration = new IdMigration(pool, writer, config);
+        if(!TaskHelper.start("db-migration", newMigration))
+            return "Migration is already running: " + migration.getStatus();
+        migration = newMigration;
+        return "Migration started. Check -kbdbstats for progress";
+    }
+
+    @Override
+    public String getStats() {
+        return super.getStats() + String.format("\n%-15s%s\n%-15s%s",
+                "Id-type:", (Schema.hasNumericIds() ? Schema.ID : "VARCHAR") + (migration == null ? "" : " (migration " + migration.getStatus() + ')'),
+                "Partitions:", partitions == null ? "disabled" : partitions.getStatus());
+    }
+
+    @Override
+    public void close() {
+        if(partitions != null) {
+            TaskHelper.stop("db-partitions");
+            partitions = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Drops all tables of the configured database.
+     */
+    public void drop() {
+        Connection conn = null;
+        try {
+            conn = connect();
+            LOG.info("Dropping all tables...");
+            conn.setAutoCommit(false);
+            Set<String> tables = new HashSet<>();
+            ResultSet tableRows = conn.getMetaData().getTables(null, null, null, new String[]{"TABLE"});
+            while(tableRows.next()) {
+                tables.add(tableRows.getString("TABLE_NAME").toLowerCase());
+            }
+            tableRows.close();
+            Statement statement = conn.createStatement();
+            statement.setQueryTimeout(10);
+            statement.addBatch("SET FOREIGN_KEY_CHECKS = 0;");
+            for(String table : tables) {
+                statement.addBatch("DROP TABLE " + table + ";");
+            }
+            statement.addBatch("SET FOREIGN_KEY_CHECKS  = 1;");
+            statement.executeBatch();
+            statement.close();
+            conn.commit();
+            LOG.info("All tables dropped!");
+        } catch(SQLException e) {
+            if(conn != null) {
+                try {
+                    conn.rollback();
+                } catch(SQLException e1) {
+                    LOG.log(e1);
+                }
+            }
+            LOG.log(e);
+        } finally {
+            if(conn != null) {
+                try {
+                    conn.setAutoCommit(true);
+                    conn.close();
+                } catch(SQLException e) {
+                    LOG.log(e);
+                }
+            }
+        }
+    }
+}
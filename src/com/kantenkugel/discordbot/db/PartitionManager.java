@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Monthly RANGE-partitioning of messages and message_edits.
+ * <p>
+ * Both tables are partitioned on the message-snowflake (which encodes its creation-time), so partition {@code pYYYYMM}
+ * of both tables holds the messages created in that month and all of their edits.
+ * Every {@link #run() run} makes sure that partitions exist {@code partitionsAhead} months in advance and,
+ * if {@code retentionMonths} is set, exports partitions older than that to gzipped json-lines files in {@code archiveDir}
+ * before dropping them.
+ * <p>
+ * MySQL does not support foreign-keys on partitioned tables, so the ones of messages and message_edits are dropped
+ * when partitioning is enabled. Requires numeric ids (see {@link IdMigration}).
+ */
+public class PartitionManager implements Runnable {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Partitions");
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("'p'yyyyMM");
+    private static final String[] TABLES = {"messages", "message_edits"};
+
+    private final ConnectionPool pool;
+    private final int ahead;
+    private final int retention;
+    private final Path archiveDir;
+
+    private volatile String status = "not run yet";
+
+    public PartitionManager(ConnectionPool pool, JSONObject config) {
+        this.pool = pool;
+        this.ahead = Math.max(1, config.optInt("partitionsAhead", 3));
+        this.retention = config.optInt("retentionMonths", 0);
+        this.archiveDir = Paths.get(config.optString("archiveDir", "archive"));
+    }
+
+    @Override
+    public void run() {
+        if(!Schema.hasNumericIds()) {
+            status = "disabled, ids need to be migrated first (-kbdbmigrate)";
+            return;
+        }
+        try(PooledConnection pc = pool.borrow()) {
+            Connection conn = pc.getConnection();
+            List<String> partitions = getPartitions(conn, "messages");
+            if(partitions.isEmpty()) {
+                partition(conn);
+                partitions = getPartitions(conn, "messages");
+            }
+            int created = createAhead(conn, partitions);
+            int archived = 0;
+            if(retention > 0) {
+                String oldest = YearMonth.now(ZoneOffset.UTC).minusMonths(retention).format(NAME_FORMAT);
+                for(String partition : getPartitions(conn, "messages")) {
+                    //names sort chronologically, pmax sorts last
+                    if(partition.compareTo(oldest) >= 0)
+                        break;
+                    archive(conn, partition);
+                    archived++;
+                }
+            }
+            partitions = getPartitions(conn, "messages");
+            status = String.format("%d partitions (%s - %s), %d created, %d archived at %s", partitions.size(),
+                    partitions.get(0), partitions.get(partitions.size() - 1), created, archived, LocalDateTime.now().withNano(0));
+            if(created > 0 || archived > 0)
+                LOG.info("Maintenance done: " + status);
+        } catch(SQLException | IOException e) {
+            LOG.log(e);
+            status = "failed: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Converts the (not yet partitioned) tables.
+     * This rebuilds the tables, so it takes a while on big existing archives.
+     */
+    private void partition(Connection conn) throws SQLException {
+        LOG.info("Partitioning messages and message_edits. This may take a while on big tables...");
+        long start = System.currentTimeMillis();
+        YearMonth first = YearMonth.now(ZoneOffset.UTC);
+        try(Statement statement = conn.createStatement()) {
+            ResultSet rs = statement.executeQuery("SELECT MIN(id) FROM messages;");
+            if(rs.next() && rs.getObject(1) != null)
+                first = YearMonth.from(Instant.ofEpochMilli(Schema.timeOf(rs.getLong(1))).atOffset(ZoneOffset.UTC));
+            rs.close();
+            dropForeignKeys(conn, statement);
+            //the partition-key has to be part of every unique key
+            statement.executeUpdate("ALTER TABLE message_edits DROP PRIMARY KEY, ADD PRIMARY KEY (id, messageId);");
+            statement.executeUpdate("ALTER TABLE messages PARTITION BY RANGE (id) (" + definitions(first) + ");");
+            statement.executeUpdate("ALTER TABLE message_edits PARTITION BY RANGE (messageId) (" + definitions(first) + ");");
+        }
+        LOG.info("Partitioned tables in " + (System.currentTimeMillis() - start) / 1000 + "s");
+    }
+
+    private static void dropForeignKeys(Connection conn, Statement statement) throws SQLException {
+        List<String[]> foreignKeys = new ArrayList<>();
+        try(PreparedStatement lookup = conn.prepareStatement("SELECT TABLE_NAME, CONSTRAINT_NAME FROM information_schema.REFERENTIAL_CONSTRAINTS " +
+                "WHERE CONSTRAINT_SCHEMA = DATABASE() AND (TABLE_NAME IN ('messages', 'message_edits') OR REFERENCED_TABLE_NAME IN ('messages', 'message_edits'));")) {
+            ResultSet rs = lookup.executeQuery();
+            while(rs.next()) {
+                foreignKeys.add(new String[]{rs.getString(1), rs.getString(2)});
+            }
+            rs.close();
+        }
+        for(String[] foreignKey : foreignKeys) {
+            statement.executeUpdate("ALTER TABLE " + foreignKey[0] + " DROP FOREIGN KEY " + foreignKey[1] + ';');
+        }
+    }
+
+    private String definitions(YearMonth first) {
+        StringBuilder sb = new StringBuilder();
+        YearMonth last = YearMonth.now(ZoneOffset.UTC).plusMonths(ahead);
+        for(YearMonth month = first; !month.isAfter(last); month = month.plusMonths(1)) {
+            sb.append(definition(month)).append(", ");
+        }
+        return sb.append("PARTITION pmax VALUES LESS THAN MAXVALUE").toString();
+    }
+
+    private static String definition(YearMonth month) {
+        long end = month.plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+        return "PARTITION " + month.format(NAME_FORMAT) + " VALUES LESS THAN (" + Schema.snowflakeAt(end) + ')';
+    }
+
+    private int createAhead(Connection conn, List<String> partitions) throws SQLException {
+        String newest = partitions.size() < 2 ? null : partitions.get(partitions.size() - 2);
+        YearMonth month = newest == null
+                ? YearMonth.now(ZoneOffset.UTC)
+                : YearMonth.parse(newest, NAME_FORMAT).plusMonths(1);
+        YearMonth last = YearMonth.now(ZoneOffset.UTC).plusMonths(ahead);
+        int created = 0;
+        try(Statement statement = conn.createStatement()) {
+            for(; !month.isAfter(last); month = month.plusMonths(1)) {
+                for(String table : TABLES) {
+                    //pmax is empty as long as we stay ahead, so this is just a metadata-change
+                    statement.executeUpdate("ALTER TABLE " + table + " REORGANIZE PARTITION pmax INTO ("
+                            + definition(month) + ", PARTITION pmax VALUES LESS THAN MAXVALUE);");
+                }
+                created++;
+            }
+        }
+        return created;
+    }
+
+    private void archive(Connection conn, String partition) throws SQLException, IOException {
+        Files.createDirectories(archiveDir);
+        long rows = 0;
+        for(String table : TABLES) {
+            Path file = archiveDir.resolve(table + '-' + partition + ".jsonl.gz");
+            Path tmp = archiveDir.resolve(file.getFileName() + ".tmp");
+            try(Statement statement = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmp)), StandardCharsets.UTF_8))) {
+                //streams the rows instead of loading the whole partition into memory (mysql-driver specific)
+                statement.setFetchSize(Integer.MIN_VALUE);
+                ResultSet rs = statement.executeQuery("SELECT * FROM " + table + " PARTITION (" + partition + ");");
+                ResultSetMetaData meta = rs.getMetaData();
+                while(rs.next()) {
+                    JSONObject row = new JSONObject();
+                    for(int i = 1; i <= meta.getColumnCount(); i++) {
+                        Object value = rs.getObject(i);
+                        row.put(meta.getColumnLabel(i), value instanceof Timestamp ? value.toString() : value);
+                    }
+                    out.write(row.toString());
+                    out.write('\n');
+                    rows++;
+                }
+                rs.close();
+            }
+            //only a complete export gets its final name
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try(Statement statement = conn.createStatement()) {
+            for(String table : TABLES) {
+                statement.executeUpdate("ALTER TABLE " + table + " DROP PARTITION " + partition + ';');
+            }
+        }
+        LOG.info("Archived and dropped partition " + partition + " (" + rows + " rows)");
+    }
+
+    private static List<String> getPartitions(Connection conn, String table) throws SQLException {
+        List<String> partitions = new ArrayList<>();
+        try(PreparedStatement statement = conn.prepareStatement("SELECT PARTITION_NAME FROM information_schema.PARTITIONS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION;")) {
+            statement.setString(1, table);
+            ResultSet rs = statement.executeQuery();
+            while(rs.next()) {
+                partitions.add(rs.getString(1));
+            }
+            rs.close();
+        }
+        return partitions;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection handed out by the {@link ConnectionPool}.
+ * Every pooled connection keeps its own cache of prepared statements, so a statement is only ever used by the thread
+ * currently holding the connection.
+ * <br>Closing this object returns it to the pool (closing it again has no effect). Statements returned by the prepare-methods must not be closed by the caller.
+ * <br>All statements are {@link DbMetrics#instrument(PreparedStatement, String) instrumented}.
+ */
+public class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final long created = System.currentTimeMillis();
+    long lastUsed = System.currentTimeMillis();
+    private boolean broken = false;
+    //set while this is back in the pool, so closing it twice doesn't hand out an extra permit
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    PooledConnection(ConnectionPool pool, Connection conn) {
+        this.pool = pool;
+        this.conn = conn;
+    }
+
+    public Connection getConnection() {
+        return conn;
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    public PreparedStatement prepare(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        String key = resultSetType + ":" + resultSetConcurrency + ':' + sql;
+        PreparedStatement statement = statements.get(key);
+        if(statement == null || statement.isClosed()) {
+            statement = DbMetrics.instrument(conn.prepareStatement(sql, resultSetType, resultSetConcurrency), DbMetrics.nameOf(sql));
+            statement.setQueryTimeout(pool.getQueryTimeout());
+            statements.put(key, statement);
+        }
+        return statement;
+    }
+
+    public PreparedStatement prepareWithKeys(String sql) throws SQLException {
+        String key = "keys:" + sql;
+        PreparedStatement statement = statements.get(key);
+        if(statement == null || statement.isClosed()) {
+            statement = DbMetrics.instrument(conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS), DbMetrics.nameOf(sql));
+            statement.setQueryTimeout(pool.getQueryTimeout());
+            statements.put(key, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Runs {@code sql + "(?, ?, ...)"} for the given snowflake-ids, using one statement per {@code chunkSize} ids.
+     * These statements are not cached, as their placeholder-count differs between calls.
+     *
+     * @param sql
+     *      the statement, ending with {@code IN }
+     * @return
+     *      the summed update-count
+     */
+    public int executeIn(String sql, Collection<String> ids, int chunkSize) throws SQLException {
+        int changed = 0;
+        Iterator<String> iterator = ids.iterator();
+        int remaining = ids.size();
+        while(remaining > 0) {
+            int size = Math.min(remaining, chunkSize);
+            StringBuilder placeholders = new StringBuilder("(");
+            for(int i = 0; i < size; i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            try(PreparedStatement statement = DbMetrics.instrument(conn.prepareStatement(sql + placeholders.append(");")), DbMetrics.nameOf(sql))) {
+                statement.setQueryTimeout(pool.getQueryTimeout());
+                for(int i = 1; i <= size; i++) {
+                    Schema.setId(statement, i, iterator.next());
+                }
+                changed += statement.executeUpdate();
+            }
+            remaining -= size;
+        }
+        return changed;
+    }
+
+    public int getCachedStatementCount() {
+        return statements.size();
+    }
+
+    public long getAge() {
+        return System.currentTimeMillis() - created;
+    }
+
+    /**
+     * Marks this connection as unusable. It will be closed instead of being returned to the pool.
+     */
+    public void markBroken() {
+        broken = true;
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    void reopen() {
+        closed.set(false);
+    }
+
+    void closeQuietly() {
+        for(PreparedStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch(SQLException ignored) {}
+        }
+        statements.clear();
+        try {
+            conn.close();
+        } catch(SQLException ignored) {}
+    }
+
+    @Override
+    public void close() {
+        if(closed.compareAndSet(false, true))
+            pool.release(this);
+    }
+}
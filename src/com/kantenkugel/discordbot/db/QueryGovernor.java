@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the ad-hoc queries of admins (-kbdbquery) apart from the archive.
+ * <ul>
+ *     <li>Queries use their own read-only connections (on a replica, if the storage is configured for one),
+ *     so they never wait for or block the connections of the writer</li>
+ *     <li>Only reading statements are accepted</li>
+ *     <li>At most {@code queryConcurrency} queries run at once, further ones are rejected right away</li>
+ *     <li>SELECTs the storage estimates to examine more than {@code queryMaxCost} rows are rejected before they run</li>
+ *     <li>Results are cut off after the requested rows and queries are cancelled after {@code queryTimeLimit} seconds</li>
+ *     <li>Running queries can be listed and cancelled</li>
+ * </ul>
+ */
+public class QueryGovernor {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Query");
+    private static final Pattern READING = Pattern.compile("^\\s*(SELECT|WITH|SHOW|EXPLAIN|DESCRIBE|DESC)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ESTIMABLE = Pattern.compile("^\\s*(SELECT|WITH)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final ConnectionPool pool;
+    private final CostEstimator estimator;
+    private final int concurrency;
+    private final Semaphore slots;
+    private final int timeLimit;
+    private final long maxCost;
+
+    private final Map<Integer, Running> running = new ConcurrentSkipListMap<>();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final AtomicLong executed = new AtomicLong(), rejected = new AtomicLong(), cancelled = new AtomicLong();
+
+    public QueryGovernor(ConnectionPool.ConnectionFactory factory, CostEstimator estimator, JSONObject config) {
+        this.estimator = estimator;
+        this.concurrency = Math.max(1, config.optInt("queryConcurrency", 2));
+        this.slots = new Semaphore(concurrency);
+        this.timeLimit = Math.max(1, config.optInt("queryTimeLimit", 30));
+        this.maxCost = config.optLong("queryMaxCost", 1000000);
+        this.pool = new ConnectionPool(() -> {
+            Connection conn = factory.create();
+            conn.setReadOnly(true);
+            return conn;
+        }, new JSONObject()
+                .put("poolSize", concurrency)
+                .put("borrowTimeout", 5000)
+                .put("validationInterval", config.optLong("validationInterval", 30000))
+                .put("queryTimeout", timeLimit));
+    }
+
+    /**
+     * Runs the given query and hands the live result to the handler.
+     *
+     * @param maxRows
+     *      the most rows the db has to produce
+     * @return
+     *      what the handler returned
+     * @throws SQLException
+     *      if the query was rejected, cancelled or failed
+     */
+    public <T> T query(String query, int maxRows, ArchiveStorage.ResultHandler<T> handler) throws SQLException {
+        if(!READING.matcher(query).find()) {
+            rejected.incrementAndGet();
+            throw new SQLException("Only reading queries (SELECT, WITH, SHOW, EXPLAIN, DESCRIBE) are allowed");
+        }
+        if(!slots.tryAcquire()) {
+            rejected.incrementAndGet();
+            throw new SQLTransientException("Already running " + concurrency + " queries, try again later (or cancel one)");
+        }
+        try(PooledConnection c = pool.borrow()) {
+            if(maxCost > 0 && ESTIMABLE.matcher(query).find()) {
+                long cost = estimator.estimate(c.getConnection(), query);
+                if(cost > maxCost) {
+                    rejected.incrementAndGet();
+                    throw new SQLException("Query would examine ~" + cost + " rows (limit " + maxCost + "), please narrow it down");
+                }
+            }
+            try(Statement statement = c.getConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                statement.setQueryTimeout(timeLimit);
+                //lets the db stop early instead of sending rows nobody reads
+                statement.setMaxRows(maxRows);
+                Running run = new Running(query, statement);
+                running.put(run.id, run);
+                long start = System.nanoTime();
+                try(ResultSet rs = statement.executeQuery(query)) {
+                    T result = handler.handle(rs);
+                    DbMetrics.get("adhocQuery").record(System.nanoTime() - start, 0, 0, false, false);
+                    return result;
+                } catch(SQLException e) {
+                    DbMetrics.get("adhocQuery").record(System.nanoTime() - start, 0, 0, true, e instanceof SQLTimeoutException);
+                    if(run.cancelled)
+                        throw new SQLException("Query #" + run.id + " was cancelled", e);
+                    throw e;
+                } finally {
+                    running.remove(run.id);
+                    executed.incrementAndGet();
+                }
+            }
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * @return
+     *      true, if a query with the given id was running (and got cancelled)
+     */
+    public boolean cancel(int id) {
+        Running run = running.get(id);
+        if(run == null)
+            return false;
+        run.cancel();
+        return true;
+    }
+
+    /**
+     * @return
+     *      the number of cancelled queries
+     */
+    public int cancelAll() {
+        int count = 0;
+        for(Running run : running.values()) {
+            run.cancel();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return
+     *      one line per running query (id, runtime and query), oldest first
+     */
+    public List<String> getRunning() {
+        List<String> lines = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for(Running run : running.values()) {
+            lines.add(String.format("#%d %5.1fs %s", run.id, (now - run.started) / 1000D, StringUtils.abbreviate(run.query, 150)));
+        }
+        return lines;
+    }
+
+    public String getStats() {
+        return String.format("%d/%d running, %d executed, %d rejected, %d cancelled",
+                running.size(), concurrency, executed.get(), rejected.get(), cancelled.get());
+    }
+
+    public void close() {
+        cancelAll();
+        pool.close();
+    }
+
+    /**
+     * Estimates the cost of a query without running it (eg via EXPLAIN).
+     */
+    public interface CostEstimator {
+        /**
+         * @return
+         *      the estimated number of rows the query examines, or -1 if unknown
+         */
+        long estimate(Connection conn, String query) throws SQLException;
+    }
+
+    private class Running {
+        private final int id = ids.incrementAndGet();
+        private final long started = System.currentTimeMillis();
+        private final String query;
+        private final Statement statement;
+        private volatile boolean cancelled = false;
+
+        private Running(String query, Statement statement) {
+            this.query = query;
+            this.statement = statement;
+        }
+
+        private void cancel() {
+            if(cancelled)
+                return;
+            cancelled = true;
+            QueryGovernor.this.cancelled.incrementAndGet();
+            try {
+                statement.cancel();
+            } catch(SQLException e) {
+                LOG.log(e);
+            }
+        }
+    }
+}
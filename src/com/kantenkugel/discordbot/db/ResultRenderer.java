@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import org.json.JSONObject;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Renders a (live) ResultSet as fixed-width text without holding more than {@code queryWidthWindow} rows in memory.
+ * <p>
+ * Column-widths are taken from the current window of rows (they only ever grow, so a wide value further down
+ * widens the columns from there on). The output is handed to the sink in chunks of at most chunkSize chars as soon as
+ * a chunk is full, and stops after {@code queryMaxRows} rows or {@code queryMaxChars} chars with a note that the result
+ * was truncated.
+ */
+public class ResultRenderer {
+    private static final int FOOTER_RESERVE = 60;
+
+    private final int maxRows;
+    private final int maxChars;
+    private final int window;
+    private final int maxColumnWidth;
+    private final int chunkSize;
+    private final Consumer<String> sink;
+
+    private final StringBuilder chunk = new StringBuilder();
+    private int rows = 0;
+    private int chars = 0;
+
+    public ResultRenderer(JSONObject config, int chunkSize, Consumer<String> sink) {
+        this.maxRows = Math.max(1, config.optInt("queryMaxRows", 200));
+        this.maxChars = Math.max(chunkSize, config.optInt("queryMaxChars", 8000));
+        this.window = Math.max(1, config.optInt("queryWidthWindow", 50));
+        this.maxColumnWidth = Math.max(4, config.optInt("queryMaxColumnWidth", 40));
+        this.chunkSize = chunkSize;
+        this.sink = sink;
+    }
+
+    /**
+     * @return
+     *      the most rows that are rendered. Reading one more than that tells that the result is truncated
+     */
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * Renders the remaining rows of the ResultSet. Does not close it.
+     *
+     * @return
+     *      the number of rendered rows
+     */
+    public int render(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int columns = meta.getColumnCount();
+        int[] widths = new int[columns];
+        List<String[]> pending = new ArrayList<>(window + 1);
+        String[] header = new String[columns];
+        for(int i = 0; i < columns; i++) {
+            header[i] = value(meta.getColumnLabel(i + 1));
+        }
+        pending.add(header);
+
+        String truncated = null;
+        boolean hasNext = rs.next();
+        while(truncated == null) {
+            while(hasNext && rows < maxRows && pending.size() < window) {
+                String[] row = new String[columns];
+                for(int i = 0; i < columns; i++) {
+                    Object value = rs.getObject(i + 1);
+                    row[i] = value(value == null ? "null" : value.toString());
+                }
+                pending.add(row);
+                rows++;
+                hasNext = rs.next();
+            }
+            for(String[] row : pending) {
+                for(int i = 0; i < columns; i++) {
+                    widths[i] = Math.max(widths[i], row[i].length() + 1);
+                }
+            }
+            for(int i = 0; i < pending.size() && truncated == null; i++) {
+                String line = line(pending.get(i), widths);
+                if(chars + line.length() + 1 > maxChars - FOOTER_RESERVE) {
+                    rows -= pending.size() - i;
+                    truncated = "... (truncated after " + rows + " rows, " + maxChars + " chars)";
+                } else {
+                    append(line);
+                }
+            }
+            pending.clear();
+            if(!hasNext)
+                break;
+            if(rows >= maxRows)
+                truncated = "... (truncated after " + rows + " rows)";
+        }
+        if(truncated != null)
+            append(truncated);
+        else if(rows == 0)
+            append("(no rows)");
+        if(chunk.length() > 0)
+            emit();
+        return rows;
+    }
+
+    private String value(String raw) {
+        String value = raw.replace('\n', ' ').replace('\r', ' ').replace('\t', ' ');
+        return value.length() > maxColumnWidth ? value.substring(0, maxColumnWidth - 3) + "..." : value;
+    }
+
+    private static String line(String[] row, int[] widths) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < row.length; i++) {
+            sb.append(row[i]);
+            if(i < row.length - 1) {
+                for(int pad = row[i].length(); pad < widths[i]; pad++) {
+                    sb.append(' ');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private void append(String line) {
+        if(line.length() > chunkSize)
+            line = line.substring(0, chunkSize - 3) + "...";
+        if(chunk.length() > 0 && chunk.length() + 1 + line.length() > chunkSize)
+            emit();
+        if(chunk.length() > 0)
+            chunk.append('\n');
+        chunk.append(line);
+        chars += line.length() + 1;
+    }
+
+    private void emit() {
+        sink.accept(chunk.toString());
+        chunk.setLength(0);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Table-definitions of the archive and helpers for binding snowflake-ids.
+ * <br>Ids are stored as {@code BIGINT UNSIGNED}. Databases created before that still use {@code VARCHAR(20)} ids until
+ * they are migrated with {@link IdMigration}, so ids have to be bound via {@link #setId(PreparedStatement, int, String)}
+ * (or {@link #id(String)}), which picks the type matching the current schema.
+ */
+public class Schema {
+    public static final String ID = "BIGINT UNSIGNED";
+
+    public static final List<Table> TABLES = Collections.unmodifiableList(Arrays.asList(
+            new Table("guilds", new String[]{"id", "name", "last_seen"},
+                    " id " + ID + " NOT NULL PRIMARY KEY," +
+                    " name VARCHAR(100) NOT NULL," +
+                    " last_seen DATE DEFAULT NULL"),
+            new Table("channels", new String[]{"id", "name", "guildId", "deleted"},
+                    " id " + ID + " NOT NULL PRIMARY KEY," +
+                    " name VARCHAR(100) NOT NULL," +
+                    " guildId " + ID + " NOT NULL," +
+                    " deleted BIT(1) DEFAULT 0 NOT NULL",
+                    "CONSTRAINT fk_channels_guild FOREIGN KEY (guildId) REFERENCES guilds(id) ON DELETE CASCADE"),
+            new Table("users", new String[]{"id", "username"},
+                    " id " + ID + " NOT NULL PRIMARY KEY," +
+                    " username VARCHAR(32) NOT NULL"),
+            new Table("user_aliases", new String[]{"id", "userId", "alias"},
+                    " id INT AUTO_INCREMENT PRIMARY KEY," +
+                    " userId " + ID + " NOT NULL," +
+                    " alias VARCHAR(32) NOT NULL",
+                    "CONSTRAINT fk_user_aliases_user FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE"),
+            new Table("messages", new String[]{"id", "channelId", "authorId", "content", "created", "deleted"},
+                    " id " + ID + " NOT NULL PRIMARY KEY," +
+                    " channelId " + ID + " NOT NULL," +
+                    " authorId " + ID + " NOT NULL," +
+                    " content VARCHAR(2000) NOT NULL," +
+                    " created DATETIME(3) NOT NULL," +
+                    " deleted BIT(1) DEFAULT 0 NOT NULL," +
+                    " INDEX idx_messages_channel_created (channelId, created)",
+                    "CONSTRAINT fk_messages_author FOREIGN KEY (authorId) REFERENCES users(id) ON DELETE NO ACTION",
+                    "CONSTRAINT fk_messages_channel FOREIGN KEY (channelId) REFERENCES channels(id) ON DELETE CASCADE"),
+            new Table("message_edits", new String[]{"id", "messageId", "kind", "content", "edited"},
+                    " id INT AUTO_INCREMENT PRIMARY KEY," +
+                    " messageId " + ID + " NOT NULL," +
+                    " kind TINYINT DEFAULT 0 NOT NULL," +
+                    " content VARCHAR(2000) NOT NULL," +
+                    " edited DATETIME(3) NOT NULL",
+                    "CONSTRAINT fk_message_edits_message FOREIGN KEY (messageId) REFERENCES messages(id) ON DELETE CASCADE"),
+            new Table("bans", new String[]{"id", "guildId", "bannedId", "executorId", "reason", "created"},
+                    " id INT AUTO_INCREMENT PRIMARY KEY," +
+                    " guildId " + ID + " NOT NULL," +
+                    " bannedId " + ID + " NOT NULL," +
+                    " executorId " + ID + " NOT NULL," +
+                    " reason VARCHAR(250) NOT NULL," +
+                    " created DATETIME NOT NULL",
+                    "CONSTRAINT fk_bans_banned FOREIGN KEY (bannedId) REFERENCES users(id) ON DELETE NO ACTION",
+                    "CONSTRAINT fk_bans_executor FOREIGN KEY (executorId) REFERENCES users(id) ON DELETE NO ACTION",
+                    "CONSTRAINT fk_bans_guild FOREIGN KEY (guildId) REFERENCES guilds(id) ON DELETE CASCADE"),
+            //histories are looked up by their random token (null for histories created before tokens existed, which aren't served)
+            new Table("histories", new String[]{"id", "token", "userId", "channelId", "created"},
+                    " id INT AUTO_INCREMENT PRIMARY KEY," +
+                    " token VARBINARY(16) DEFAULT NULL," +
+                    " userId " + ID + " NOT NULL," +
+                    " channelId " + ID + " NOT NULL," +
+                    " created DATETIME DEFAULT CURRENT_TIMESTAMP NOT NULL," +
+                    " CONSTRAINT uq_histories_token UNIQUE (token)",
+                    "CONSTRAINT fk_histories_user FOREIGN KEY (userId) REFERENCES users(id) ON DELETE CASCADE",
+                    "CONSTRAINT fk_histories_channel FOREIGN KEY (channelId) REFERENCES channels(id) ON DELETE CASCADE")
+    ));
+
+    private static volatile boolean numericIds = true;
+
+    /**
+     * Discord-epoch (first second of 2015) in ms. Snowflakes store the ms since then in their upper 42 bits.
+     */
+    public static final long DISCORD_EPOCH = 1420070400000L;
+
+    /**
+     * @return
+     *      the smallest snowflake-id created at (or after) the given time
+     */
+    public static long snowflakeAt(long epochMillis) {
+        return Math.max(0, epochMillis - DISCORD_EPOCH) << 22;
+    }
+
+    /**
+     * @return
+     *      the creation-time (epoch ms) of the given snowflake-id
+     */
+    public static long timeOf(long snowflake) {
+        return (snowflake >>> 22) + DISCORD_EPOCH;
+    }
+
+    /**
+     * Checks which id-type the existing tables use. Has to be called after the tables were created.
+     */
+    public static void detect(Connection conn) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement("SELECT DATA_TYPE FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'guilds' AND COLUMN_NAME = 'id';")) {
+            ResultSet rs = statement.executeQuery();
+            numericIds = !rs.next() || !"varchar".equalsIgnoreCase(rs.getString(1));
+            rs.close();
+        }
+    }
+
+    /**
+     * Adds columns and indexes introduced after the table was created.
+     */
+    public static void upgrade(Connection conn) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*) FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'message_edits' AND COLUMN_NAME = 'kind';")) {
+            ResultSet rs = statement.executeQuery();
+            boolean hasKind = rs.next() && rs.getInt(1) > 0;
+            rs.close();
+            //existing rows are full contents, which is what the default (SNAPSHOT) says
+            if(!hasKind)
+                statement.executeUpdate("ALTER TABLE message_edits ADD COLUMN kind TINYINT DEFAULT 0 NOT NULL AFTER messageId;");
+        }
+        try(PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*) FROM information_schema.STATISTICS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'messages' AND INDEX_NAME = 'idx_messages_channel_created';")) {
+            ResultSet rs = statement.executeQuery();
+            boolean hasIndex = rs.next() && rs.getInt(1) > 0;
+            rs.close();
+            //keyset-pagination of the history-pages
+            if(!hasIndex)
+                statement.executeUpdate("ALTER TABLE messages ADD INDEX idx_messages_channel_created (channelId, created);");
+        }
+        try(PreparedStatement statement = conn.prepareStatement("SELECT COUNT(*) FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'histories' AND COLUMN_NAME = 'token';")) {
+            ResultSet rs = statement.executeQuery();
+            boolean hasToken = rs.next() && rs.getInt(1) > 0;
+            rs.close();
+            //existing histories keep a null token, so their guessable id-links stop working
+            if(!hasToken)
+                statement.executeUpdate("ALTER TABLE histories ADD COLUMN token VARBINARY(16) DEFAULT NULL AFTER id, " +
+                        "ADD CONSTRAINT uq_histories_token UNIQUE (token);");
+        }
+    }
+
+    public static boolean hasNumericIds() {
+        return numericIds;
+    }
+
+    static void setNumericIds(boolean numeric) {
+        numericIds = numeric;
+    }
+
+    /**
+     * Binds a snowflake-id with the type of the current schema.
+     * Binding a number against a VARCHAR-column (or the other way around) would make MySQL compare as DOUBLE,
+     * which can't use the index and loses precision on snowflakes.
+     */
+    public static void setId(PreparedStatement statement, int index, String id) throws SQLException {
+        if(numericIds)
+            statement.setLong(index, Long.parseLong(id));
+        else
+            statement.setString(index, id);
+    }
+
+    /**
+     * @return
+     *      the given snowflake-id as Long or String, matching the current schema
+     */
+    public static Object id(String id) {
+        return numericIds ? (Object) Long.parseLong(id) : id;
+    }
+
+    public static class Table {
+        public final String name;
+        final String[] columns;
+        final String definition;
+        final String[] foreignKeys;
+
+        private Table(String name, String[] columns, String definition, String... foreignKeys) {
+            this.name = name;
+            this.columns = columns;
+            this.definition = definition;
+            this.foreignKeys = foreignKeys;
+        }
+
+        /**
+         * @param tableName
+         *      the name to create the table under
+         * @param withForeignKeys
+         *      whether to include the foreign-keys
+         * @return
+         *      the CREATE TABLE statement of this table
+         */
+        public String create(String tableName, boolean withForeignKeys) {
+            return create(tableName, withForeignKeys, " COLLATE utf8mb4_unicode_ci");
+        }
+
+        /**
+         * @param options
+         *      table-options appended to the definition
+         * @see #create(String, boolean)
+         */
+        public String create(String tableName, boolean withForeignKeys, String options) {
+            StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(tableName).append('(').append(definition);
+            if(withForeignKeys) {
+                for(String foreignKey : foreignKeys) {
+                    sql.append(", ").append(foreignKey);
+                }
+            }
+            return sql.append(')').append(options).append(';').toString();
+        }
+
+        String columnList(String prefix) {
+            StringBuilder sb = new StringBuilder();
+            for(String column : columns) {
+                if(sb.length() > 0)
+                    sb.append(", ");
+                sb.append(prefix).append(column);
+            }
+            return sb.toString();
+        }
+    }
+}
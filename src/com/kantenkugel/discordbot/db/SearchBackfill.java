@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Adds the messages archived before the {@link SearchIndex} existed to it.
+ * Works backwards from the creation of the index in chunks of {@code migrationChunkSize} messages and keeps its position
+ * in {@code <searchDir>/backfill}, so an aborted run continues where it stopped when started again.
+ * Indexes the latest version of every message that is not deleted.
+ */
+public class SearchBackfill implements Runnable {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Search");
+
+    private final ArchiveStorage storage;
+    private final SearchIndex index;
+    private final int chunkSize;
+    private final long pause;
+
+    private volatile String status = "not started";
+
+    public SearchBackfill(ArchiveStorage storage, SearchIndex index, JSONObject config) {
+        this.storage = storage;
+        this.index = index;
+        this.chunkSize = Math.max(100, config.optInt("migrationChunkSize", 5000));
+        this.pause = config.optLong("migrationPause", 50);
+    }
+
+    @Override
+    public void run() {
+        if(!Schema.hasNumericIds()) {
+            status = "disabled, ids need to be migrated first (-kbdbmigrate)";
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Path checkpoint = index.getDirectory().resolve("backfill");
+        long messages = 0;
+        try {
+            long upper = Files.exists(checkpoint)
+                    ? Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim())
+                    : Schema.snowflakeAt(index.getCreated());
+            while(!Thread.interrupted()) {
+                List<String[]> chunk = storage.getMessagesBefore(upper, chunkSize);
+                if(chunk.isEmpty())
+                    break;
+                for(String[] message : chunk) {
+                    index.add(message[0], message[1], message[2], message[3], message[4], false);
+                }
+                upper = Long.parseLong(chunk.get(chunk.size() - 1)[0]);
+                messages += chunk.size();
+                //the position may only move once the chunk is on disk
+                index.flush();
+                Files.write(checkpoint, Long.toString(upper).getBytes(StandardCharsets.UTF_8));
+                status = "indexing: " + messages + " messages so far";
+                Thread.sleep(pause);
+            }
+            status = String.format("done in %ds: %d messages indexed", (System.currentTimeMillis() - start) / 1000, messages);
+            LOG.info("Backfill " + status);
+        } catch(SQLException | IOException e) {
+            LOG.log(e);
+            status = "failed: " + e.getMessage() + " (can be restarted)";
+        } catch(InterruptedException e) {
+            status = "aborted (can be restarted)";
+        }
+    }
+
+    public String getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Incrementally maintained full-text index of the archived messages, stored as segment-files in {@code searchDir}.
+ * <p>
+ * New messages go into an in-memory segment, which is written to disk every {@code searchFlushInterval} ms
+ * (or once it holds {@code searchFlushSize} messages). Written segments are never changed: edits add a new version of the
+ * message plus a tombstone hiding the older versions, deletes just add a tombstone. Once there are more than
+ * {@code searchMaxSegments} segments, the smallest neighbouring ones are merged, which also drops hidden versions.
+ * <p>
+ * Searches return the messages containing all terms, ranked by BM25 and filtered by guild/channel/author/time.
+ * Only ids are indexed, the contents of the hits have to be read from the DB.
+ * Messages still in memory are lost on a crash (not on a normal {@link #close()}).
+ */
+public class SearchIndex {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Search");
+
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 40;
+    private static final double K1 = 1.2, B = 0.75;
+
+    private final Path dir;
+    private final int flushSize;
+    private final long flushInterval;
+    private final int maxSegments;
+    private final int maxSegmentDocs;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object maintainLock = new Object();
+    private final List<DiskSegment> segments = new ArrayList<>();
+    private final List<MemorySegment> pending = new ArrayList<>();
+    //message-id -> newest generation hiding its older versions
+    private final Map<Long, Integer> tombstones = new ConcurrentHashMap<>();
+    private final long created;
+    private MemorySegment buffer;
+    private long bufferStart;
+
+    private volatile long indexed = 0, searches = 0, searchNanos = 0, merges = 0;
+
+    public SearchIndex(JSONObject config) throws IOException {
+        this.dir = Paths.get(config.optString("searchDir", "search"));
+        this.flushSize = Math.max(100, config.optInt("searchFlushSize", 10000));
+        this.flushInterval = config.optLong("searchFlushInterval", 60000);
+        this.maxSegments = Math.max(2, config.optInt("searchMaxSegments", 10));
+        this.maxSegmentDocs = config.optInt("searchMaxSegmentDocs", 5000000);
+        Files.createDirectories(dir);
+        Path createdFile = dir.resolve("created");
+        if(!Files.exists(createdFile))
+            Files.write(createdFile, Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+        this.created = Long.parseLong(new String(Files.readAllBytes(createdFile), StandardCharsets.UTF_8).trim());
+        load();
+        int generation = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).getGeneration() + 1;
+        buffer = new MemorySegment(generation);
+        bufferStart = System.currentTimeMillis();
+    }
+
+    private void load() throws IOException {
+        List<DiskSegment> found = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "seg-*")) {
+            for(Path file : files) {
+                if(file.toString().endsWith(".tmp")) {
+                    //unfinished flush or merge
+                    Files.delete(file);
+                    continue;
+                }
+                try {
+                    found.add(new DiskSegment(file));
+                } catch(IOException | RuntimeException e) {
+                    LOG.warn("Skipping broken search-segment " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        //widest range first, so leftovers of an interrupted merge come after the merged segment
+        found.sort(Comparator.comparingInt(DiskSegment::getFirstGeneration)
+                .thenComparing(Comparator.comparingInt(DiskSegment::getGeneration).reversed()));
+        for(DiskSegment segment : found) {
+            if(!segments.isEmpty() && segment.getFirstGeneration() <= segments.get(segments.size() - 1).getGeneration()) {
+                //source of a merged segment, which was written before the sources were removed
+                Files.deleteIfExists(segment.getFile());
+                continue;
+            }
+            segments.add(segment);
+        }
+        rebuildTombstones();
+        if(!segments.isEmpty())
+            LOG.info("Loaded " + segments.size() + " search-segments with " + getDocCount() + " messages");
+    }
+
+    /**
+     * Indexes a message (or a new version of it).
+     *
+     * @param edit
+     *      whether this is a new version of an already indexed message
+     */
+    public void add(String id, String guildId, String channelId, String authorId, String content, boolean edit) {
+        Map<String, Integer> terms = new HashMap<>();
+        int length = 0;
+        for(String term : tokenize(content)) {
+            terms.merge(term, 1, Integer::sum);
+            length++;
+        }
+        long messageId = Long.parseLong(id);
+        lock.writeLock().lock();
+        try {
+            buffer.add(messageId, Long.parseLong(guildId), Long.parseLong(channelId), Long.parseLong(authorId), terms, length, edit);
+            if(edit)
+                tombstones.merge(messageId, buffer.getGeneration(), Math::max);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        indexed++;
+    }
+
+    public void delete(String id) {
+        long messageId = Long.parseLong(id);
+        lock.writeLock().lock();
+        try {
+            buffer.delete(messageId);
+            tombstones.merge(messageId, buffer.getGeneration(), Math::max);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Result search(Query query) {
+        long start = System.nanoTime();
+        Set<String> terms = new LinkedHashSet<>(tokenize(query.text));
+        if(terms.isEmpty())
+            return new Result(Collections.emptyList(), 0, 0);
+        //min-heap of the best offset+limit hits
+        PriorityQueue<Hit> top = new PriorityQueue<>(Comparator.comparingDouble((Hit h) -> h.score).thenComparingLong(h -> h.id));
+        Map<Long, Hit> best = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            List<SearchSegment> all = new ArrayList<>(segments.size() + pending.size() + 1);
+            all.addAll(segments);
+            all.addAll(pending);
+            all.add(buffer);
+            long docs = 0, totalLength = 0;
+            Map<String, Integer> docFreqs = new HashMap<>();
+            for(SearchSegment segment : all) {
+                docs += segment.size();
+                totalLength += segment.getTotalLength();
+                for(String term : terms) {
+                    docFreqs.merge(term, segment.getDocFreq(term), Integer::sum);
+                }
+            }
+            double avgLength = docs == 0 ? 1 : (double) totalLength / docs;
+            Map<String, Double> idf = new HashMap<>();
+            for(String term : terms) {
+                int docFreq = docFreqs.get(term);
+                idf.put(term, Math.log(1 + (docs - docFreq + 0.5) / (docFreq + 0.5)));
+            }
+            for(SearchSegment segment : all) {
+                for(Map.Entry<Integer, Double> match : match(segment, terms, idf, avgLength, query).entrySet()) {
+                    Hit hit = new Hit(segment, match.getKey(), match.getValue());
+                    //the same version may be indexed twice (live and by a backfill)
+                    Hit other = best.get(hit.id);
+                    if(other == null || other.score < hit.score)
+                        best.put(hit.id, hit);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        int wanted = query.offset + query.limit;
+        for(Hit hit : best.values()) {
+            top.add(hit);
+            if(top.size() > wanted)
+                top.poll();
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(top.comparator().reversed());
+        hits = query.offset >= hits.size() ? Collections.emptyList() : hits.subList(query.offset, hits.size());
+        long took = System.nanoTime() - start;
+        searches++;
+        searchNanos += took;
+        return new Result(hits, best.size(), took / 1000);
+    }
+
+    /**
+     * @return
+     *      doc -> score of all live documents of the segment matching all terms and the filters
+     */
+    private Map<Integer, Double> match(SearchSegment segment, Set<String> terms, Map<String, Double> idf, double avgLength, Query query) {
+        List<String> ordered = new ArrayList<>(terms);
+        //rarest term first, so the candidate-set starts small
+        ordered.sort(Comparator.comparingInt(segment::getDocFreq));
+        if(segment.getDocFreq(ordered.get(0)) == 0)
+            return Collections.emptyMap();
+        Map<Integer, Double> candidates = new HashMap<>();
+        for(String term : ordered) {
+            double termIdf = idf.get(term);
+            boolean first = candidates.isEmpty();
+            Map<Integer, Double> next = new HashMap<>();
+            segment.forEachPosting(term, (doc, freq) -> {
+                Double score = candidates.get(doc);
+                if(first ? !accept(segment, doc, query) : score == null)
+                    return;
+                double norm = freq + K1 * (1 - B + B * segment.getLength(doc) / avgLength);
+                next.put(doc, (score == null ? 0 : score) + termIdf * freq * (K1 + 1) / norm);
+            });
+            if(next.isEmpty())
+                return Collections.emptyMap();
+            candidates.clear();
+            candidates.putAll(next);
+        }
+        return candidates;
+    }
+
+    private boolean accept(SearchSegment segment, int doc, Query query) {
+        long id = segment.getId(doc);
+        return isLive(segment, doc)
+                && id >= query.minId && id < query.maxId
+                && (query.guildId == 0 || segment.getGuildId(doc) == query.guildId)
+                && (query.channelId == 0 || segment.getChannelId(doc) == query.channelId)
+                && (query.authorId == 0 || segment.getAuthorId(doc) == query.authorId);
+    }
+
+    private boolean isLive(SearchSegment segment, int doc) {
+        if(segment.isDeleted(doc))
+            return false;
+        Integer hiddenBy = tombstones.get(segment.getId(doc));
+        return hiddenBy == null || hiddenBy <= segment.getGeneration();
+    }
+
+    /**
+     * Flushes the in-memory segment if it is big or old enough and merges segments if there are too many.
+     * Called periodically in the background.
+     */
+    public void maintain() {
+        if(getBufferSize() >= flushSize || System.currentTimeMillis() - bufferStart >= flushInterval)
+            flush();
+        try {
+            merge();
+        } catch(IOException e) {
+            LOG.warn("Merging search-segments failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the in-memory segment to disk.
+     */
+    public void flush() {
+        synchronized(maintainLock) {
+            lock.writeLock().lock();
+            try {
+                if(!buffer.isEmpty()) {
+                    pending.add(buffer);
+                    buffer = new MemorySegment(buffer.getGeneration() + 1);
+                }
+                bufferStart = System.currentTimeMillis();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            //segments of failed flushes stay pending (and searchable) until they could be written
+            while(!pending.isEmpty()) {
+                MemorySegment memory = pending.get(0);
+                DiskSegment written;
+                try {
+                    written = DiskSegment.write(dir, Collections.singletonList(memory), this::isLive, !segments.isEmpty());
+                } catch(IOException e) {
+                    LOG.warn("Could not write search-segment: " + e.getMessage());
+                    return;
+                }
+                lock.writeLock().lock();
+                try {
+                    pending.remove(0);
+                    segments.add(written);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    private void merge() throws IOException {
+        synchronized(maintainLock) {
+            while(segments.size() > maxSegments) {
+                //smallest window of neighbouring segments that gets the count back to the limit
+                int count = segments.size() - maxSegments + 1;
+                int from = -1;
+                long smallest = Long.MAX_VALUE;
+                for(int i = 0; i + count <= segments.size(); i++) {
+                    long docs = 0;
+                    for(int j = i; j < i + count; j++) {
+                        docs += segments.get(j).size();
+                    }
+                    if(docs < smallest) {
+                        smallest = docs;
+                        from = i;
+                    }
+                }
+                if(smallest > maxSegmentDocs) {
+                    LOG.debug("Not merging search-segments, smallest merge would hold " + smallest + " messages");
+                    return;
+                }
+                List<DiskSegment> sources = new ArrayList<>(segments.subList(from, from + count));
+                //tombstones only hide older segments, so the oldest one does not need to keep them
+                DiskSegment merged = DiskSegment.write(dir, sources, this::isLive, from > 0);
+                lock.writeLock().lock();
+                try {
+                    segments.subList(from, from + count).clear();
+                    segments.add(from, merged);
+                    if(from == 0)
+                        rebuildTombstones();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                for(DiskSegment source : sources) {
+                    Files.deleteIfExists(source.getFile());
+                }
+                merges++;
+                LOG.debug("Merged " + count + " search-segments into " + merged.getFile().getFileName() + " (" + merged.size() + " messages)");
+            }
+        }
+    }
+
+    private void rebuildTombstones() {
+        tombstones.clear();
+        List<SearchSegment> all = new ArrayList<>(segments);
+        all.addAll(pending);
+        if(buffer != null)
+            all.add(buffer);
+        for(SearchSegment segment : all) {
+            for(long id : segment.getTombstones()) {
+                tombstones.merge(id, segment.getGeneration(), Math::max);
+            }
+        }
+    }
+
+    /**
+     * @return
+     *      the time (epoch ms) this index was created at. Messages created after that were indexed as they came in
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Writes the in-memory segment, so nothing is lost.
+     */
+    public void close() {
+        flush();
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getDocCount() {
+        lock.readLock().lock();
+        try {
+            long docs = buffer == null ? 0 : buffer.size();
+            for(SearchSegment segment : segments) {
+                docs += segment.size();
+            }
+            for(SearchSegment segment : pending) {
+                docs += segment.size();
+            }
+            return docs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getBufferSize() {
+        lock.readLock().lock();
+        try {
+            return buffer.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getIndexed() {
+        return indexed;
+    }
+
+    public long getSearches() {
+        return searches;
+    }
+
+    public long getMerges() {
+        return merges;
+    }
+
+    /**
+     * @return
+     *      the average time of a search in ms
+     */
+    public double getAverageSearchTime() {
+        return searches == 0 ? 0 : searchNanos / searches / 1e6;
+    }
+
+    /**
+     * Splits text into lower-case terms of letters and digits.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for(int i = 0; i <= text.length(); i++) {
+            boolean part = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if(part && start < 0) {
+                start = i;
+            } else if(!part && start >= 0) {
+                if(i - start >= MIN_TERM_LENGTH && i - start <= MAX_TERM_LENGTH)
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    public static class Query {
+        private final String text;
+        private final long guildId;
+        private long channelId = 0, authorId = 0;
+        private long minId = 0, maxId = Long.MAX_VALUE;
+        private int offset = 0, limit = 10;
+
+        /**
+         * @param guildId
+         *      the guild to search in, null for all guilds
+         * @param text
+         *      the terms to search for
+         */
+        public Query(String guildId, String text) {
+            this.guildId = guildId == null ? 0 : Long.parseLong(guildId);
+            this.text = text;
+        }
+
+        public Query channel(String channelId) {
+            this.channelId = channelId == null ? 0 : Long.parseLong(channelId);
+            return this;
+        }
+
+        public Query author(String authorId) {
+            this.authorId = authorId == null ? 0 : Long.parseLong(authorId);
+            return this;
+        }
+
+        /**
+         * Only matches messages created within the given time-range.
+         *
+         * @param after
+         *      epoch ms (inclusive)
+         * @param before
+         *      epoch ms (exclusive)
+         */
+        public Query between(long after, long before) {
+            this.minId = Schema.snowflakeAt(after);
+            this.maxId = Schema.snowflakeAt(before);
+            return this;
+        }
+
+        /**
+         * @param page
+         *      the page to return, starting at 1
+         */
+        public Query page(int page, int pageSize) {
+            this.offset = (Math.max(1, page) - 1) * pageSize;
+            this.limit = pageSize;
+            return this;
+        }
+    }
+
+    public static class Hit {
+        public final long id;
+        public final String channelId, authorId;
+        public final double score;
+
+        private Hit(SearchSegment segment, int doc, double score) {
+            this.id = segment.getId(doc);
+            this.channelId = Long.toString(segment.getChannelId(doc));
+            this.authorId = Long.toString(segment.getAuthorId(doc));
+            this.score = score;
+        }
+
+        public String getId() {
+            return Long.toString(id);
+        }
+
+        /**
+         * @return
+         *      the creation-time (epoch ms)
+         */
+        public long getTime() {
+            return Schema.timeOf(id);
+        }
+    }
+
+    public static class Result {
+        public final List<Hit> hits;
+        public final int total;
+        public final long tookMicros;
+
+        private Result(List<Hit> hits, int total, long tookMicros) {
+            this.hits = hits;
+            this.total = total;
+            this.tookMicros = tookMicros;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.util.Collection;
+
+/**
+ * A part of the {@link SearchIndex}: a table of documents (archived message-versions) and the postings of their terms.
+ * Documents are addressed by their ordinal within the segment.
+ * <p>
+ * Every segment has a generation. A tombstone of generation {@code g} hides all documents of the same message in segments
+ * older than {@code g}, which is how edits and deletes reach segments that were already written.
+ */
+interface SearchSegment {
+    int getGeneration();
+
+    int size();
+
+    /**
+     * @return
+     *      the sum of the lengths (in terms) of all documents
+     */
+    long getTotalLength();
+
+    long getId(int doc);
+
+    long getGuildId(int doc);
+
+    long getChannelId(int doc);
+
+    long getAuthorId(int doc);
+
+    int getLength(int doc);
+
+    /**
+     * @return
+     *      true, if the document was replaced or deleted within this segment
+     */
+    boolean isDeleted(int doc);
+
+    int getDocFreq(String term);
+
+    /**
+     * Passes all postings of the given term in ascending document-order to the consumer.
+     */
+    void forEachPosting(String term, PostingConsumer consumer);
+
+    Collection<String> getTerms();
+
+    /**
+     * @return
+     *      the message-ids this segment hides in older segments
+     */
+    long[] getTombstones();
+
+    interface PostingConsumer {
+        void accept(int doc, int freq);
+    }
+}
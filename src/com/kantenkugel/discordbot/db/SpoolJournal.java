@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import net.dv8tion.jda.utils.SimpleLog;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal of {@link ArchiveOp ArchiveOps} that could not be written to the DB.
+ * <br>Layout: {@code [magic][readPos][writePos][count]} followed by {@code [length][crc32][data]} records.
+ * The header is updated after each record, but the OS may write the pages of a mapped file in any order.
+ * After a crash, a record whose length or checksum doesn't match is treated as the end of the journal,
+ * so a half-written record is discarded (together with everything behind it) instead of being replayed.
+ */
+public class SpoolJournal {
+    private static final SimpleLog LOG = SimpleLog.getLog("DB-Spool");
+
+    private static final int MAGIC = 0x4B425351; //KBSQ
+    private static final int HEADER_SIZE = 16;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private int readPos, writePos, count;
+
+    public SpoolJournal(Path file, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if(buffer.getInt(0) == MAGIC) {
+            readPos = buffer.getInt(4);
+            writePos = buffer.getInt(8);
+            count = buffer.getInt(12);
+            //eg. spoolSize was reduced since the last run
+            if(readPos < HEADER_SIZE || readPos > writePos || writePos > capacity || count < 0) {
+                LOG.warn("Spool-header is invalid for a capacity of " + capacity + " bytes. Discarding spooled writes");
+                reset();
+            } else if(count > 0) {
+                LOG.info("Found " + count + " spooled writes from previous run");
+            }
+        } else {
+            buffer.putInt(0, MAGIC);
+            reset();
+        }
+    }
+
+    /**
+     * Appends the given op to the end of this journal.
+     *
+     * @return
+     *      false, if the journal is full
+     */
+    public synchronized boolean append(ArchiveOp op) {
+        byte[] data;
+        try {
+            data = encode(op);
+        } catch(IOException e) {
+            LOG.log(e);
+            return false;
+        }
+        if(writePos + 8 + data.length > capacity) {
+            compact();
+            if(writePos + 8 + data.length > capacity)
+                return false;
+        }
+        buffer.position(writePos);
+        buffer.putInt(data.length);
+        buffer.putInt(checksum(data));
+        buffer.put(data);
+        writePos += 8 + data.length;
+        count++;
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Reads (without removing) up to max ops from the head of this journal.
+     * Call {@link #commit(Batch)} once they were written successfully.
+     * <br>If a torn record is found, the batch ends there and committing it discards the rest of the journal.
+     */
+    public synchronized Batch peek(int max) {
+        List<ArchiveOp> ops = new ArrayList<>(Math.max(0, Math.min(max, count)));
+        int pos = readPos;
+        while(pos < writePos && ops.size() < max) {
+            int length = writePos - pos >= 8 ? buffer.getInt(pos) : -1;
+            if(length < 0 || length > writePos - pos - 8) {
+                LOG.warn("Invalid spool-record length at " + pos + ". Discarding the remaining " + (writePos - pos) + " bytes");
+                return new Batch(ops, writePos, readPos);
+            }
+            int crc = buffer.getInt(pos + 4);
+            byte[] data = new byte[length];
+            buffer.position(pos + 8);
+            buffer.get(data);
+            if(crc != checksum(data)) {
+                LOG.warn("Spool-record at " + pos + " was not fully written. Discarding the remaining " + (writePos - pos) + " bytes");
+                return new Batch(ops, writePos, readPos);
+            }
+            pos += 8 + length;
+            try {
+                ops.add(decode(data));
+            } catch(IOException e) {
+                LOG.warn("Skipping corrupt spool-record at " + (pos - 8 - length));
+            }
+        }
+        return new Batch(ops, pos, readPos);
+    }
+
+    /**
+     * Removes the ops of the given batch from this journal.
+     */
+    public synchronized void commit(Batch batch) {
+        if(batch.start != readPos)
+            throw new IllegalStateException("Spool was modified since this batch was read");
+        readPos = batch.end;
+        count = Math.max(0, count - batch.ops.size());
+        if(readPos >= writePos) {
+            reset();
+        } else {
+            writeHeader();
+        }
+    }
+
+    /**
+     * Forces all changes to disk.
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized int getUsedBytes() {
+        return writePos - readPos;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void close() {
+        buffer.force();
+        try {
+            channel.close();
+        } catch(IOException e) {
+            LOG.log(e);
+        }
+    }
+
+    private void reset() {
+        readPos = HEADER_SIZE;
+        writePos = HEADER_SIZE;
+        count = 0;
+        writeHeader();
+    }
+
+    private void compact() {
+        if(readPos == HEADER_SIZE)
+            return;
+        byte[] live = new byte[writePos - readPos];
+        buffer.position(readPos);
+        buffer.get(live);
+        buffer.position(HEADER_SIZE);
+        buffer.put(live);
+        readPos = HEADER_SIZE;
+        writePos = HEADER_SIZE + live.length;
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        buffer.putInt(4, readPos);
+        buffer.putInt(8, writePos);
+        buffer.putInt(12, count);
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(ArchiveOp op) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op.type.ordinal());
+        writeString(out, op.id);
+        writeString(out, op.channelId);
+        writeString(out, op.guildId);
+        writeString(out, op.authorId);
+        writeString(out, op.authorName);
+        writeString(out, op.name);
+        writeString(out, op.content);
+        out.writeLong(op.timestamp);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static ArchiveOp decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int type = in.readUnsignedByte();
+        if(type >= ArchiveOp.Type.values().length)
+            throw new IOException("Unknown op-type " + type);
+        return new ArchiveOp(ArchiveOp.Type.values()[type], readString(in), readString(in), readString(in),
+                readString(in), readString(in), readString(in), readString(in), in.readLong());
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public static class Batch {
+        public final List<ArchiveOp> ops;
+        private final int end, start;
+
+        private Batch(List<ArchiveOp> ops, int end, int start) {
+            this.ops = Collections.unmodifiableList(ops);
+            this.end = end;
+            this.start = start;
+        }
+    }
+}
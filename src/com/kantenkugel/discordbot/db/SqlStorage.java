@@ -0,0 +1,816 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import com.kantenkugel.discordbot.util.TaskHelper;
+import net.dv8tion.jda.utils.SimpleLog;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.sql.*;
+import java.time.OffsetDateTime;
+import java.util.*;
+
+/**
+ * {@link ArchiveStorage} on top of a JDBC-database.
+ * Messages (and everything else that can wait) go through the {@link ArchiveWriter}, structural changes are written directly
+ * unless the DB is unavailable. Subclasses provide the connections and the dialect-specific parts of the schema.
+ */
+public abstract class SqlStorage implements ArchiveStorage {
+    protected static final SimpleLog LOG = SimpleLog.getLog("DB");
+
+    //Guild+Channel
+    private static final String GUILD_UPDATE = DbMetrics.named("guildUpdate", "SELECT * FROM guilds WHERE id = ?;");
+    private static final String GUILD_CHANNELS = DbMetrics.named("guildChannels", "SELECT * FROM channels WHERE guildId = ?;");
+    private static final String CHANNEL_UPDATE = DbMetrics.named("channelUpdate", "SELECT * FROM channels WHERE id = ?;");
+    //Bans
+    private static final String BAN_ADD = DbMetrics.named("banAdd", "INSERT INTO bans(guildId, bannedId, executorId, reason, created) VALUES (?, ?, ?, ?, ?);");
+    private static final String BAN_LOOKUP = DbMetrics.named("banLookup", "SELECT bans.*, u1.username AS bannedName, u2.username AS executorName " +
+            "FROM bans JOIN users AS u1 ON bans.bannedId = u1.id JOIN users AS u2 ON bans.executorId = u2.id " +
+            "WHERE guildId=? ORDER BY bans.created, bans.id;");
+    //User-Update
+    private static final String USER_UPDATE = DbMetrics.named("userUpdate", "SELECT * FROM users WHERE id=?;");
+    private static final String USER_ALIAS_UPDATE = DbMetrics.named("userAliasUpdate", "SELECT * FROM user_aliases WHERE userId=? AND alias=?;");
+    //History
+    private static final String HISTORY_CREATE = DbMetrics.named("historyCreate", "INSERT INTO histories(token, userId, channelId, created) VALUES (?, ?, ?, ?);");
+    private static final String HISTORY_LOOKUP = DbMetrics.named("historyLookup", "SELECT h.userId, h.channelId, c.name, g.name, h.created FROM histories AS h " +
+            "JOIN channels AS c ON c.id = h.channelId JOIN guilds AS g ON g.id = c.guildId WHERE h.token = ?;");
+    private static final int HISTORY_TOKEN_BYTES = 16;
+    private static final SecureRandom TOKEN_RANDOM = new SecureRandom();
+    private static final String HISTORY_PAGE = "SELECT m.id, m.authorId, u.username, m.content, m.created, m.deleted, " +
+            "EXISTS(SELECT 1 FROM message_edits AS e WHERE e.messageId = m.id) FROM messages AS m LEFT JOIN users AS u ON u.id = m.authorId " +
+            "WHERE m.channelId = ? AND %s ORDER BY m.created DESC, m.id DESC LIMIT ?;";
+    private static final String HISTORY_FIRST = DbMetrics.named("historyFirst", String.format(HISTORY_PAGE, "m.created <= ?"));
+    private static final String HISTORY_NEXT = DbMetrics.named("historyNext", String.format(HISTORY_PAGE, "(m.created < ? OR (m.created = ? AND m.id < ?))"));
+    //Search-backfill
+    private static final String MESSAGES_BEFORE = DbMetrics.named("messagesBefore", "SELECT m.id, c.guildId, m.channelId, m.authorId, m.content FROM messages AS m " +
+            "JOIN channels AS c ON c.id = m.channelId WHERE m.id < ? AND m.deleted = 0 ORDER BY m.id DESC LIMIT ?;");
+
+    protected final JSONObject config;
+    protected ConnectionPool pool;
+    protected ArchiveWriter writer;
+    protected CircuitBreaker breaker;
+    private UserCache userCache;
+    private volatile GuildReconciler.Result lastReconcile;
+    private volatile EditConverter editConverter;
+    private QueryGovernor queryGovernor;
+
+    protected SqlStorage(JSONObject config) {
+        this.config = config;
+    }
+
+    /**
+     * @return
+     *      a new connection to the database
+     * @throws SQLException
+     *      if connecting failed. Connection-problems should use a SQLState of class 08, so writes get spooled
+     */
+    protected abstract Connection connect() throws SQLException;
+
+    /**
+     * @return
+     *      a new connection for ad-hoc queries (made read-only by the {@link QueryGovernor}).
+     *      Defaults to {@link #connect()}, implementations can point this to a replica
+     */
+    protected Connection connectForQueries() throws SQLException {
+        return connect();
+    }
+
+    /**
+     * Cost-check of the {@link QueryGovernor}.
+     *
+     * @return
+     *      the estimated number of rows the given SELECT examines, or -1 if this dialect can't tell
+     */
+    protected long estimateCost(Connection conn, String query) throws SQLException {
+        return -1;
+    }
+
+    /**
+     * @return
+     *      the CREATE TABLE statement of the given table in this dialect
+     */
+    protected abstract String createTable(Schema.Table table);
+
+    /**
+     * Brings tables created by older versions up to date. Called after all tables were created.
+     */
+    protected void upgradeTables(Connection conn) throws SQLException {}
+
+    @Override
+    public void open() throws SQLException {
+        pool = new ConnectionPool(this::connect, config);
+        LOG.info("Successfully opened Database-connection (pool-size: " + pool.getSize() + ')');
+        if(!createTables()) {
+            closePool();
+            throw new SQLException("Could not create tables");
+        }
+        userCache = new UserCache(config.optInt("userCacheSize", 50000));
+        try(PooledConnection c = pool.borrow()) {
+            LOG.info("Warmed user-cache with " + userCache.warm(c.getConnection()) + " users");
+        } catch(SQLException e) {
+            LOG.log(e);
+        }
+        breaker = new CircuitBreaker(config, this::reconnect);
+        writer = new ArchiveWriter(pool, openSpool(), breaker, config, userCache);
+        writer.start();
+        queryGovernor = new QueryGovernor(this::connectForQueries, this::estimateCost, config);
+        DbMetrics.gauge("writeQueue", writer::getQueueSize);
+        DbMetrics.gauge("spooled", writer::getSpoolSize);
+        DbMetrics.gauge("poolInUse", pool::getInUse);
+        DbMetrics.gauge("poolOpen", pool::getOpen);
+    }
+
+    /**
+     * Reconnect-probe of the circuit-breaker. Runs on the writer-thread while the circuit is open.
+     */
+    private void reconnect() throws SQLException {
+        try(PooledConnection c = pool.borrow()) {
+            if(!c.getConnection().isValid(2)) {
+                c.markBroken();
+                throw new SQLNonTransientConnectionException("Connection is not valid", "08006");
+            }
+        }
+        //the db may have been restored from scratch
+        if(!createTables())
+            throw new SQLException("Could not check/create tables");
+    }
+
+    private SpoolJournal openSpool() {
+        String file = config.optString("spoolFile", "dbspool.dat");
+        if(file.isEmpty())
+            return null;
+        try {
+            return new SpoolJournal(Paths.get(file), config.optInt("spoolSize", 64) * 1024 * 1024);
+        } catch(IOException e) {
+            LOG.warn("Could not open spool-file " + file + ". Writes will be dropped while the DB is unavailable");
+            LOG.log(e);
+            return null;
+        }
+    }
+
+    @Override
+    public void handleMessage(ArchiveOp op) {
+        writer.submit(op);
+    }
+
+    @Override
+    public boolean archive(List<ArchiveOp> ops) throws SQLException {
+        return writer.writeNow(ops);
+    }
+
+    @Override
+    public void handleGuilds(Map<String, String> guilds, Map<String, String[]> channels) {
+        LOG.info("Starting DB-CHECK of Guilds...");
+        GuildReconciler reconciler = new GuildReconciler(pool);
+        guilds.forEach(reconciler::addGuild);
+        channels.forEach((id, channel) -> reconciler.addChannel(id, channel[0], channel[1]));
+        if(!isWritable()) {
+            //without a db, there is nothing to compare against. just spool the current state
+            spool(reconciler.toOps());
+            LOG.info("DB unavailable. Spooled state of " + guilds.size() + " Guilds");
+            return;
+        }
+        if(!config.optBoolean("bulkReconcile", true)) {
+            handleGuildsIncremental(guilds, channels);
+            return;
+        }
+        //on the calling (worker-)thread: later messages may be in channels only this writes, and would fail their foreign-keys
+        try {
+            lastReconcile = reconciler.run();
+            LOG.info("Finished DB-CHECK of Guilds! " + lastReconcile);
+        } catch(SQLException e) {
+            onError(e, reconciler.toOps());
+        }
+    }
+
+    private void handleGuildsIncremental(Map<String, String> guilds, Map<String, String[]> channels) {
+        long start = System.currentTimeMillis();
+        Map<String, Map<String, String>> guildChannels = new HashMap<>();
+        channels.forEach((id, channel) -> guildChannels.computeIfAbsent(channel[1], k -> new HashMap<>()).put(id, channel[0]));
+        try(PooledConnection c = pool.borrow()) {
+            //get existing guilds...
+            ResultSet query = c.prepare("SELECT id FROM guilds WHERE last_seen IS NULL;").executeQuery();
+            Set<String> existing = new HashSet<>();
+            while(query.next()) {
+                existing.add(query.getString(1));
+            }
+            query.close();
+
+            //add/update guilds
+            for(Map.Entry<String, String> guild : guilds.entrySet()) {
+                LOG.trace("Validating guild " + guild.getKey());
+                existing.remove(guild.getKey());
+                updateGuild(c, guild.getKey(), guild.getValue(), guildChannels.getOrDefault(guild.getKey(), Collections.emptyMap()));
+            }
+
+            LOG.debug("Marking unseen dbs");
+            //mark as unseen
+            for(String unfound : existing) {
+                update(c, "UPDATE guilds SET last_seen = CURRENT_DATE WHERE id = ?;", Schema.id(unfound));
+            }
+        } catch(SQLException e) {
+            List<ArchiveOp> ops = new ArrayList<>();
+            guilds.forEach((id, name) -> ops.add(ArchiveOp.guild(id, name)));
+            channels.forEach((id, channel) -> ops.add(ArchiveOp.channel(id, channel[0], channel[1])));
+            onError(e, ops);
+        }
+        LOG.info("Finished DB-CHECK of Guilds in " + (System.currentTimeMillis() - start) + "ms!");
+    }
+
+    @Override
+    public void updateGuild(String id, String name, Map<String, String> channels) {
+        if(!isWritable()) {
+            spool(guildOps(id, name, channels));
+            return;
+        }
+        try(PooledConnection c = pool.borrow()) {
+            updateGuild(c, id, name, channels);
+        } catch(SQLException e) {
+            onError(e, guildOps(id, name, channels));
+        }
+    }
+
+    private static List<ArchiveOp> guildOps(String id, String name, Map<String, String> channels) {
+        List<ArchiveOp> ops = new ArrayList<>(channels.size() + 1);
+        ops.add(ArchiveOp.guild(id, name));
+        channels.forEach((channelId, channelName) -> ops.add(ArchiveOp.channel(channelId, channelName, id)));
+        return ops;
+    }
+
+    private void updateGuild(PooledConnection c, String id, String name, Map<String, String> channels) throws SQLException {
+        PreparedStatement guildUpdate = c.prepare(GUILD_UPDATE, ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
+        Schema.setId(guildUpdate, 1, id);
+        ResultSet rs = guildUpdate.executeQuery();
+        if(rs.next()) {
+            boolean updated = false;
+            if(!rs.getString("name").equals(name)) {
+                rs.updateString("name", name);
+                updated = true;
+            }
+            if(rs.getDate("last_seen") != null) {
+                rs.updateNull("last_seen");
+                updated = true;
+            }
+            if(updated)
+                rs.updateRow();
+            rs.close();
+            handleChannels(c, id, channels);
+        } else {
+            rs.moveToInsertRow();
+            rs.updateString("id", id);
+            rs.updateString("name", name);
+            rs.insertRow();
+            rs.close();
+            for(Map.Entry<String, String> channel : channels.entrySet()) {
+                update(c, "INSERT INTO channels(id, name, guildId) VALUES (?, ?, ?);", Schema.id(channel.getKey()), channel.getValue(), Schema.id(id));
+            }
+        }
+    }
+
+    private void handleChannels(PooledConnection c, String guildId, Map<String, String> guildChannels) throws SQLException {
+        Map<String, String> channels = new HashMap<>(guildChannels);
+        PreparedStatement channelLookup = c.prepare(GUILD_CHANNELS, ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
+        Schema.setId(channelLookup, 1, guildId);
+        ResultSet rs = channelLookup.executeQuery();
+        while(rs.next()) {
+            String channelId = rs.getString("id");
+            if(channels.containsKey(channelId)) {
+                String name = channels.get(channelId);
+                if(!rs.getString("name").equals(name)) {
+                    rs.updateString("name", name);
+                    rs.updateBoolean("deleted", rs.getBoolean("deleted"));
+                    rs.updateRow();
+                }
+                channels.remove(channelId);
+            } else {
+                rs.updateBoolean("deleted", true);
+                rs.updateRow();
+            }
+        }
+        for(Map.Entry<String, String> newChannel : channels.entrySet()) {
+            rs.moveToInsertRow();
+            rs.updateString("id", newChannel.getKey());
+            rs.updateString("name", newChannel.getValue());
+            rs.updateString("guildId", guildId);
+            rs.insertRow();
+        }
+        rs.close();
+    }
+
+    @Override
+    public void deleteGuild(String id) {
+        if(!isWritable()) {
+            spool(Collections.singletonList(ArchiveOp.guildLeave(id)));
+            return;
+        }
+        try(PooledConnection c = pool.borrow()) {
+            update(c, "UPDATE guilds SET last_seen = CURRENT_DATE WHERE id = ?;", Schema.id(id));
+        } catch(SQLException e) {
+            onError(e, Collections.singletonList(ArchiveOp.guildLeave(id)));
+        }
+    }
+
+    @Override
+    public void updateChannel(String id, String name, String guildId) {
+        if(!isWritable()) {
+            spool(Collections.singletonList(ArchiveOp.channel(id, name, guildId)));
+            return;
+        }
+        try(PooledConnection c = pool.borrow()) {
+            PreparedStatement channelUpdate = c.prepare(CHANNEL_UPDATE, ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
+            Schema.setId(channelUpdate, 1, id);
+            ResultSet rs = channelUpdate.executeQuery();
+            if(rs.next()) {
+                if(!rs.getString("name").equals(name)) {
+                    rs.updateString("name", name);
+                    rs.updateBoolean("deleted", rs.getBoolean("deleted"));
+                    rs.updateRow();
+                }
+            } else {
+                rs.moveToInsertRow();
+                rs.updateString("id", id);
+                rs.updateString("name", name);
+                rs.updateString("guildId", guildId);
+                rs.insertRow();
+            }
+            rs.close();
+        } catch(SQLException e) {
+            onError(e, Collections.singletonList(ArchiveOp.channel(id, name, guildId)));
+        }
+    }
+
+    @Override
+    public void deleteChannel(String id) {
+        if(!isWritable()) {
+            spool(Collections.singletonList(ArchiveOp.channelDelete(id)));
+            return;
+        }
+        try(PooledConnection c = pool.borrow()) {
+            update(c, "UPDATE channels SET deleted = 1 WHERE id = ?;", Schema.id(id));
+        } catch(SQLException e) {
+            onError(e, Collections.singletonList(ArchiveOp.channelDelete(id)));
+        }
+    }
+
+    @Override
+    public List<Ban> getBans(String guildId) {
+        List<Ban> bans = new LinkedList<>();
+        if(!breaker.isClosed())
+            return bans;
+        try(PooledConnection c = pool.borrow()) {
+            PreparedStatement banLookup = c.prepare(BAN_LOOKUP);
+            Schema.setId(banLookup, 1, guildId);
+            ResultSet resultSet = banLookup.executeQuery();
+            while(resultSet.next()) {
+                bans.add(new Ban(resultSet.getString("reason"), resultSet.getString("bannedId"), resultSet.getString("bannedName")
+                        , resultSet.getString("executorId"), resultSet.getString("executorName"), (int) (resultSet.getTimestamp("created").getTime() / 1000)));
+            }
+            resultSet.close();
+        } catch(SQLException e) {
+            onError(e, Collections.emptyList());
+        }
+        return bans;
+    }
+
+    @Override
+    public void addBan(String guildId, String bannedId, String bannedName, String executorId, String reason) {
+        if(!breaker.isClosed())
+            return;
+        if(reason.length() > 250) {
+            reason = reason.substring(0, 247) + "...";
+        }
+        try(PooledConnection c = pool.borrow()) {
+            updateUser(c, bannedId, bannedName);
+            PreparedStatement banAdd = c.prepare(BAN_ADD);
+            Schema.setId(banAdd, 1, guildId);
+            Schema.setId(banAdd, 2, bannedId);
+            Schema.setId(banAdd, 3, executorId);
+            banAdd.setString(4, reason);
+            banAdd.setTimestamp(5, new Timestamp(OffsetDateTime.now().toEpochSecond() * 1000));
+            banAdd.executeUpdate();
+        } catch(SQLException e) {
+            onError(e, Collections.emptyList());
+        }
+    }
+
+    @Override
+    public void updateUser(String id, String name) {
+        if(userCache.isCurrent(id, name))
+            return;
+        if(!isWritable()) {
+            spool(Collections.singletonList(ArchiveOp.user(id, name)));
+            return;
+        }
+        try(PooledConnection c = pool.borrow()) {
+            updateUser(c, id, name);
+        } catch(SQLException e) {
+            onError(e, Collections.singletonList(ArchiveOp.user(id, name)));
+        }
+    }
+
+    private void updateUser(PooledConnection c, String id, String name) throws SQLException {
+        PreparedStatement userUpdate = c.prepare(USER_UPDATE, ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
+        Schema.setId(userUpdate, 1, id);
+        ResultSet rs = userUpdate.executeQuery();
+        if(rs.next()) {
+            if(!rs.getString("username").equals(name)) {
+                rs.updateString("username", name);
+                rs.updateRow();
+                PreparedStatement userAliasUpdate = c.prepare(USER_ALIAS_UPDATE, ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
+                Schema.setId(userAliasUpdate, 1, id);
+                userAliasUpdate.setString(2, name);
+                ResultSet resultSet = userAliasUpdate.executeQuery();
+                if(!resultSet.next()) {
+                    resultSet.moveToInsertRow();
+                    resultSet.updateString("userId", id);
+                    resultSet.updateString("alias", name);
+                    resultSet.insertRow();
+                }
+                resultSet.close();
+            }
+        } else {
+            rs.moveToInsertRow();
+            rs.updateString("id", id);
+            rs.updateString("username", name);
+            rs.insertRow();
+            update(c, "INSERT INTO user_aliases(userId, alias) VALUES (?, ?);", Schema.id(id), name);
+        }
+        rs.close();
+        userCache.put(id, name);
+    }
+
+    @Override
+    public List<String> getMessageVersions(String messageId) {
+        if(!breaker.isClosed())
+            return Collections.emptyList();
+        try(PooledConnection c = pool.borrow()) {
+            PreparedStatement original = c.prepare("SELECT content FROM messages WHERE id = ?;");
+            Schema.setId(original, 1, messageId);
+            ResultSet rs = original.executeQuery();
+            if(!rs.next()) {
+                rs.close();
+                return Collections.emptyList();
+            }
+            String content = rs.getString(1);
+            rs.close();
+            PreparedStatement editLookup = c.prepare("SELECT kind, content FROM message_edits WHERE messageId = ? ORDER BY id;");
+            Schema.setId(editLookup, 1, messageId);
+            rs = editLookup.executeQuery();
+            List<Object[]> edits = new ArrayList<>();
+            while(rs.next()) {
+                edits.add(new Object[]{rs.getInt(1), rs.getString(2)});
+            }
+            rs.close();
+            return EditCodec.reconstruct(content, edits);
+        } catch(SQLException e) {
+            onError(e, Collections.emptyList());
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<String, String> getMessageContents(Collection<String> ids) {
+        Map<String, String> contents = new HashMap<>();
+        if(!breaker.isClosed() || ids.isEmpty())
+            return contents;
+        try(PooledConnection c = pool.borrow()) {
+            PreparedStatement originals = DbMetrics.instrument(c.getConnection().prepareStatement("SELECT id, content FROM messages WHERE id IN ("
+                    + placeholders(ids.size()) + ");"), "messageContents");
+            int index = 1;
+            for(String id : ids) {
+                Schema.setId(originals, index++, id);
+            }
+            ResultSet rs = originals.executeQuery();
+            while(rs.next()) {
+                contents.put(rs.getString(1), rs.getString(2));
+            }
+            rs.close();
+            originals.close();
+            applyEdits(c, contents);
+        } catch(SQLException e) {
+            onError(e, Collections.emptyList());
+        }
+        return contents;
+    }
+
+    @Override
+    public List<String[]> getMessagesBefore(long before, int limit) throws SQLException {
+        List<String[]> messages = new ArrayList<>(limit);
+        Map<String, String> contents = new HashMap<>();
+        try(PooledConnection c = pool.borrow()) {
+            PreparedStatement next = c.prepare(MESSAGES_BEFORE);
+            next.setLong(1, before);
+            next.setInt(2, limit);
+            ResultSet rs = next.executeQuery();
+            while(rs.next()) {
+                messages.add(new String[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), null});
+                contents.put(rs.getString(1), rs.getString(5));
+            }
+            rs.close();
+            applyEdits(c, contents);
+        }
+        for(String[] message : messages) {
+            message[4] = contents.get(message[0]);
+        }
+        return messages;
+    }
+
+    /**
+     * Replaces the original contents (id -> content) with the latest version.
+     */
+    private static void applyEdits(PooledConnection c, Map<String, String> contents) throws SQLException {
+        if(contents.isEmpty())
+            return;
+        Map<String, List<Object[]>> edits = new HashMap<>();
+        try(PreparedStatement editLookup = DbMetrics.instrument(c.getConnection().prepareStatement("SELECT messageId, kind, content FROM message_edits " +
+                "WHERE messageId IN (" + placeholders(contents.size()) + ") ORDER BY messageId, id;"), "editsLookup")) {
+            int index = 1;
+            for(String id : contents.keySet()) {
+                Schema.setId(editLookup, index++, id);
+            }
+            ResultSet rs = editLookup.executeQuery();
+            while(rs.next()) {
+                edits.computeIfAbsent(rs.getString(1), k -> new ArrayList<>()).add(new Object[]{rs.getInt(2), rs.getString(3)});
+            }
+            rs.close();
+        }
+        edits.forEach((id, messageEdits) -> contents.put(id, EditCodec.reconstruct(contents.get(id), messageEdits).get(messageEdits.size())));
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        return placeholders.toString();
+    }
+
+    @Override
+    public String migrateIds() {
+        return "Ids are numeric already, nothing to migrate";
+    }
+
+    @Override
+    public String convertEdits() {
+        EditConverter converter = new EditConverter(pool, config);
+        if(!TaskHelper.start("db-editconverter", converter))
+            return "Conversion is already running: " + editConverter.getStatus();
+        editConverter = converter;
+        return "Conversion started. Check -kbdbstats for progress";
+    }
+
+    @Override
+    public String createHistory(String userId, String channelId) {
+        if(!breaker.isClosed())
+            return null;
+        byte[] token = new byte[HISTORY_TOKEN_BYTES];
+        TOKEN_RANDOM.nextBytes(token);
+        try(PooledConnection c = pool.borrow()) {
+            PreparedStatement historyCreate = c.prepare(HISTORY_CREATE);
+            historyCreate.setBytes(1, token);
+            Schema.setId(historyCreate, 2, userId);
+            Schema.setId(historyCreate, 3, channelId);
+            //same clock as the created-times of the messages, which the history-pages are cut off at
+            historyCreate.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            historyCreate.executeUpdate();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+        } catch(SQLException e) {
+            onError(e, Collections.emptyList());
+        }
+        return null;
+    }
+
+    @Override
+    public History getHistory(String token) throws SQLException {
+        byte[] raw;
+        try {
+            raw = Base64.getUrlDecoder().decode(token);
+        } catch(IllegalArgumentException e) {
+            return null;
+        }
+        if(raw.length != HISTORY_TOKEN_BYTES)
+            return null;
+        checkReadable();
+        try(PooledConnection c = pool.borrow()) {
+            PreparedStatement historyLookup = c.prepare(HISTORY_LOOKUP);
+            historyLookup.setBytes(1, raw);
+            ResultSet rs = historyLookup.executeQuery();
+            History history = rs.next()
+                    ? new History(token, rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5).getTime())
+                    : null;
+            rs.close();
+            return history;
+        }
+    }
+
+    @Override
+    public List<HistoryMessage> getHistoryPage(String channelId, long beforeCreated, String beforeId, int limit) throws SQLException {
+        checkReadable();
+        List<Object[]> rows = new ArrayList<>(limit);
+        Map<String, String> edited = new HashMap<>();
+        try(PooledConnection c = pool.borrow()) {
+            PreparedStatement page = c.prepare(beforeId == null ? HISTORY_FIRST : HISTORY_NEXT);
+            int index = 1;
+            Schema.setId(page, index++, channelId);
+            page.setTimestamp(index++, new Timestamp(beforeCreated));
+            if(beforeId != null) {
+                page.setTimestamp(index++, new Timestamp(beforeCreated));
+                Schema.setId(page, index++, beforeId);
+            }
+            page.setInt(index, limit);
+            ResultSet rs = page.executeQuery();
+            while(rs.next()) {
+                rows.add(new Object[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                        rs.getTimestamp(5).getTime(), rs.getBoolean(6), rs.getBoolean(7)});
+                if(rs.getBoolean(7))
+                    edited.put(rs.getString(1), rs.getString(4));
+            }
+            rs.close();
+            //only the edited messages need their edits applied
+            applyEdits(c, edited);
+        }
+        List<HistoryMessage> messages = new ArrayList<>(rows.size());
+        for(Object[] row : rows) {
+            String id = (String) row[0];
+            messages.add(new HistoryMessage(id, (String) row[1], (String) row[2], edited.getOrDefault(id, (String) row[3]),
+                    (Long) row[4], (Boolean) row[6], (Boolean) row[5]));
+        }
+        return messages;
+    }
+
+    private void checkReadable() throws SQLException {
+        if(!breaker.isClosed())
+            throw new SQLTransientConnectionException("DB is unavailable (circuit " + breaker.getState() + ", retry in " + breaker.getRetryIn() / 1000 + "s)");
+    }
+
+    protected static void update(PooledConnection c, String update, Object... objects) throws SQLException {
+        PreparedStatement statement = c.prepare(update);
+        int index = 1;
+        for(Object object : objects) {
+            if(object == null)
+                statement.setNull(index++, Types.VARCHAR);
+            else if(object.getClass() == String.class)
+                statement.setString(index++, ((String) object));
+            else if(object.getClass() == int.class)
+                statement.setInt(index++, (int) object);
+            else if(object.getClass() == Integer.class)
+                statement.setInt(index++, (Integer) object);
+            else if(object.getClass() == long.class)
+                statement.setLong(index++, (long) object);
+            else if(object.getClass() == Long.class)
+                statement.setLong(index++, (Long) object);
+            else if(object.getClass() == boolean.class)
+                statement.setBoolean(index++, (boolean) object);
+            else if(object.getClass() == Boolean.class)
+                statement.setBoolean(index++, (Boolean) object);
+            else {
+                LOG.warn("Unknown parameter type for update()... Got " + object.getClass().getName() + "... Skipping update!");
+                statement.clearParameters();
+                return;
+            }
+        }
+        statement.executeUpdate();
+    }
+
+    /**
+     * Runs an ad-hoc query through the {@link QueryGovernor}, on a connection of its own which is held until the handler
+     * is done with the result.
+     *
+     * @throws SQLException
+     *      if the query was rejected or failed, or the circuit-breaker is open
+     */
+    @Override
+    public <T> T query(String query, int maxRows, ResultHandler<T> handler) throws SQLException {
+        checkReadable();
+        return queryGovernor.query(query, maxRows, handler);
+    }
+
+    @Override
+    public QueryGovernor getQueryGovernor() {
+        return queryGovernor;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return writer.isAvailable();
+    }
+
+    @Override
+    public String getStatus() {
+        if(breaker.isClosed())
+            return "connected" + (writer.getSpoolSize() == 0 ? "" : " (replaying " + writer.getSpoolSize() + " spooled writes)");
+        return "circuit " + breaker.getState() + " for " + breaker.getOpenFor() / 1000 + "s, retry in " + breaker.getRetryIn() / 1000
+                + "s (" + writer.getSpoolSize() + " writes spooled)";
+    }
+
+    @Override
+    public String getStats() {
+        return String.format("%-15s%s\n%-15s%s\n%-15s%d/%d open, %d in use (%d created, %d replaced)\n%-15s%s\n%-15s%s (%d flushes)\n%-15s%d deletes, %d edits (%d round-trips saved)\n%-15s%s\n%-15s%d pending (%d KiB), %d spooled, %d replayed\n%-15s%d/%d\n%-15s%d hits, %d misses (%.1f%%)\n%-15s%s\n%-15s%d deltas, %d snapshots (%d KiB saved)%s\n%-15s%s",
+                "DB:", writer.isAvailable() ? "available" : "UNAVAILABLE",
+                "Circuit:", breaker.isClosed()
+                        ? breaker.getState() + " (" + breaker.getTrips() + " trips)"
+                        : String.format("%s for %ds, %d failed attempts, retry in %ds", breaker.getState(),
+                        breaker.getOpenFor() / 1000, breaker.getFailures(), breaker.getRetryIn() / 1000),
+                "Pool:", pool.getOpen(), pool.getSize(), pool.getInUse(), pool.getCreated(), pool.getReplaced(),
+                "Write-queue:", writer.getQueueSize(),
+                "Written:", writer.getWritten(), writer.getFlushes(),
+                "Coalesced:", writer.getCoalescedDeletes(), writer.getCoalescedEdits(), writer.getSavedRoundTrips(),
+                "Dropped:", writer.getDropped(),
+                "Spool:", writer.getSpoolSize(), writer.getSpoolBytes() / 1024, writer.getSpooled(), writer.getReplayed(),
+                "User-cache:", userCache.size(), userCache.getCapacity(),
+                "Cache-lookups:", userCache.getHits(), userCache.getMisses(), userCache.getHitRate(),
+                "Reconciled:", lastReconcile == null ? "none" : lastReconcile,
+                "Edits:", writer.getEditCodec().getDeltas(), writer.getEditCodec().getSnapshots(), writer.getEditCodec().getSavedChars() / 1024,
+                editConverter == null ? "" : ", conversion " + editConverter.getStatus(),
+                "Ad-hoc:", queryGovernor.getStats());
+    }
+
+    private boolean createTables() {
+        PooledConnection c = null;
+        Connection conn = null;
+        try {
+            c = pool.borrow();
+            conn = c.getConnection();
+            conn.setAutoCommit(false);
+            Statement statement = conn.createStatement();
+            statement.setQueryTimeout(10);
+            for(Schema.Table table : Schema.TABLES) {
+                statement.executeUpdate(createTable(table));
+            }
+            statement.close();
+            conn.commit();
+            upgradeTables(conn);
+            LOG.info("Tables checked/created" + (Schema.hasNumericIds() ? "" : ". Ids are still VARCHAR, use -kbdbmigrate to convert them"));
+            return true;
+        } catch(SQLException e) {
+            LOG.log(e);
+            if(conn != null) {
+                try {
+                    conn.rollback();
+                } catch(SQLException e1) {
+                    LOG.log(e1);
+                }
+            }
+        } finally {
+            if(conn != null) {
+                try {
+                    conn.setAutoCommit(true);
+                } catch(SQLException ignored) {
+                }
+            }
+            if(c != null)
+                c.close();
+        }
+        return false;
+    }
+
+    /**
+     * Writes only go directly to the db if it is reachable and there are no older writes still waiting in the spool.
+     */
+    protected boolean isWritable() {
+        return writer.isAvailable() && !writer.isPaused() && writer.getSpoolSize() == 0;
+    }
+
+    private void spool(List<ArchiveOp> ops) {
+        ops.forEach(writer::submit);
+    }
+
+    private void onError(SQLException e, List<ArchiveOp> ops) {
+        if(ArchiveWriter.isConnectionError(e)) {
+            LOG.fatal("SQL-Query timed out or lost connection! Spooling writes until the DB is reachable again...");
+            writer.markUnavailable();
+            spool(ops);
+        } else {
+            LOG.log(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        //flush pending archive-writes (or spool them) before the connection goes away
+        writer.shutdown(config.optLong("shutdownTimeout", 10000));
+        queryGovernor.close();
+        closePool();
+    }
+
+    private void closePool() {
+        pool.close();
+    }
+}
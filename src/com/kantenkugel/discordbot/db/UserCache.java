@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU-cache of the id -> username mapping stored in the users table.
+ * Entries must only be added once the DB is known to contain them, so a hit means the DB row is up to date.
+ */
+public class UserCache {
+    private final int capacity;
+    private final Map<String, String> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UserCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > UserCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Fills this cache with (up to capacity) users from the users table.
+     *
+     * @param conn
+     *      the connection to read from
+     * @return
+     *      the amount of loaded users
+     * @throws SQLException
+     *      if the lookup failed
+     */
+    public int warm(Connection conn) throws SQLException {
+        int loaded = 0;
+        PreparedStatement statement = conn.prepareStatement("SELECT id, username FROM users LIMIT ?;");
+        statement.setQueryTimeout(30);
+        statement.setInt(1, capacity);
+        ResultSet rs = statement.executeQuery();
+        synchronized(cache) {
+            while(rs.next()) {
+                cache.put(rs.getString(1), rs.getString(2));
+                loaded++;
+            }
+        }
+        rs.close();
+        statement.close();
+        return loaded;
+    }
+
+    /**
+     * Checks if the DB already holds this user with this exact name and counts the lookup as hit/miss.
+     *
+     * @param id
+     *      the id of the user
+     * @param username
+     *      the current name of the user
+     * @return
+     *      true, if no DB-update is necessary
+     */
+    public boolean isCurrent(String id, String username) {
+        String cached;
+        synchronized(cache) {
+            cached = cache.get(id);
+        }
+        if(username.equals(cached)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Marks the given name as persisted for this user.
+     */
+    public void put(String id, String username) {
+        synchronized(cache) {
+            cache.put(id, username);
+        }
+    }
+
+    public void clear() {
+        synchronized(cache) {
+            cache.clear();
+        }
+    }
+
+    public int size() {
+        synchronized(cache) {
+            return cache.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : hits.get() * 100.0 / total;
+    }
+}
@@ -17,12 +17,6 @@
 package com.kantenkugel.discordbot.listener;
 
 import com.kantenkugel.discordbot.DbEngine;
-import com.kantenkugel.discordbot.Statics;
-import com.kantenkugel.discordbot.config.BotConfig;
-import com.kantenkugel.discordbot.util.MessageUtil;
-import com.kantenkugel.discordbot.util.MiscUtil;
-import net.dv8tion.jda.MessageBuilder;
-import net.dv8tion.jda.events.Event;
 import net.dv8tion.jda.events.ReadyEvent;
 import net.dv8tion.jda.events.ReconnectedEvent;
 import net.dv8tion.jda.events.channel.text.TextChannelCreateEvent;
@@ -32,55 +26,21 @@ import net.dv8tion.jda.events.guild.GuildJoinEvent;
 import net.dv8tion.jda.events.guild.GuildLeaveEvent;
 import net.dv8tion.jda.events.guild.GuildUpdateEvent;
 import net.dv8tion.jda.events.message.MessageDeleteEvent;
-import net.dv8tion.jda.events.message.MessageReceivedEvent;
-import net.dv8tion.jda.events.message.MessageUpdateEvent;
 import net.dv8tion.jda.events.user.UserNameUpdateEvent;
-import net.dv8tion.jda.hooks.EventListener;
 
-public class DbListener implements EventListener {
-
-    @Override
-    public void onEvent(Event event) {
-        if(event.getClass() == ReadyEvent.class) {                          //Init
-            DbEngine.handleGuilds(event.getJDA().getGuilds());
-        } else if(event.getClass() == ReconnectedEvent.class) {             //Reinit
-            DbEngine.handleGuilds(event.getJDA().getGuilds());
-        } else if(event.getClass() == UserNameUpdateEvent.class) {          //username
-            DbEngine.updateUser(((UserNameUpdateEvent) event).getUser());
-        } else if(event.getClass() == GuildJoinEvent.class) {               //Guild Join
-            DbEngine.updateGuild(((GuildJoinEvent) event).getGuild());
-        } else if(event.getClass() == GuildLeaveEvent.class) {              //Guild Leave
-            DbEngine.deleteGuild(((GuildLeaveEvent) event).getGuild());
-        } else if(event.getClass() == GuildUpdateEvent.class) {             //Guild Update
-            DbEngine.updateGuild(((GuildUpdateEvent) event).getGuild());
-        } else if(event.getClass() == TextChannelCreateEvent.class) {       //TextChannel Create
-            DbEngine.updateChannel(((TextChannelCreateEvent) event).getChannel());
-        } else if(event.getClass() == TextChannelDeleteEvent.class) {       //TextChannel Delete
-            DbEngine.deleteChannel(((TextChannelDeleteEvent) event).getChannel());
-        } else if(event.getClass() == TextChannelUpdateNameEvent.class) {   //TextChannel Name-update
-            DbEngine.updateChannel(((TextChannelUpdateNameEvent) event).getChannel());
-        } else if(event.getClass() == MessageReceivedEvent.class) {         //Message Received
-            MessageEvent e = new MessageEvent(((MessageReceivedEvent) event).getMessage(), event.getResponseNumber());
-
-            if(!e.isPrivate() &&  e.getContent().startsWith("-kbhistory")
-                    && (MessageUtil.isGlobalAdmin(e.getAuthor()) || e.getGuild().getOwner() == e.getAuthor())) {
-                MessageUtil.reply(e, new MessageBuilder().appendString("History-link: ")
-                        .appendString(BotConfig.get("historyBase"))
-                        .appendString(Long.toString(
-                                DbEngine.createHistory(
-                                        e.getMessage().getMentionedUsers().size() == 0 ? e.getAuthor() : e.getMessage().getMentionedUsers().get(0)
-                                        , e.getTextChannel()))).build());
-            } else if(MessageUtil.isGlobalAdmin(e.getAuthor()) && e.getContent().equals("-kbshutdown")) {
-                MiscUtil.shutdown(Statics.NORMAL_EXIT_CODE);
-            }
-
-            DbEngine.handleMessage(e);
-        } else if(event.getClass() == MessageUpdateEvent.class) {           //Message Updated
-            MessageEvent e = new MessageEvent(((MessageUpdateEvent) event).getMessage(), event.getResponseNumber());
-            DbEngine.handleMessage(e);
-        } else if(event.getClass() == MessageDeleteEvent.class) {           //Message Deleted
-            MessageDeleteEvent e = (MessageDeleteEvent) event;
-            DbEngine.deleteMessage(e.getMessageId());
-        }
+public class DbListener {
+    public void register(EventDispatcher dispatcher) {
+        dispatcher.on(ReadyEvent.class, event -> DbEngine.handleGuilds(event.getJDA().getGuilds()))
+                .on(ReconnectedEvent.class, event -> DbEngine.handleGuilds(event.getJDA().getGuilds()))
+                .on(UserNameUpdateEvent.class, event -> DbEngine.updateUser(event.getUser()))
+                .on(GuildJoinEvent.class, event -> DbEngine.updateGuild(event.getGuild()))
+                .on(GuildLeaveEvent.class, event -> DbEngine.deleteGuild(event.getGuild()))
+                .on(GuildUpdateEvent.class, event -> DbEngine.updateGuild(event.getGuild()))
+                .on(TextChannelCreateEvent.class, event -> DbEngine.updateChannel(event.getChannel()))
+                .on(TextChannelDeleteEvent.class, event -> DbEngine.deleteChannel(event.getChannel()))
+                .on(TextChannelUpdateNameEvent.class, event -> DbEngine.updateChannel(event.getChannel()))
+                .on(MessageDeleteEvent.class, event -> DbEngine.deleteMessage(event.getMessageId()))
+                //the archive-commands are regular commands (ModCommands, BotAdminCommands) running on the command-lanes
+                .onMessage(DbEngine::handleMessage);
     }
 }
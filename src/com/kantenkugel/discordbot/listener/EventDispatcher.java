@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.listener;
+
+import net.dv8tion.jda.events.Event;
+import net.dv8tion.jda.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.events.message.MessageUpdateEvent;
+import net.dv8tion.jda.hooks.EventListener;
+import net.dv8tion.jda.utils.SimpleLog;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The one JDA-listener of the bot, routing each event to the handlers registered for its exact class.
+ * <br>The listeners register their handlers once, {@link #build()} turns them into a Class -> handlers table,
+ * so every event costs a single map-lookup instead of an if/else-chain per listener.
+ * Received and updated messages are wrapped into one {@link MessageEvent}, which is shared by all message-handlers.
+ * <br>Count and handling-time are recorded per event-type ({@link #getStats()}).
+ */
+public class EventDispatcher implements EventListener {
+    private static final SimpleLog LOG = SimpleLog.getLog("Dispatcher");
+
+    private final Map<Class<? extends Event>, List<Consumer<Event>>> handlers = new LinkedHashMap<>();
+    private final List<Consumer<MessageEvent>> messageHandlers = new ArrayList<>();
+    private volatile Map<Class<? extends Event>, Route> routes = Collections.emptyMap();
+    //events nobody handles, only counted
+    private final Map<Class<? extends Event>, AtomicLong> ignored = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a handler for events of exactly the given class (no subclasses).
+     */
+    public <T extends Event> EventDispatcher on(Class<T> type, Consumer<? super T> handler) {
+        handlers.computeIfAbsent(type, k -> new ArrayList<>()).add(event -> handler.accept(type.cast(event)));
+        return this;
+    }
+
+    /**
+     * Registers a handler for received and updated messages (see {@link MessageEvent#isEdit()}).
+     */
+    public EventDispatcher onMessage(Consumer<MessageEvent> handler) {
+        messageHandlers.add(handler);
+        return this;
+    }
+
+    /**
+     * Builds the routing-table from the registered handlers. Has to be called before events arrive.
+     */
+    public EventDispatcher build() {
+        Map<Class<? extends Event>, List<Consumer<Event>>> table = new LinkedHashMap<>();
+        if(!messageHandlers.isEmpty()) {
+            @SuppressWarnings("unchecked")
+            Consumer<MessageEvent>[] shared = messageHandlers.toArray(new Consumer[messageHandlers.size()]);
+            table.computeIfAbsent(MessageReceivedEvent.class, k -> new ArrayList<>()).add(event -> fanOut(shared,
+                    new MessageEvent(((MessageReceivedEvent) event).getMessage(), event.getResponseNumber())));
+            table.computeIfAbsent(MessageUpdateEvent.class, k -> new ArrayList<>()).add(event -> fanOut(shared,
+                    new MessageEvent(((MessageUpdateEvent) event).getMessage(), event.getResponseNumber())));
+        }
+        handlers.forEach((type, list) -> table.computeIfAbsent(type, k -> new ArrayList<>()).addAll(list));
+        Map<Class<? extends Event>, Route> newRoutes = new HashMap<>();
+        table.forEach((type, list) -> newRoutes.put(type, new Route(type, list)));
+        routes = newRoutes;
+        return this;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        Route route = routes.get(event.getClass());
+        if(route == null) {
+            ignored.computeIfAbsent(event.getClass(), k -> new AtomicLong()).incrementAndGet();
+            return;
+        }
+        long start = System.nanoTime();
+        for(Consumer<Event> handler : route.handlers) {
+            //one failing handler must not keep the event from the others
+            try {
+                handler.accept(event);
+            } catch(RuntimeException ex) {
+                LOG.log(ex);
+            }
+        }
+        route.record(System.nanoTime() - start);
+    }
+
+    private static void fanOut(Consumer<MessageEvent>[] handlers, MessageEvent event) {
+        for(Consumer<MessageEvent> handler : handlers) {
+            try {
+                handler.accept(event);
+            } catch(RuntimeException ex) {
+                LOG.log(ex);
+            }
+        }
+    }
+
+    /**
+     * @return
+     *      count, average and max handling-time per handled event-type (slowest total first), and the counts of ignored events
+     */
+    public String getStats() {
+        List<Route> sorted = new ArrayList<>(routes.values());
+        sorted.sort(Comparator.comparingLong((Route route) -> route.totalNanos.get()).reversed());
+        StringBuilder sb = new StringBuilder(String.format("%-28s%9s%10s%10s\n", "Event", "Count", "Avg", "Max"));
+        for(Route route : sorted) {
+            long count = route.count.get();
+            sb.append(String.format("%-28s%9d%8.2fms%8.1fms\n", route.name, count,
+                    count == 0 ? 0 : route.totalNanos.get() / 1e6 / count, route.maxNanos.get() / 1e6));
+        }
+        long ignoredCount = ignored.values().stream().mapToLong(AtomicLong::get).sum();
+        sb.append("Ignored: ").append(ignoredCount).append(" events of ").append(ignored.size()).append(" types");
+        return sb.toString();
+    }
+
+    private static class Route {
+        private final String name;
+        private final Consumer<Event>[] handlers;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        @SuppressWarnings("unchecked")
+        private Route(Class<? extends Event> type, List<Consumer<Event>> handlers) {
+            String name = type.getSimpleName();
+            this.name = name.endsWith("Event") ? name.substring(0, name.length() - 5) : name;
+            this.handlers = handlers.toArray(new Consumer[handlers.size()]);
+        }
+
+        private void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long current;
+            while(nanos > (current = maxNanos.get()) && !maxNanos.compareAndSet(current, nanos)) ;
+        }
+    }
+}
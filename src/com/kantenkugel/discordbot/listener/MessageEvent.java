@@ -19,13 +19,35 @@ package com.kantenkugel.discordbot.listener;
 import net.dv8tion.jda.JDA;
 import net.dv8tion.jda.entities.*;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Wrapper around received and edited messages.
+ * <br>Channel and guild are resolved once on creation (on the event-thread), lower-cased content and mentions
+ * on first access, as one instance is shared by all listeners and command-lanes handling the message.
+ */
 public class MessageEvent {
     private final Message msg;
     private final int responseNumber;
+    private final MessageChannel channel;
+    private final Guild guild;
+
+    private volatile String contentLower;
+    private volatile Set<User> mentioned;
 
     public MessageEvent(Message msg, int responseNumber) {
         this.msg = msg;
         this.responseNumber = responseNumber;
+        if(msg.isPrivate()) {
+            this.channel = msg.getJDA().getPrivateChannelById(msg.getChannelId());
+            this.guild = null;
+        } else {
+            TextChannel textChannel = msg.getJDA().getTextChannelById(msg.getChannelId());
+            this.channel = textChannel;
+            this.guild = textChannel == null ? null : textChannel.getGuild();
+        }
     }
 
     public boolean isEdit() {
@@ -45,25 +67,55 @@ public class MessageEvent {
     }
 
     public MessageChannel getChannel() {
-        return isPrivate() ? msg.getJDA().getPrivateChannelById(msg.getChannelId()) : msg.getJDA().getTextChannelById(msg.getChannelId());
+        return channel;
     }
 
     public TextChannel getTextChannel() {
-        return isPrivate() ? null : (TextChannel) getChannel();
+        return isPrivate() ? null : (TextChannel) channel;
     }
 
     public Guild getGuild() {
-        return isPrivate() ? null : getTextChannel().getGuild();
+        return guild;
     }
 
     public PrivateChannel getPrivateChannel() {
-        return isPrivate() ? (PrivateChannel) getChannel() : null;
+        return isPrivate() ? (PrivateChannel) channel : null;
     }
 
     public String getContent() {
         return msg.getContent();
     }
 
+    /**
+     * @return
+     *      the content in lower-case, computed once per message
+     */
+    public String getContentLower() {
+        String lower = contentLower;
+        if(lower == null) {
+            lower = msg.getContent().toLowerCase();
+            contentLower = lower;
+        }
+        return lower;
+    }
+
+    /**
+     * @return
+     *      the users mentioned by this message (unmodifiable)
+     */
+    public Set<User> getMentionedUsers() {
+        Set<User> users = mentioned;
+        if(users == null) {
+            users = Collections.unmodifiableSet(new HashSet<>(msg.getMentionedUsers()));
+            mentioned = users;
+        }
+        return users;
+    }
+
+    public boolean isMentioned(User user) {
+        return getMentionedUsers().contains(user);
+    }
+
     public JDA getJDA() {
         return msg.getJDA();
     }
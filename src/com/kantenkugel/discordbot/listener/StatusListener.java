@@ -16,37 +16,30 @@
 
 package com.kantenkugel.discordbot.listener;
 
-import com.kantenkugel.discordbot.DbEngine;
 import com.kantenkugel.discordbot.Statics;
 import com.kantenkugel.discordbot.commands.CommandRegistry;
 import com.kantenkugel.discordbot.config.BotConfig;
 import com.kantenkugel.discordbot.config.ServerConfig;
+import com.kantenkugel.discordbot.util.BanCache;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import net.dv8tion.jda.JDA;
 import net.dv8tion.jda.entities.Guild;
-import net.dv8tion.jda.events.Event;
 import net.dv8tion.jda.events.ReadyEvent;
 import net.dv8tion.jda.events.ReconnectedEvent;
 import net.dv8tion.jda.events.guild.GuildJoinEvent;
 import net.dv8tion.jda.events.guild.GuildLeaveEvent;
-import net.dv8tion.jda.events.user.UserNameUpdateEvent;
-import net.dv8tion.jda.hooks.EventListener;
+import net.dv8tion.jda.events.guild.member.GuildMemberBanEvent;
+import net.dv8tion.jda.events.guild.member.GuildMemberUnbanEvent;
 
-public class StatusListener implements EventListener {
-    @Override
-    public void onEvent(Event event) {
-        if(event.getClass() == ReadyEvent.class) {
-            onReady((ReadyEvent) event);
-        } else if(event.getClass() == ReconnectedEvent.class) {
-            onReconnect((ReconnectedEvent) event);
-        } else if(event.getClass() == GuildJoinEvent.class) {
-            onGuildJoin((GuildJoinEvent) event);
-        } else if(event.getClass() == GuildLeaveEvent.class) {
-            onGuildLeave((GuildLeaveEvent) event);
-        } else if(event.getClass() == UserNameUpdateEvent.class) {
-            DbEngine.updateUser(((UserNameUpdateEvent) event).getUser());
-        }
+public class StatusListener {
+    public void register(EventDispatcher dispatcher) {
+        dispatcher.on(ReadyEvent.class, this::onReady)
+                .on(ReconnectedEvent.class, this::onReconnect)
+                .on(GuildJoinEvent.class, this::onGuildJoin)
+                .on(GuildLeaveEvent.class, this::onGuildLeave)
+                .on(GuildMemberBanEvent.class, event -> BanCache.onBan(event.getGuild(), event.getUser()))
+                .on(GuildMemberUnbanEvent.class, event -> BanCache.onUnban(event.getGuild(), event.getUser()));
     }
 
     public void onReady(ReadyEvent event) {
@@ -60,6 +53,7 @@ public class StatusListener implements EventListener {
     private void initVars(JDA jda) {
         jda.getAccountManager().setGame("JDA");
         CommandRegistry.serverConfigs.clear();
+        BanCache.clear();
         for(Guild guild : jda.getGuilds()) {
             CommandRegistry.serverConfigs.put(guild.getId(), new ServerConfig(jda, guild));
         }
@@ -76,6 +70,7 @@ public class StatusListener implements EventListener {
     public void onGuildLeave(GuildLeaveEvent event) {
         Statics.LOG.info("Left Guild " + event.getGuild().getName());
         CommandRegistry.serverConfigs.remove(event.getGuild().getId());
+        BanCache.invalidate(event.getGuild());
         updateCarbon();
     }
 
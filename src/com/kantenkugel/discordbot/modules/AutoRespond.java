@@ -119,7 +119,7 @@ public class AutoRespond extends Module {
                 || event.getContent().startsWith(servercfg.getPrefix())) {
             return false;
         }
-        String content = event.getContent().toLowerCase();
+        String content = event.getContentLower();
         Optional<String> response = responses.values().parallelStream().filter(r -> r.getLeft().parallelStream()
                 .allMatch(k -> {
                     int i = content.indexOf(k);
@@ -120,7 +120,7 @@ public class Moderation extends Module {
         if(event.getAuthor() == event.getJDA().getSelfInfo() || servercfg.isMod(event.getAuthor())) {
             return false;
         }
-        String msg = event.getContent().toLowerCase();
+        String msg = event.getContentLower();
         if(blacklisted.stream().anyMatch(msg::contains)) {
             try {
                 event.getMessage().deleteMessage();
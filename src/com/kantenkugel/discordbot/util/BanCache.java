@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Michael Ritter (Kantenkugel)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kantenkugel.discordbot.util;
+
+import com.kantenkugel.discordbot.DbEngine;
+import com.kantenkugel.discordbot.db.ArchiveStorage;
+import net.dv8tion.jda.entities.Guild;
+import net.dv8tion.jda.entities.User;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * In-memory ban-lists of the guilds, so the ban-commands don't have to fetch them via REST on every call.
+ * <br>The list of a guild is fetched once on first use (together with reasons and executors from the bans-table of the archive)
+ * and is then kept up to date by the ban-events and {@link #addBan(Guild, User, User, String)}.
+ * Lists are dropped on reconnect (bans may have changed in the meantime) and when leaving a guild.
+ * <br>Fetching a list happens outside of any lock. Ban-events arriving meanwhile are buffered and applied once the list is in place.
+ */
+public class BanCache {
+    private static final Map<String, Map<String, Ban>> bans = new ConcurrentHashMap<>();
+    //guild-id -> the running fetches of that guild and the updates that arrived meanwhile. guarded by LOCK, as are additions to bans
+    private static final Map<String, Loading> pending = new HashMap<>();
+    private static final Object LOCK = new Object();
+
+    /**
+     * @return
+     *      the current bans of the given guild, sorted by username
+     */
+    public static List<Ban> getBans(Guild guild) {
+        List<Ban> list = new ArrayList<>(load(guild).values());
+        list.sort(Comparator.comparing((Ban b) -> b.user.getUsername(), String.CASE_INSENSITIVE_ORDER));
+        return list;
+    }
+
+    /**
+     * @return
+     *      the ban of the given user in the given guild or null, if the user isn't banned
+     */
+    public static Ban getBan(Guild guild, String userId) {
+        return load(guild).get(userId);
+    }
+
+    /**
+     * Records a ban issued by this bot (and stores it in the archive).
+     */
+    public static void addBan(Guild guild, User banned, User executor, String reason) {
+        DbEngine.addBan(guild, banned, executor, reason);
+        Ban ban = new Ban(banned, reason, executor.getUsername(), System.currentTimeMillis() / 1000);
+        update(guild, guildBans -> guildBans.put(banned.getId(), ban));
+    }
+
+    public static void onBan(Guild guild, User user) {
+        Ban ban = new Ban(user, null, null, System.currentTimeMillis() / 1000);
+        //may already be there with a reason via addBan
+        update(guild, guildBans -> guildBans.putIfAbsent(user.getId(), ban));
+    }
+
+    public static void onUnban(Guild guild, User user) {
+        update(guild, guildBans -> guildBans.remove(user.getId()));
+    }
+
+    /**
+     * Applies the update to the list of the given guild if it is cached, or buffers it if the list is currently being fetched.
+     */
+    private static void update(Guild guild, Consumer<Map<String, Ban>> update) {
+        synchronized(LOCK) {
+            Map<String, Ban> guildBans = bans.get(guild.getId());
+            if(guildBans != null) {
+                update.accept(guildBans);
+            } else {
+                Loading loading = pending.get(guild.getId());
+                if(loading != null)
+                    loading.updates.add(update);
+            }
+        }
+    }
+
+    public static void invalidate(Guild guild) {
+        bans.remove(guild.getId());
+    }
+
+    public static void clear() {
+        bans.clear();
+    }
+
+    private static Map<String, Ban> load(Guild guild) {
+        Map<String, Ban> guildBans = bans.get(guild.getId());
+        if(guildBans != null)
+            return guildBans;
+        Loading loading;
+        synchronized(LOCK) {
+            loading = pending.computeIfAbsent(guild.getId(), id -> new Loading());
+            loading.loaders++;
+        }
+        boolean stored = false;
+        try {
+            //REST- and DB-calls, so no lock held here. concurrent loads of the same guild just fetch twice
+            Map<String, ArchiveStorage.Ban> archived = new HashMap<>();
+            //ordered by creation, so later bans of the same user overwrite older ones
+            for(ArchiveStorage.Ban ban : DbEngine.getBans(guild)) {
+                archived.put(ban.bannedId, ban);
+            }
+            Map<String, Ban> fetched = new ConcurrentHashMap<>();
+            for(User user : guild.getManager().getBans()) {
+                ArchiveStorage.Ban ban = archived.get(user.getId());
+                fetched.put(user.getId(), ban == null
+                        ? new Ban(user, null, null, 0)
+                        : new Ban(user, ban.reason, ban.getExecutorName, ban.timestampS));
+            }
+            synchronized(LOCK) {
+                guildBans = bans.putIfAbsent(guild.getId(), fetched);
+                if(guildBans != null)
+                    return guildBans;
+                stored = true;
+                pending.remove(guild.getId(), loading);
+                loading.updates.forEach(update -> update.accept(fetched));
+                return fetched;
+            }
+        } finally {
+            if(!stored) {
+                //failed (or lost the race): stop buffering once no other fetch of this guild is running
+                synchronized(LOCK) {
+                    if(--loading.loaders == 0)
+                        pending.remove(guild.getId(), loading);
+                }
+            }
+        }
+    }
+
+    private static class Loading {
+        private int loaders = 0;
+        private final List<Consumer<Map<String, Ban>>> updates = new ArrayList<>();
+    }
+
+    public static class Ban {
+        public final User user;
+        /**
+         * reason and executor are null if the ban didn't go through this bot
+         */
+        public final String reason, executorName;
+        /**
+         * epoch-seconds of the ban or 0, if unknown
+         */
+        public final long timestampS;
+
+        private Ban(User user, String reason, String executorName, long timestampS) {
+            this.user = user;
+            this.reason = reason;
+            this.executorName = executorName;
+            this.timestampS = timestampS;
+        }
+
+        @Override
+        public String toString() {
+            String s = user.getUsername() + " (" + user.getId() + ')';
+            if(executorName != null)
+                s += " by " + executorName + (reason == null || reason.isEmpty() ? "" : ": " + reason);
+            return s;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.kantenkugel.discordbot.util;
 
 import com.kantenkugel.discordbot.DbEngine;
 import com.kantenkugel.discordbot.Statics;
+import com.kantenkugel.discordbot.config.BotConfig;
 import net.dv8tion.jda.JDA;
 import net.dv8tion.jda.entities.impl.JDAImpl;
 
@@ -57,6 +58,9 @@ public class MiscUtil {
         try {
             URL u = new URL(url);
             URLConnection urlConnection = u.openConnection();
+            //commands reading this get interrupted at their deadline, which doesn't end a blocking read
+            urlConnection.setConnectTimeout(BotConfig.get("httpConnectTimeout", 10000));
+            urlConnection.setReadTimeout(BotConfig.get("httpReadTimeout", 30000));
             urlConnection.setRequestProperty("user-agent", "KanzeBot DiscordBot (https://github.com/Kantenkugel/KanzeBot, " + Statics.VERSION + ')');
             urlConnection.setRequestProperty("authorization", Statics.jdaInstance.getAuthToken());
             return urlConnection.getInputStream();